@@ -0,0 +1,109 @@
+package alienkrishn.currentactivity.app;
+
+import android.accessibilityservice.AccessibilityServiceInfo;
+import android.os.Build;
+import android.view.accessibility.AccessibilityEvent;
+
+/**
+ * Works out the smallest accessibility subscription that serves the features
+ * currently in use.
+ *
+ * Every event type and flag the service asks for makes the system do work in
+ * every foreground app, so only window state changes are requested by default
+ * and the costlier flags are added only while a feature needs them. While the
+ * screen is off nothing is requested at all.
+ */
+final class AccessibilityPolicy {
+
+    // Something on screen or outside the process is waiting for updates
+    private static final long LIVE_NOTIFICATION_TIMEOUT_MS = 100;
+    // Only background recording, brief windows can be coalesced away
+    private static final long BACKGROUND_NOTIFICATION_TIMEOUT_MS = 250;
+
+    boolean screenOn = true;
+    boolean overlayVisible;
+    boolean journalEnabled;
+    boolean streamEnabled;
+    boolean broadcastCompat;
+    boolean hierarchyCapture;
+    boolean traceRecording;
+
+    // Key of the last applied configuration, -1 when nothing was applied yet
+    private long appliedKey = -1;
+
+    /** True when events should be ignored entirely. */
+    boolean isPaused() {
+        return !screenOn;
+    }
+
+    private boolean isLive() {
+        // A trace is replayed to measure live detection, so record what live use receives
+        return overlayVisible || streamEnabled || broadcastCompat || traceRecording;
+    }
+
+    /** True while every visible app window is tracked, only the overlay shows them. */
+    boolean isWindowTracking() {
+        return overlayVisible && !isPaused() && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP;
+    }
+
+    int eventTypes() {
+        if (isPaused()) {
+            return 0;
+        }
+        int types = AccessibilityEvent.TYPE_WINDOW_STATE_CHANGED;
+        if (isWindowTracking()) {
+            types |= AccessibilityEvent.TYPE_WINDOWS_CHANGED;
+        }
+        return types;
+    }
+
+    int flags() {
+        int flags = AccessibilityServiceInfo.DEFAULT;
+        if (isWindowTracking()) {
+            // Split screen, freeform and picture-in-picture windows besides the active one
+            flags |= AccessibilityServiceInfo.FLAG_RETRIEVE_INTERACTIVE_WINDOWS;
+        }
+        if (hierarchyCapture && !isPaused()) {
+            // Captures should see the whole tree, including view ids
+            flags |= AccessibilityServiceInfo.FLAG_INCLUDE_NOT_IMPORTANT_VIEWS |
+                AccessibilityServiceInfo.FLAG_REPORT_VIEW_IDS;
+        }
+        return flags;
+    }
+
+    long notificationTimeout() {
+        return isLive() || hierarchyCapture ? LIVE_NOTIFICATION_TIMEOUT_MS : BACKGROUND_NOTIFICATION_TIMEOUT_MS;
+    }
+
+    /**
+     * Returns the service info for the current state, or null if it is the
+     * same as the one applied last time.
+     */
+    AccessibilityServiceInfo createServiceInfoIfChanged() {
+        long key = ((long) eventTypes() << 32) | ((long) flags() << 16) | notificationTimeout();
+        if (key == appliedKey) {
+            return null;
+        }
+        appliedKey = key;
+
+        AccessibilityServiceInfo info = new AccessibilityServiceInfo();
+        info.eventTypes = eventTypes();
+        info.feedbackType = AccessibilityServiceInfo.FEEDBACK_GENERIC;
+        info.notificationTimeout = notificationTimeout();
+        info.flags = flags();
+        return info;
+    }
+
+    /** Forgets the applied configuration, e.g. after the service was rebound. */
+    void invalidate() {
+        appliedKey = -1;
+    }
+
+    @Override
+    public String toString() {
+        return "AccessibilityPolicy{paused=" + isPaused() + ", live=" + isLive() + ", journal=" + journalEnabled +
+            ", windows=" + isWindowTracking() +
+            ", hierarchyCapture=" + hierarchyCapture + ", flags=0x" + Integer.toHexString(flags()) +
+            ", timeout=" + notificationTimeout() + "ms}";
+    }
+}
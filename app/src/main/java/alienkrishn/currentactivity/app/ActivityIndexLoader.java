@@ -0,0 +1,231 @@
+package alienkrishn.currentactivity.app;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.ActivityInfo;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import alienkrishn.currentactivity.app.core.ActivityIndex;
+import alienkrishn.currentactivity.app.core.DetectionPipeline;
+
+/**
+ * Keeps the {@link ActivityIndex} filled for MyAccessibilityService.
+ *
+ * Packages are indexed on first sight from PackageManager on a background
+ * thread, persisted to a cache file so later runs start warm, re-checked once
+ * per process against the package's lastUpdateTime, and dropped whenever a
+ * package changes. Packages PackageManager does not know are left out of the
+ * index, so their windows stay trusted, and are only looked up again after
+ * the next package broadcast.
+ */
+final class ActivityIndexLoader implements DetectionPipeline.Classifier {
+
+    private static final String TAG = "ActivityIndexLoader";
+    private static final String CACHE_FILE = "activity-index.bin";
+    // Batch cache writes instead of rewriting the file for every new package
+    private static final long SAVE_DELAY_MS = 5000;
+
+    private final Context context;
+    private final ActivityIndex index = new ActivityIndex();
+    private final HandlerThread thread;
+    private final Handler handler;
+    private final Set<String> queued = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    // Not found by PackageManager or failing to load, in memory only until the package changes
+    private final Set<String> unresolved = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private final BroadcastReceiver packageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            Uri data = intent.getData();
+            if (data != null) {
+                // Rebuilt lazily the next time the package shows up
+                index.remove(data.getSchemeSpecificPart());
+                unresolved.remove(data.getSchemeSpecificPart());
+                scheduleSave();
+            }
+        }
+    };
+
+    private final Runnable saveTask = new Runnable() {
+        @Override
+        public void run() {
+            save();
+        }
+    };
+
+    ActivityIndexLoader(Context context) {
+        this.context = context.getApplicationContext();
+        thread = new HandlerThread("ActivityIndex", Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        handler = new Handler(thread.getLooper());
+        handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    load();
+                }
+            });
+
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addDataScheme("package");
+        this.context.registerReceiver(packageReceiver, filter);
+    }
+
+    /**
+     * Classifies the window in O(1). Unknown or unverified packages are queued
+     * for indexing and reported as they currently stand.
+     */
+    @Override
+    public int classify(String packageName, CharSequence className) {
+        if (unresolved.contains(packageName)) {
+            return ActivityIndex.KIND_UNKNOWN;
+        }
+        if (!index.contains(packageName) || index.needsVerification(packageName)) {
+            enqueue(packageName);
+        }
+        return index.classify(packageName, className);
+    }
+
+    private void enqueue(final String packageName) {
+        if (!queued.add(packageName)) {
+            return;
+        }
+        handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        refresh(packageName);
+                    } finally {
+                        queued.remove(packageName);
+                    }
+                }
+            });
+    }
+
+    private void refresh(String packageName) {
+        PackageManager pm = context.getPackageManager();
+        try {
+            if (index.needsVerification(packageName)) {
+                // Cheap check first, the activity list is only re-read if the app changed
+                PackageInfo info = pm.getPackageInfo(packageName, 0);
+                if (info.lastUpdateTime == index.getLastUpdateTime(packageName)) {
+                    index.markVerified(packageName);
+                    return;
+                }
+            }
+
+            PackageInfo info = pm.getPackageInfo(packageName, PackageManager.GET_ACTIVITIES);
+            List<String> names = new ArrayList<String>();
+            if (info.activities != null) {
+                for (ActivityInfo activity : info.activities) {
+                    names.add(activity.name);
+                    if (activity.targetActivity != null) {
+                        names.add(activity.targetActivity);
+                    }
+                }
+            }
+            index.put(packageName, info.lastUpdateTime, names);
+        } catch (PackageManager.NameNotFoundException e) {
+            // Windows from packages we cannot see. An empty entry would mark all of
+            // them as views, so leave the package out and its windows trusted;
+            // this also drops such entries persisted by earlier versions
+            index.remove(packageName);
+            unresolved.add(packageName);
+        } catch (RuntimeException e) {
+            // Very large packages can exceed the Binder transaction limit, which fails
+            // the same way every time, so do not retry before the package changes
+            Log.w(TAG, "Failed to index " + packageName, e);
+            unresolved.add(packageName);
+            return;
+        }
+        scheduleSave();
+    }
+
+    private void scheduleSave() {
+        handler.removeCallbacks(saveTask);
+        handler.postDelayed(saveTask, SAVE_DELAY_MS);
+    }
+
+    private File cacheFile() {
+        return new File(context.getCacheDir(), CACHE_FILE);
+    }
+
+    private void load() {
+        File file = cacheFile();
+        if (!file.exists()) {
+            return;
+        }
+        try {
+            InputStream in = new BufferedInputStream(new FileInputStream(file));
+            try {
+                index.readFrom(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Discarding unreadable activity index cache", e);
+            file.delete();
+        }
+    }
+
+    private void save() {
+        File file = cacheFile();
+        File temp = new File(file.getPath() + ".tmp");
+        try {
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(temp));
+            try {
+                index.writeTo(out);
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(file)) {
+                throw new IOException("Cannot replace " + file);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to save activity index cache", e);
+            temp.delete();
+        }
+    }
+
+    void release() {
+        try {
+            context.unregisterReceiver(packageReceiver);
+        } catch (Exception e) {
+            // Receiver was not registered
+        }
+        handler.removeCallbacks(saveTask);
+        // Flush pending index changes before the thread goes away
+        handler.post(saveTask);
+        handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    thread.quit();
+                }
+            });
+    }
+}
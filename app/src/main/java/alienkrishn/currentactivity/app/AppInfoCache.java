@@ -0,0 +1,203 @@
+package alienkrishn.currentactivity.app;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.drawable.Drawable;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Resolves app labels and icons for the overlay.
+ *
+ * PackageManager lookups run on a background thread and results are kept in
+ * two LRU caches, one capped by entry count for labels and one capped by bytes
+ * for icon bitmaps. Packages without an app entry or icon are remembered too,
+ * so they are not looked up again every time they come to the front. All of
+ * it is dropped for a package when it is installed, replaced or removed.
+ * Requests and callbacks happen on the main thread.
+ */
+final class AppInfoCache {
+
+    interface Callback {
+        void onAppInfo(String packageName, CharSequence label, Bitmap icon);
+    }
+
+    private static final String TAG = "AppInfoCache";
+    private static final int MAX_LABELS = 256;
+    // Negative entries are cheap, but a device can have many packages without an app entry
+    private static final int MAX_UNRESOLVED = 256;
+    private static final int MAX_ICON_BYTES = 2 * 1024 * 1024;
+
+    private final Context context;
+    private final int iconSizePx;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final HandlerThread thread;
+    private final Handler workerHandler;
+    // Packages with a load queued, touched only on the main thread
+    private final Set<String> pending = new HashSet<String>();
+    // No app entry or no label, and no icon; both main thread only
+    private final Set<String> unresolved = new HashSet<String>();
+    private final Set<String> iconless = new HashSet<String>();
+
+    private final LruCache<String, CharSequence> labels = new LruCache<String, CharSequence>(MAX_LABELS);
+    private final LruCache<String, Bitmap> icons = new LruCache<String, Bitmap>(MAX_ICON_BYTES) {
+        @Override
+        protected int sizeOf(String key, Bitmap value) {
+            return value.getByteCount();
+        }
+    };
+
+    private final BroadcastReceiver packageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            Uri data = intent.getData();
+            if (data != null) {
+                invalidate(data.getSchemeSpecificPart());
+            }
+        }
+    };
+
+    AppInfoCache(Context context, int iconSizePx) {
+        this.context = context.getApplicationContext();
+        this.iconSizePx = iconSizePx;
+        thread = new HandlerThread("AppInfoCache", Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        workerHandler = new Handler(thread.getLooper());
+
+        IntentFilter filter = new IntentFilter();
+        // Added too, a package that could not be resolved may have been installed since
+        filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addDataScheme("package");
+        this.context.registerReceiver(packageReceiver, filter);
+    }
+
+    /**
+     * Delivers the label and icon for a package. Cache hits are delivered
+     * synchronously; misses are loaded off the main thread and delivered later.
+     *
+     * @return true if the callback has already been called
+     */
+    boolean request(final String packageName, final Callback callback) {
+        if (packageName == null || packageName.length() == 0 || unresolved.contains(packageName)) {
+            return false;
+        }
+        final CharSequence cachedLabel = labels.get(packageName);
+        Bitmap icon = icons.get(packageName);
+        if (cachedLabel != null && (icon != null || iconless.contains(packageName))) {
+            callback.onAppInfo(packageName, cachedLabel, icon);
+            return true;
+        }
+        if (!pending.add(packageName)) {
+            // Already loading, the first request's callback delivers it
+            return false;
+        }
+
+        workerHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    CharSequence label = cachedLabel;
+                    Bitmap icon = null;
+                    boolean failed = false;
+                    PackageManager pm = context.getPackageManager();
+                    try {
+                        if (label == null) {
+                            ApplicationInfo info = pm.getApplicationInfo(packageName, 0);
+                            label = pm.getApplicationLabel(info);
+                            icon = toBitmap(pm.getApplicationIcon(info));
+                        } else {
+                            // Only the icon was evicted, the label is still good
+                            icon = toBitmap(pm.getApplicationIcon(packageName));
+                        }
+                    } catch (PackageManager.NameNotFoundException e) {
+                        // Packages like system windows have no app entry
+                    } catch (RuntimeException e) {
+                        // Possibly transient, do not remember it as unresolved
+                        Log.w(TAG, "Failed to load app info for " + packageName, e);
+                        failed = true;
+                    }
+
+                    final CharSequence loadedLabel = label;
+                    final Bitmap loadedIcon = icon;
+                    final boolean loadFailed = failed;
+                    mainHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                pending.remove(packageName);
+                                if (loadFailed) {
+                                    return;
+                                }
+                                if (loadedLabel == null) {
+                                    if (unresolved.size() >= MAX_UNRESOLVED) {
+                                        unresolved.clear();
+                                    }
+                                    unresolved.add(packageName);
+                                    return;
+                                }
+                                labels.put(packageName, loadedLabel);
+                                if (loadedIcon != null) {
+                                    icons.put(packageName, loadedIcon);
+                                } else if (iconless.size() < MAX_UNRESOLVED) {
+                                    iconless.add(packageName);
+                                }
+                                callback.onAppInfo(packageName, loadedLabel, loadedIcon);
+                            }
+                        });
+                }
+            });
+        return false;
+    }
+
+    private Bitmap toBitmap(Drawable drawable) {
+        if (drawable == null) {
+            return null;
+        }
+        // Always render at overlay size so the byte budget holds a predictable number of icons
+        Bitmap bitmap = Bitmap.createBitmap(iconSizePx, iconSizePx, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+        drawable.setBounds(0, 0, iconSizePx, iconSizePx);
+        drawable.draw(canvas);
+        return bitmap;
+    }
+
+    void invalidate(String packageName) {
+        if (packageName == null) {
+            return;
+        }
+        // Receivers run on the main thread, same as every other cache access
+        labels.remove(packageName);
+        icons.remove(packageName);
+        unresolved.remove(packageName);
+        iconless.remove(packageName);
+    }
+
+    void release() {
+        try {
+            context.unregisterReceiver(packageReceiver);
+        } catch (Exception e) {
+            // Receiver was not registered
+        }
+        workerHandler.removeCallbacksAndMessages(null);
+        thread.quit();
+        labels.evictAll();
+        icons.evictAll();
+        unresolved.clear();
+        iconless.clear();
+    }
+}
@@ -0,0 +1,13 @@
+package alienkrishn.currentactivity.app;
+
+import android.app.Application;
+
+public class CurrentActivityApp extends Application {
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        // Read the settings off the main thread while the first component starts
+        StateStore.preload(this);
+    }
+}
@@ -0,0 +1,64 @@
+package alienkrishn.currentactivity.app;
+
+import android.app.Activity;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.widget.TextView;
+
+import java.io.IOException;
+
+import alienkrishn.currentactivity.app.core.HealthMetrics;
+
+/**
+ * Shows the detector's own overhead from {@link HealthMonitor}, refreshed
+ * every second while visible.
+ */
+public class DiagnosticsActivity extends Activity {
+
+    private static final long REFRESH_MS = 1000;
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private TextView tvDiagnostics;
+
+    private final Runnable refresher = new Runnable() {
+        @Override
+        public void run() {
+            refresh();
+            handler.postDelayed(this, REFRESH_MS);
+        }
+    };
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_diagnostics);
+        tvDiagnostics = findViewById(R.id.tvDiagnostics);
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        refresher.run();
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        handler.removeCallbacks(refresher);
+    }
+
+    private void refresh() {
+        StringBuilder text = new StringBuilder();
+        try {
+            HealthMonitor.writeReport(this, text);
+        } catch (IOException e) {
+            // StringBuilder does not throw
+        }
+        text.append("\nPer-second rows cover the last ").append(HealthMetrics.HISTORY_SECONDS)
+            .append(" s the screen was on. Also available through\n")
+            .append("adb shell dumpsys activity service ").append(getPackageName())
+            .append("/.MyAccessibilityService\n");
+        tvDiagnostics.setText(text);
+    }
+}
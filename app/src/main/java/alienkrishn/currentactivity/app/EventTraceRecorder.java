@@ -0,0 +1,188 @@
+package alienkrishn.currentactivity.app;
+
+import android.content.Context;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+import alienkrishn.currentactivity.app.core.EventTrace;
+
+/**
+ * Records every accessibility event the service receives, before any
+ * filtering, to an {@link EventTrace} file that the benchmark replay harness
+ * reads, so a session on a real device can be replayed on CI:
+ *
+ * {@code adb pull /sdcard/Android/data/alienkrishn.currentactivity.app/files/traces}
+ *
+ * Events are buffered on the main thread and handed to a background thread
+ * every {@link #FLUSH_EVENTS} events or {@link #FLUSH_INTERVAL_MS}, which
+ * appends them and updates the count in the header, so the file is a complete
+ * trace even if the process dies. Recording stops at {@link #MAX_EVENTS}.
+ */
+final class EventTraceRecorder {
+
+    private static final String TAG = "EventTraceRecorder";
+    private static final int FLUSH_EVENTS = 256;
+    private static final long FLUSH_INTERVAL_MS = 5000;
+    // About 50 MB with typical names
+    private static final int MAX_EVENTS = 500000;
+
+    private final File file;
+    private final HandlerThread thread;
+    private final Handler handler;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    // Main thread only
+    private EventTrace buffer = new EventTrace(FLUSH_EVENTS);
+    private int recorded;
+    // Writer thread only
+    private RandomAccessFile out;
+    private int written;
+
+    private final Runnable flushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    private EventTraceRecorder(File file) {
+        this.file = file;
+        thread = new HandlerThread("EventTraceWriter", Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        handler = new Handler(thread.getLooper());
+    }
+
+    static EventTraceRecorder start(Context context) {
+        String name = "events-" + new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date()) + ".trace";
+        final EventTraceRecorder recorder = new EventTraceRecorder(new File(getTraceDirectory(context), name));
+        recorder.handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    recorder.open();
+                }
+            });
+        return recorder;
+    }
+
+    /** Where traces are written, pulled from the device for replay. */
+    static File getTraceDirectory(Context context) {
+        File dir = context.getExternalFilesDir("traces");
+        if (dir == null) {
+            // External storage not mounted
+            dir = new File(context.getFilesDir(), "traces");
+        }
+        return dir;
+    }
+
+    /** Main thread only. */
+    void record(int type, long eventTime, long elapsedNanos, CharSequence packageName, CharSequence className) {
+        if (recorded == MAX_EVENTS) {
+            return;
+        }
+        if (++recorded == MAX_EVENTS) {
+            Log.w(TAG, "Trace reached " + MAX_EVENTS + " events, no longer recording to " + file);
+        }
+        if (buffer.size() == 0) {
+            mainHandler.postDelayed(flushRunnable, FLUSH_INTERVAL_MS);
+        }
+        buffer.add(type, eventTime, elapsedNanos,
+                   packageName == null ? null : packageName.toString(),
+                   className == null ? null : className.toString());
+        if (buffer.size() >= FLUSH_EVENTS) {
+            flush();
+        }
+    }
+
+    void stop() {
+        flush();
+        handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    close();
+                }
+            });
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            thread.quitSafely();
+        } else {
+            handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        thread.quit();
+                    }
+                });
+        }
+    }
+
+    private void flush() {
+        mainHandler.removeCallbacks(flushRunnable);
+        if (buffer.size() == 0) {
+            return;
+        }
+        final EventTrace batch = buffer;
+        buffer = new EventTrace(FLUSH_EVENTS);
+        handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    append(batch);
+                }
+            });
+    }
+
+    private void open() {
+        try {
+            File dir = file.getParentFile();
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Cannot create " + dir);
+            }
+            out = new RandomAccessFile(file, "rw");
+            out.setLength(0);
+            EventTrace.writeHeader(out, 0);
+            Log.i(TAG, "Recording events to " + file);
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot record events to " + file, e);
+            close();
+        }
+    }
+
+    private void append(EventTrace batch) {
+        if (out == null) {
+            return;
+        }
+        try {
+            // One write per batch rather than one per field
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(batch.size() * 96);
+            batch.writeRecords(new DataOutputStream(bytes));
+            out.seek(out.length());
+            out.write(bytes.toByteArray());
+            written += batch.size();
+            out.seek(EventTrace.COUNT_OFFSET);
+            out.writeInt(written);
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot write events to " + file, e);
+            close();
+        }
+    }
+
+    private void close() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // The count was written after the last batch
+            }
+            out = null;
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package alienkrishn.currentactivity.app;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import alienkrishn.currentactivity.app.core.FilterRule;
+
+/**
+ * Persists the user's window filter rules in the state store, one rule per
+ * string in its text form.
+ */
+final class FilterRuleStore {
+
+    private FilterRuleStore() {
+    }
+
+    static List<FilterRule> load(StateStore state) {
+        List<FilterRule> rules = new ArrayList<FilterRule>();
+        Set<String> lines = state.get(StateStore.FILTER_RULES);
+        for (String line : lines) {
+            try {
+                rules.add(FilterRule.parse(line));
+            } catch (IllegalArgumentException e) {
+                Log.w("FilterRuleStore", "Dropping invalid filter rule: " + line, e);
+            }
+        }
+        return rules;
+    }
+
+    static void save(StateStore state, List<FilterRule> rules) {
+        Set<String> lines = new HashSet<String>();
+        for (FilterRule rule : rules) {
+            lines.add(rule.toString());
+        }
+        state.set(StateStore.FILTER_RULES, lines);
+    }
+}
@@ -4,47 +4,161 @@ import android.app.Notification;
 import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.app.Service;
-import android.content.BroadcastReceiver;
 import android.content.ClipData;
 import android.content.ClipboardManager;
 import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
 import android.graphics.PixelFormat;
 import android.os.Build;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.Choreographer;
 import android.view.Gravity;
-import android.view.LayoutInflater;
-import android.view.MotionEvent;
-import android.view.View;
+import android.view.ViewTreeObserver;
 import android.view.WindowManager;
-import android.widget.TextView;
 import android.widget.Toast;
 
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import alienkrishn.currentactivity.app.core.ActivityEvent;
+import alienkrishn.currentactivity.app.core.ActivityEventBus;
+import alienkrishn.currentactivity.app.core.LatencyTracker;
+import alienkrishn.currentactivity.app.core.HealthMetrics;
+import alienkrishn.currentactivity.app.core.StartupTimer;
+import alienkrishn.currentactivity.app.core.WindowModel;
+
 public class FloatingService extends Service {
 
     private WindowManager windowManager;
-    private View floatingView;
-    private TextView tvPackage, tvActivity, btnClose;
+    private OverlayView floatingView;
+    private WindowManager.LayoutParams params;
+    private OverlayMover overlayMover;
+    private AppInfoCache appInfoCache;
+    private StateStore state;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final LatencyTracker latency = LatencyTracker.getInstance();
+    private final HealthMetrics health = HealthMetrics.getInstance();
+
+    // Latest delivered event, and the one whose text is waiting to be drawn
+    private long deliveredEventTime;
+    private long deliveredNanos;
+    private long shownEventTime;
+    private long shownDeliveredNanos;
+    private boolean renderPending = false;
+
+    private static final long LATENCY_REFRESH_MS = 500;
     private static boolean isRunning = false;
+    // Stages of the most recent start, kept for the latency report
+    private static StartupTimer lastStartup;
+    private StartupTimer startup;
+    private boolean destroyed = false;
 
     private String currentPackageName = "";
     private String currentActivityName = "";
+    private String visibleApps;
 
     private static final String CHANNEL_ID = "FloatingServiceChannel";
     private static final int NOTIFICATION_ID = 1;
 
-    private BroadcastReceiver activityUpdateReceiver = new BroadcastReceiver() {
-        @Override
-        public void onReceive(Context context, Intent intent) {
-            if ("CURRENT_ACTIVITY_UPDATE".equals(intent.getAction())) {
-                currentPackageName = intent.getStringExtra("package");
-                currentActivityName = intent.getStringExtra("activity");
-
-                if (tvPackage != null && tvActivity != null) {
-                    tvPackage.setText(currentPackageName);
-                    tvActivity.setText(currentActivityName);
+    // Applies the latest transition once per frame, both rows in the same layout pass
+    private final OverlayUpdateCoalescer updateCoalescer = new OverlayUpdateCoalescer(new OverlayUpdateCoalescer.Target() {
+            @Override
+            public void applyUpdate(String packageName, String activityName) {
+                long start = System.nanoTime();
+                if (latency.isEnabled()) {
+                    shownEventTime = deliveredEventTime;
+                    shownDeliveredNanos = deliveredNanos;
+                    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+                        renderPending = true;
+                    } else {
+                        // No draw listener before API 16, count the frame the text was set in
+                        latency.onRendered(shownEventTime, shownDeliveredNanos,
+                                           SystemClock.uptimeMillis(), System.nanoTime());
+                    }
                 }
+                currentPackageName = packageName;
+                currentActivityName = activityName;
+
+                // Cached apps are applied in this same frame, others show the package until loaded
+                if (floatingView != null) {
+                    floatingView.setContent(currentPackageName, currentActivityName);
+                    if (appInfoCache == null || !appInfoCache.request(packageName, appInfoCallback)) {
+                        floatingView.setAppInfo(packageName, null);
+                    }
+                }
+                health.onCallback(start);
+            }
+        });
+
+    private final AppInfoCache.Callback appInfoCallback = new AppInfoCache.Callback() {
+        @Override
+        public void onAppInfo(String packageName, CharSequence label, Bitmap icon) {
+            // A slow load may finish after the user has already moved on
+            if (!packageName.equals(currentPackageName) || floatingView == null) {
+                return;
+            }
+            long start = System.nanoTime();
+            floatingView.setAppInfo(label, icon);
+            health.onCallback(start);
+        }
+    };
+
+    // Called on the accessibility service's thread (main) for every published transition
+    private ActivityEventBus.Subscriber activityUpdateReceiver = new ActivityEventBus.Subscriber() {
+        @Override
+        public void onActivityEvent(ActivityEvent event) {
+            long start = System.nanoTime();
+            if (latency.isEnabled()) {
+                deliveredNanos = start;
+                deliveredEventTime = event.getEventTime();
+                latency.onDelivered(event, deliveredNanos);
+            }
+            updateCoalescer.submit(event.getPackageName(), event.getClassName());
+            health.onCallback(start);
+        }
+    };
+
+    // Split screen, freeform and picture-in-picture, from the accessibility service's window model
+    private final WindowModel.Listener windowListener = new WindowModel.Listener() {
+        @Override
+        public void onWindowsChanged(WindowModel model, int changes) {
+            // Moving or resizing windows does not change the list
+            if ((changes & WindowModel.CHANGE_WINDOWS) != 0) {
+                long start = System.nanoTime();
+                updateVisibleApps(model);
+                health.onCallback(start);
+            }
+        }
+    };
+
+    private final StateStore.Listener stateListener = new StateStore.Listener() {
+        @Override
+        public void onStateChanged(StateStore.Key<?> key) {
+            if (key == StateStore.LATENCY_DEBUG) {
+                setLatencyDebug(state.get(StateStore.LATENCY_DEBUG));
+            } else if (key == StateStore.OVERLAY_COMPACT && floatingView != null) {
+                floatingView.setCompact(state.get(StateStore.OVERLAY_COMPACT));
+            }
+        }
+    };
+
+    // Records the render stage in the frame that actually draws the new text
+    private ViewTreeObserver.OnDrawListener drawListener;
+
+    private final Runnable latencyRefresher = new Runnable() {
+        @Override
+        public void run() {
+            if (floatingView != null && latency.isEnabled()) {
+                floatingView.setLatencyText(latency.summary());
+                handler.postDelayed(this, LATENCY_REFRESH_MS);
             }
         }
     };
@@ -53,6 +167,8 @@ public class FloatingService extends Service {
     public void onCreate() {
         super.onCreate();
         isRunning = true;
+        startup = new StartupTimer(System.nanoTime());
+        lastStartup = startup;
 
         // Create notification channel
         createNotificationChannel();
@@ -66,28 +182,86 @@ public class FloatingService extends Service {
             // If foreground service fails, continue as normal service
             Toast.makeText(this, "Service started without notification", Toast.LENGTH_SHORT).show();
         }
+        startup.mark("foreground", System.nanoTime());
 
-        // Register broadcast receiver
-        IntentFilter filter = new IntentFilter("CURRENT_ACTIVITY_UPDATE");
-        registerReceiver(activityUpdateReceiver, filter);
+        // Subscribe before the window exists, the latest transition is shown once it is attached
+        ActivityEventBus.getInstance().subscribe(activityUpdateReceiver);
+        MyAccessibilityService.onOverlayVisibilityChanged();
+        state = StateStore.get(this);
+        startup.mark("subscribe", System.nanoTime());
+
+        // Text layout and the icon cache take a while on slow devices, keep them off the main thread;
+        // the view itself is only created on the main thread
+        new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    final OverlayView.Style style = new OverlayView.Style(FloatingService.this);
+                    final AppInfoCache cache = new AppInfoCache(FloatingService.this, style.iconSize);
+                    startup.mark("prepare", System.nanoTime());
+                    handler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                attachOnNextFrame(style, cache);
+                            }
+                        });
+                }
+            }, "OverlayStartup").start();
+    }
 
-        createFloatingWindow();
+    private void attachOnNextFrame(final OverlayView.Style style, final AppInfoCache cache) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            Choreographer.getInstance().postFrameCallback(new Choreographer.FrameCallback() {
+                    @Override
+                    public void doFrame(long frameTimeNanos) {
+                        attachFloatingWindow(style, cache);
+                    }
+                });
+        } else {
+            // No Choreographer before API 16, this looper turn is already between frames
+            attachFloatingWindow(style, cache);
+        }
     }
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
+        if (intent == null) {
+            // Recreated by the system after it killed the process, thanks to START_STICKY
+            state.set(StateStore.OVERLAY_RESTARTS, state.get(StateStore.OVERLAY_RESTARTS) + 1);
+        }
         // Return START_STICKY to keep service running even if system kills it
         return START_STICKY;
     }
 
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        try {
+            HealthMonitor.writeReport(this, writer);
+            writer.println();
+            latency.writeReport(writer);
+        } catch (IOException e) {
+            // PrintWriter does not throw
+        }
+    }
+
     @Override
     public void onDestroy() {
         super.onDestroy();
         isRunning = false;
-        try {
-            unregisterReceiver(activityUpdateReceiver);
-        } catch (Exception e) {
-            // Receiver was not registered
+        destroyed = true;
+        ActivityEventBus.getInstance().unsubscribe(activityUpdateReceiver);
+        MyAccessibilityService.onOverlayVisibilityChanged();
+        updateCoalescer.cancel();
+        MyAccessibilityService.getWindowModel().removeListener(windowListener);
+        if (overlayMover != null) {
+            overlayMover.cancel();
+        }
+        if (state != null) {
+            state.removeListener(stateListener);
+        }
+        setLatencyDebug(false);
+        if (appInfoCache != null) {
+            appInfoCache.release();
+            appInfoCache = null;
         }
         if (floatingView != null) {
             try {
@@ -98,6 +272,15 @@ public class FloatingService extends Service {
         }
     }
 
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+        super.onConfigurationChanged(newConfig);
+        // A rotation can leave the window off screen or away from its edge
+        if (overlayMover != null) {
+            overlayMover.settle();
+        }
+    }
+
     @Override
     public IBinder onBind(Intent intent) {
         return null;
@@ -149,22 +332,74 @@ public class FloatingService extends Service {
         }
     }
 
-    private void createFloatingWindow() {
-        windowManager = (WindowManager) getSystemService(WINDOW_SERVICE);
+    // Runs on the startup thread, the view is not attached yet so nothing else can see it
+    private OverlayView createOverlayView(OverlayView.Style style) {
+        OverlayView view = new OverlayView(this, style, new OverlayView.Listener() {
+                @Override
+                public void onTap(int target) {
+                    switch (target) {
+                        case OverlayView.TARGET_CLOSE:
+                            // Also updates the main activity switch
+                            state.set(StateStore.SWITCH_STATE, false);
+                            stopSelf();
+                            break;
+                        case OverlayView.TARGET_CAPTURE:
+                            captureHierarchy();
+                            break;
+                        case OverlayView.TARGET_EXPORT:
+                            exportHistory();
+                            break;
+                        case OverlayView.TARGET_PACKAGE:
+                            copyToClipboard(currentPackageName, "Package name copied");
+                            break;
+                        case OverlayView.TARGET_ACTIVITY:
+                            copyToClipboard(currentActivityName, "Activity name copied");
+                            break;
+                        case OverlayView.TARGET_VISIBLE_APPS:
+                            copyToClipboard(visibleApps, getString(R.string.visible_apps_copied));
+                            break;
+                    }
+                }
 
-        LayoutInflater inflater = (LayoutInflater) getSystemService(LAYOUT_INFLATER_SERVICE);
-        floatingView = inflater.inflate(R.layout.floating_window, null);
+                @Override
+                public void onLongPress(int target) {
+                    if (target == OverlayView.TARGET_LATENCY) {
+                        copyLatencyReport();
+                    }
+                }
+
+                @Override
+                public void onDragStart() {
+                    overlayMover.startDrag();
+                }
+
+                @Override
+                public void onDrag(float dx, float dy) {
+                    overlayMover.dragTo(dx, dy);
+                }
 
-        tvPackage = floatingView.findViewById(R.id.tvPackage);
-        tvActivity = floatingView.findViewById(R.id.tvActivity);
-        btnClose = floatingView.findViewById(R.id.btnClose);
+                @Override
+                public void onDragEnd(float velocityX, float velocityY) {
+                    overlayMover.release(velocityX, velocityY);
+                }
+            });
+        view.setCompact(state.get(StateStore.OVERLAY_COMPACT));
+        return view;
+    }
 
-        // Set initial text
-        tvPackage.setText("Unknown");
-        tvActivity.setText("Unknown");
+    private void attachFloatingWindow(OverlayView.Style style, AppInfoCache cache) {
+        if (destroyed) {
+            // Stopped while the view was being prepared
+            cache.release();
+            return;
+        }
+        OverlayView view = createOverlayView(style);
+        windowManager = (WindowManager) getSystemService(WINDOW_SERVICE);
+        floatingView = view;
+        appInfoCache = cache;
 
         // Set up window parameters - make it fully movable
-        final WindowManager.LayoutParams params = new WindowManager.LayoutParams(
+        params = new WindowManager.LayoutParams(
             WindowManager.LayoutParams.WRAP_CONTENT,
             WindowManager.LayoutParams.WRAP_CONTENT,
             Build.VERSION.SDK_INT >= Build.VERSION_CODES.O ?
@@ -175,75 +410,165 @@ public class FloatingService extends Service {
             WindowManager.LayoutParams.FLAG_LAYOUT_IN_SCREEN,
             PixelFormat.TRANSLUCENT);
 
+        // Reopen where it was left
         params.gravity = Gravity.TOP | Gravity.START;
-        params.x = 100;
-        params.y = 300;
+        params.x = state.get(StateStore.OVERLAY_X);
+        params.y = state.get(StateStore.OVERLAY_Y);
 
         // Add view to window manager
         windowManager.addView(floatingView, params);
 
-        // Set up close button
-        btnClose.setOnClickListener(new View.OnClickListener() {
+        overlayMover = new OverlayMover(windowManager, floatingView, params, new OverlayMover.Listener() {
                 @Override
-                public void onClick(View v) {
-                    stopSelf();
-                    // Also update the main activity switch
-                    Intent intent = new Intent("FLOATING_WINDOW_CLOSED");
-                    sendBroadcast(intent);
+                public void onSettled(int x, int y) {
+                    state.set(StateStore.OVERLAY_X, x);
+                    state.set(StateStore.OVERLAY_Y, y);
                 }
             });
 
-        // Set up click listeners for copy functionality
-        tvPackage.setOnClickListener(new View.OnClickListener() {
-                @Override
-                public void onClick(View v) {
-                    copyToClipboard(currentPackageName, "Package name copied");
-                }
-            });
+        state.addListener(stateListener);
+        setLatencyDebug(state.get(StateStore.LATENCY_DEBUG));
+        if (currentPackageName.length() > 0) {
+            // Transitions that arrived while the view was being built
+            floatingView.setContent(currentPackageName, currentActivityName);
+            if (!appInfoCache.request(currentPackageName, appInfoCallback)) {
+                floatingView.setAppInfo(currentPackageName, null);
+            }
+        }
+        WindowModel windowModel = MyAccessibilityService.getWindowModel();
+        windowModel.addListener(windowListener);
+        updateVisibleApps(windowModel);
+        startup.mark("attach", System.nanoTime());
 
-        tvActivity.setOnClickListener(new View.OnClickListener() {
+        floatingView.getViewTreeObserver().addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
                 @Override
-                public void onClick(View v) {
-                    copyToClipboard(currentActivityName, "Activity name copied");
+                public boolean onPreDraw() {
+                    if (floatingView != null) {
+                        floatingView.getViewTreeObserver().removeOnPreDrawListener(this);
+                    }
+                    startup.mark("first frame", System.nanoTime());
+                    Log.i("FloatingService", "Overlay startup: " + startup);
+                    return true;
                 }
             });
+    }
 
-        // Set up drag functionality for the entire floating view
-        floatingView.setOnTouchListener(new View.OnTouchListener() {
-                private int initialX;
-                private int initialY;
-                private float initialTouchX;
-                private float initialTouchY;
+    // One line per app, the focused one marked, or null when there is only one
+    private void updateVisibleApps(WindowModel model) {
+        StringBuilder text = new StringBuilder();
+        int apps = 0;
+        for (int i = 0; i < model.getWindowCount(); i++) {
+            WindowModel.Window window = model.getWindow(i);
+            String packageName = window.getPackageName();
+            if (packageName == null || isListedBefore(model, i, packageName)) {
+                continue;
+            }
+            if (apps > 0) {
+                text.append('\n');
+            }
+            text.append(isFocusedApp(model, packageName) ? "▸ " : "• ").append(packageName);
+            apps++;
+        }
+        visibleApps = apps > 1 ? text.toString() : null;
+        floatingView.setVisibleApps(visibleApps);
+    }
 
-                @Override
-                public boolean onTouch(View v, MotionEvent event) {
-                    switch (event.getAction()) {
-                        case MotionEvent.ACTION_DOWN:
-                            initialX = params.x;
-                            initialY = params.y;
-                            initialTouchX = event.getRawX();
-                            initialTouchY = event.getRawY();
-                            return true;
-
-                        case MotionEvent.ACTION_UP:
-                            // Check if it was a click (not drag)
-                            if (Math.abs(event.getRawX() - initialTouchX) < 10 && 
-                                Math.abs(event.getRawY() - initialTouchY) < 10) {
-                                // It was a click, do nothing (let individual click listeners handle it)
-                            }
-                            return true;
+    // An app with several windows, e.g. a dialog over its activity, is listed once
+    private static boolean isListedBefore(WindowModel model, int index, String packageName) {
+        for (int i = 0; i < index; i++) {
+            if (packageName.equals(model.getWindow(i).getPackageName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isFocusedApp(WindowModel model, String packageName) {
+        for (int i = 0; i < model.getWindowCount(); i++) {
+            WindowModel.Window window = model.getWindow(i);
+            if (window.isFocused() && packageName.equals(window.getPackageName())) {
+                return true;
+            }
+        }
+        return false;
+    }
 
-                        case MotionEvent.ACTION_MOVE:
-                            params.x = initialX + (int) (event.getRawX() - initialTouchX);
-                            params.y = initialY + (int) (event.getRawY() - initialTouchY);
+    // Picking the file to export to needs an activity
+    private void exportHistory() {
+        Intent intent = new Intent(this, MainActivity.class);
+        intent.setAction(MainActivity.ACTION_EXPORT_HISTORY);
+        intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK | Intent.FLAG_ACTIVITY_SINGLE_TOP);
+        startActivity(intent);
+    }
 
-                            // Allow movement anywhere on screen
-                            windowManager.updateViewLayout(floatingView, params);
-                            return true;
+    private void captureHierarchy() {
+        boolean started = MyAccessibilityService.captureHierarchy(new HierarchyCapturer.Callback() {
+                @Override
+                public void onCaptureFinished(File file, int nodeCount, boolean truncated, long durationMillis) {
+                    if (!isRunning) {
+                        return;
                     }
-                    return false;
+                    floatingView.setCaptureEnabled(true);
+                    if (file == null) {
+                        Toast.makeText(FloatingService.this, R.string.capture_failed, Toast.LENGTH_SHORT).show();
+                        return;
+                    }
+                    String message = getString(truncated ? R.string.capture_saved_truncated : R.string.capture_saved,
+                                               nodeCount, durationMillis, file.getAbsolutePath());
+                    Toast.makeText(FloatingService.this, message, Toast.LENGTH_LONG).show();
                 }
             });
+        if (started) {
+            floatingView.setCaptureEnabled(false);
+        } else {
+            Toast.makeText(this, R.string.capture_unavailable, Toast.LENGTH_SHORT).show();
+        }
+    }
+
+    private void setLatencyDebug(boolean enabled) {
+        if (enabled == latency.isEnabled()) {
+            return;
+        }
+        latency.reset();
+        latency.setEnabled(enabled);
+        renderPending = false;
+        handler.removeCallbacks(latencyRefresher);
+        if (floatingView != null && !enabled) {
+            floatingView.setLatencyText(null);
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN && floatingView != null) {
+            if (enabled) {
+                if (drawListener == null) {
+                    drawListener = new ViewTreeObserver.OnDrawListener() {
+                        @Override
+                        public void onDraw() {
+                            if (renderPending) {
+                                renderPending = false;
+                                latency.onRendered(shownEventTime, shownDeliveredNanos,
+                                                   SystemClock.uptimeMillis(), System.nanoTime());
+                            }
+                        }
+                    };
+                }
+                floatingView.getViewTreeObserver().addOnDrawListener(drawListener);
+            } else if (drawListener != null) {
+                floatingView.getViewTreeObserver().removeOnDrawListener(drawListener);
+            }
+        }
+        if (enabled) {
+            latencyRefresher.run();
+        }
+    }
+
+    private void copyLatencyReport() {
+        StringBuilder report = new StringBuilder();
+        try {
+            latency.writeReport(report);
+            report.append("startup: ").append(lastStartup).append('\n');
+        } catch (IOException e) {
+            // StringBuilder does not throw
+        }
+        copyToClipboard(report.toString(), getString(R.string.latency_copied));
     }
 
     private void copyToClipboard(String text, String message) {
@@ -262,4 +587,9 @@ public class FloatingService extends Service {
     public static boolean isRunning() {
         return isRunning;
     }
+
+    /** Stages of the most recent start, null if the overlay was never shown. */
+    static StartupTimer getLastStartup() {
+        return lastStartup;
+    }
 }
@@ -0,0 +1,114 @@
+package alienkrishn.currentactivity.app;
+
+import android.content.Context;
+import android.os.Build;
+import android.os.Debug;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.io.IOException;
+
+import alienkrishn.currentactivity.app.core.DetectionPipeline;
+import alienkrishn.currentactivity.app.core.HealthMetrics;
+import alienkrishn.currentactivity.app.core.StringInterner;
+
+/**
+ * Feeds {@link HealthMetrics} once a second on the main thread while the
+ * accessibility service is connected and the screen is on, and writes the
+ * report shown by {@link DiagnosticsActivity} and by dumpsys:
+ *
+ * {@code adb shell dumpsys activity service alienkrishn.currentactivity.app/.MyAccessibilityService}
+ */
+final class HealthMonitor {
+
+    private static final long SAMPLE_INTERVAL_MS = 1000;
+    // Cumulative bytes allocated by the process, ART only
+    private static final String STAT_BYTES_ALLOCATED = "art.gc.bytes-allocated";
+
+    // The sampling monitor, read by dump on a binder thread
+    private static volatile HealthMonitor active;
+
+    private final DetectionPipeline pipeline;
+    private final HealthMetrics metrics = HealthMetrics.getInstance();
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private volatile boolean running = false;
+
+    private final Runnable sampler = new Runnable() {
+        @Override
+        public void run() {
+            Runtime runtime = Runtime.getRuntime();
+            metrics.sample(pipeline.getReceivedCount(),
+                           pipeline.getFilteredCount() + pipeline.getDuplicateCount() +
+                           pipeline.getClassifiedAwayCount(),
+                           pipeline.getPublishedCount(),
+                           runtime.totalMemory() - runtime.freeMemory(),
+                           allocatedBytes());
+            handler.postDelayed(this, SAMPLE_INTERVAL_MS);
+        }
+    };
+
+    HealthMonitor(DetectionPipeline pipeline) {
+        this.pipeline = pipeline;
+    }
+
+    void start() {
+        if (!running) {
+            running = true;
+            active = this;
+            metrics.restartSampling();
+            sampler.run();
+        }
+    }
+
+    void stop() {
+        if (running) {
+            running = false;
+            handler.removeCallbacks(sampler);
+        }
+    }
+
+    /** Stops for good, e.g. when the service is unbound. */
+    void release() {
+        stop();
+        if (active == this) {
+            active = null;
+        }
+    }
+
+    private static long allocatedBytes() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            String value = Debug.getRuntimeStat(STAT_BYTES_ALLOCATED);
+            if (value != null) {
+                try {
+                    return Long.parseLong(value);
+                } catch (NumberFormatException e) {
+                    // Unexpected format, report it as unknown
+                }
+            }
+        }
+        return -1;
+    }
+
+    static void writeReport(Context context, Appendable out) throws IOException {
+        HealthMonitor monitor = active;
+        StateStore state = StateStore.get(context);
+        out.append("accessibility service: ")
+            .append(MyAccessibilityService.isRunning() ? "connected" : "not connected")
+            .append(monitor != null && monitor.running ? ", sampling\n" : ", not sampling\n");
+        out.append("overlay: ").append(FloatingService.isRunning() ? "showing" : "hidden")
+            .append(", restarted by the system ").append(String.valueOf(state.get(StateStore.OVERLAY_RESTARTS)))
+            .append(" times\n");
+        out.append("overlay startup: ").append(String.valueOf(FloatingService.getLastStartup())).append('\n');
+        out.append("trigger actions dropped: ").append(String.valueOf(TriggerRunner.getDroppedCount())).append('\n');
+        if (monitor != null) {
+            StringInterner interner = monitor.pipeline.getInterner();
+            out.append("interned names: ").append(String.valueOf(interner.size())).append('/')
+                .append(String.valueOf(interner.getCapacity()))
+                .append(", hits ").append(String.valueOf(interner.getHitCount()))
+                .append(", misses ").append(String.valueOf(interner.getMissCount()))
+                .append(", evictions ").append(String.valueOf(interner.getEvictionCount())).append('\n');
+        }
+        out.append('\n');
+        HealthMetrics.getInstance().writeReport(out);
+    }
+}
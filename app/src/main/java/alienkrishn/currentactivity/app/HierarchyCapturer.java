@@ -0,0 +1,237 @@
+package alienkrishn.currentactivity.app;
+
+import android.accessibilityservice.AccessibilityService;
+import android.graphics.Rect;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+import android.view.accessibility.AccessibilityNodeInfo;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+import alienkrishn.currentactivity.app.core.HierarchySnapshot;
+
+/**
+ * Captures the active window's view hierarchy on a background thread.
+ *
+ * The walk is iterative with an explicit stack, stops at a node budget or a
+ * time budget, and recycles every AccessibilityNodeInfo as soon as it has been
+ * copied. Nodes land in a reused HierarchySnapshot which is then written out
+ * as JSON on the same thread, so neither the overlay nor the inspected app is
+ * held up by a deep tree.
+ */
+final class HierarchyCapturer {
+
+    interface Callback {
+        /** Main thread. file is null if nothing could be captured. */
+        void onCaptureFinished(File file, int nodeCount, boolean truncated, long durationMillis);
+    }
+
+    private static final String TAG = "HierarchyCapturer";
+    static final int MAX_NODES = 3000;
+    static final long MAX_WALK_NANOS = 300 * 1000000L;
+    // Checking the clock on every node would cost more than it saves
+    private static final int CLOCK_CHECK_INTERVAL = 32;
+
+    private final AccessibilityService service;
+    private final HandlerThread thread;
+    private final Handler handler;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    // Worker thread only, reused between captures
+    private final HierarchySnapshot snapshot = new HierarchySnapshot();
+    private final Rect bounds = new Rect();
+    private AccessibilityNodeInfo[] nodeStack = new AccessibilityNodeInfo[64];
+    private int[] parentStack = new int[64];
+    private int[] depthStack = new int[64];
+
+    private boolean busy;
+
+    HierarchyCapturer(AccessibilityService service) {
+        this.service = service;
+        thread = new HandlerThread("HierarchyCapture", Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        handler = new Handler(thread.getLooper());
+    }
+
+    /** Main thread. Returns false if a capture is already running. */
+    boolean capture(final String packageName, final String activityName, final Callback callback) {
+        if (busy) {
+            return false;
+        }
+        busy = true;
+        handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    runCapture(packageName, activityName, callback);
+                }
+            });
+        return true;
+    }
+
+    boolean isBusy() {
+        return busy;
+    }
+
+    void release() {
+        handler.removeCallbacksAndMessages(null);
+        thread.quit();
+    }
+
+    private void runCapture(String packageName, String activityName, final Callback callback) {
+        long start = System.nanoTime();
+        File file = null;
+        snapshot.clear();
+        snapshot.setSource(packageName, activityName);
+        try {
+            AccessibilityNodeInfo root = service.getRootInActiveWindow();
+            if (root != null) {
+                walk(root, start);
+                snapshot.setCaptureNanos(System.nanoTime() - start);
+                file = export();
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Hierarchy capture failed", e);
+            file = null;
+        }
+
+        final File result = file;
+        final int nodeCount = snapshot.size();
+        final boolean truncated = snapshot.isTruncated();
+        final long durationMillis = (System.nanoTime() - start) / 1000000L;
+        // Let go of the strings now rather than at the next capture
+        snapshot.clear();
+        mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    busy = false;
+                    callback.onCaptureFinished(result, nodeCount, truncated, durationMillis);
+                }
+            });
+    }
+
+    private void walk(AccessibilityNodeInfo root, long start) {
+        int top = 0;
+        push(top++, root, -1, 0);
+        int visited = 0;
+        boolean truncated = false;
+
+        while (top > 0) {
+            top--;
+            AccessibilityNodeInfo node = nodeStack[top];
+            int parent = parentStack[top];
+            int depth = depthStack[top];
+            nodeStack[top] = null;
+
+            if (snapshot.size() >= MAX_NODES ||
+                (++visited % CLOCK_CHECK_INTERVAL == 0 && System.nanoTime() - start > MAX_WALK_NANOS)) {
+                node.recycle();
+                truncated = true;
+                break;
+            }
+
+            int index = copy(node, parent, depth);
+            int childCount = node.getChildCount();
+            // Push in reverse so children come off the stack in order
+            for (int i = childCount - 1; i >= 0; i--) {
+                AccessibilityNodeInfo child = node.getChild(i);
+                if (child != null) {
+                    push(top++, child, index, depth + 1);
+                }
+            }
+            node.recycle();
+        }
+
+        // Whatever is left over was never visited
+        while (top > 0) {
+            top--;
+            nodeStack[top].recycle();
+            nodeStack[top] = null;
+        }
+        snapshot.setTruncated(truncated);
+    }
+
+    private void push(int slot, AccessibilityNodeInfo node, int parent, int depth) {
+        if (slot == nodeStack.length) {
+            int capacity = slot * 2;
+            AccessibilityNodeInfo[] nodes = new AccessibilityNodeInfo[capacity];
+            System.arraycopy(nodeStack, 0, nodes, 0, slot);
+            nodeStack = nodes;
+            int[] parents = new int[capacity];
+            System.arraycopy(parentStack, 0, parents, 0, slot);
+            parentStack = parents;
+            int[] depths = new int[capacity];
+            System.arraycopy(depthStack, 0, depths, 0, slot);
+            depthStack = depths;
+        }
+        nodeStack[slot] = node;
+        parentStack[slot] = parent;
+        depthStack[slot] = depth;
+    }
+
+    private int copy(AccessibilityNodeInfo node, int parent, int depth) {
+        node.getBoundsInScreen(bounds);
+        int flags = 0;
+        flags |= node.isEnabled() ? HierarchySnapshot.FLAG_ENABLED : 0;
+        flags |= node.isClickable() ? HierarchySnapshot.FLAG_CLICKABLE : 0;
+        flags |= node.isLongClickable() ? HierarchySnapshot.FLAG_LONG_CLICKABLE : 0;
+        flags |= node.isFocusable() ? HierarchySnapshot.FLAG_FOCUSABLE : 0;
+        flags |= node.isFocused() ? HierarchySnapshot.FLAG_FOCUSED : 0;
+        flags |= node.isScrollable() ? HierarchySnapshot.FLAG_SCROLLABLE : 0;
+        flags |= node.isCheckable() ? HierarchySnapshot.FLAG_CHECKABLE : 0;
+        flags |= node.isChecked() ? HierarchySnapshot.FLAG_CHECKED : 0;
+        flags |= node.isSelected() ? HierarchySnapshot.FLAG_SELECTED : 0;
+        flags |= node.isPassword() ? HierarchySnapshot.FLAG_PASSWORD : 0;
+
+        String viewId = null;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            flags |= node.isVisibleToUser() ? HierarchySnapshot.FLAG_VISIBLE : 0;
+        } else {
+            flags |= HierarchySnapshot.FLAG_VISIBLE;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            viewId = node.getViewIdResourceName();
+            flags |= node.isEditable() ? HierarchySnapshot.FLAG_EDITABLE : 0;
+        }
+
+        // Never copy what is typed into password fields
+        CharSequence text = (flags & HierarchySnapshot.FLAG_PASSWORD) != 0 ? null : node.getText();
+        if (text == null) {
+            text = node.getContentDescription();
+        }
+        return snapshot.add(parent, depth, node.getClassName(), viewId, text,
+                            bounds.left, bounds.top, bounds.right, bounds.bottom, flags);
+    }
+
+    private File export() throws IOException {
+        File dir = service.getExternalFilesDir(null);
+        if (dir == null) {
+            // External storage not mounted
+            dir = service.getFilesDir();
+        }
+        dir = new File(dir, "captures");
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        String stamp = new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date());
+        File file = new File(dir, "hierarchy-" + stamp + ".json");
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"), 16 * 1024);
+        try {
+            snapshot.writeJson(writer);
+        } finally {
+            writer.close();
+        }
+        return file;
+    }
+}
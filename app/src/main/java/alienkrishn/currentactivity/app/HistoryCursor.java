@@ -0,0 +1,131 @@
+package alienkrishn.currentactivity.app;
+
+import android.database.AbstractWindowedCursor;
+import android.database.CursorWindow;
+import android.os.Build;
+
+import alienkrishn.currentactivity.app.core.JournalIndex;
+
+/**
+ * Cursor over a {@link JournalIndex.Query} that fills its CursorWindow one
+ * page at a time, when the caller moves outside the rows it already holds.
+ *
+ * Across processes the window is what gets shipped to the caller, so paging
+ * here also bounds what a remote client receives per round trip.
+ */
+final class HistoryCursor extends AbstractWindowedCursor {
+
+    // Small enough to fill in well under a frame, large enough that a list
+    // scrolling through the history rarely waits on a refill
+    private static final int PAGE_ROWS = 256;
+
+    private static final int COLUMN_ID = 0;
+    private static final int COLUMN_TIME = 1;
+    private static final int COLUMN_PACKAGE = 2;
+    private static final int COLUMN_ACTIVITY = 3;
+
+    private final JournalIndex.Query query;
+    private final String[] columnNames;
+    private final int[] columns;
+    private final int count;
+
+    HistoryCursor(JournalIndex.Query query, String[] projection, int limit) {
+        this.query = query;
+        this.columnNames = projection.clone();
+        this.columns = new int[projection.length];
+        for (int i = 0; i < projection.length; i++) {
+            columns[i] = columnIndex(projection[i]);
+        }
+        this.count = Math.min(query.getCount(), limit);
+    }
+
+    private static int columnIndex(String name) {
+        for (int i = 0; i < HistoryProvider.COLUMNS.length; i++) {
+            if (HistoryProvider.COLUMNS[i].equals(name)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Unknown column " + name);
+    }
+
+    @Override
+    public int getCount() {
+        return count;
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return columnNames;
+    }
+
+    @Override
+    public boolean onMove(int oldPosition, int newPosition) {
+        if (mWindow == null || newPosition < mWindow.getStartPosition() ||
+            newPosition >= mWindow.getStartPosition() + mWindow.getNumRows()) {
+            fillPage(newPosition);
+        }
+        return true;
+    }
+
+    private void fillPage(int position) {
+        if (mWindow == null) {
+            setWindow(newWindow());
+        } else {
+            mWindow.clear();
+        }
+        // Keep a few rows before the wanted one, so stepping back does not refill at once
+        int start = Math.max(0, Math.min(position - PAGE_ROWS / 4, count - PAGE_ROWS));
+        int end = Math.min(start + PAGE_ROWS, count);
+        mWindow.setStartPosition(start);
+        mWindow.setNumColumns(columns.length);
+        for (int row = 0; start + row < end && query.moveToPosition(start + row); row++) {
+            if (!mWindow.allocRow()) {
+                break;
+            }
+            if (!putRow(row)) {
+                mWindow.freeLastRow();
+                break;
+            }
+        }
+    }
+
+    private boolean putRow(int row) {
+        for (int i = 0; i < columns.length; i++) {
+            boolean stored;
+            switch (columns[i]) {
+                case COLUMN_ID:
+                    stored = mWindow.putLong(query.getRecordId(), row, i);
+                    break;
+                case COLUMN_TIME:
+                    stored = mWindow.putLong(query.getWallTimeMillis(), row, i);
+                    break;
+                case COLUMN_PACKAGE:
+                    stored = putString(query.getPackageName(), row, i);
+                    break;
+                case COLUMN_ACTIVITY:
+                    stored = putString(query.getClassName(), row, i);
+                    break;
+                default:
+                    // The source column
+                    stored = mWindow.putLong(query.getSource(), row, i);
+                    break;
+            }
+            if (!stored) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean putString(String value, int row, int column) {
+        return value != null ? mWindow.putString(value, row, column) : mWindow.putNull(row, column);
+    }
+
+    @SuppressWarnings("deprecation")
+    private static CursorWindow newWindow() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH_MR1) {
+            return new CursorWindow("HistoryCursor");
+        }
+        return new CursorWindow(false);
+    }
+}
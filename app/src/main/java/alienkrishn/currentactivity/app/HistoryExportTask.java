@@ -0,0 +1,149 @@
+package alienkrishn.currentactivity.app;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.provider.DocumentsContract;
+import android.util.Log;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import alienkrishn.currentactivity.app.core.HistoryExporter;
+import alienkrishn.currentactivity.app.core.JournalIndex;
+
+/**
+ * Exports the recorded history to a document picked through the Storage
+ * Access Framework, on a background thread.
+ *
+ * The journal is streamed through {@link HistoryExporter}, so memory use does
+ * not depend on how long the history is. Progress is reported on the main
+ * thread at most every {@link HistoryExporter#PROGRESS_ROWS} rows. A cancelled
+ * or failed export deletes the partial document rather than leave a truncated
+ * file behind.
+ */
+final class HistoryExportTask {
+
+    private static final String TAG = "HistoryExportTask";
+    private static final int BUFFER_CHARS = 64 * 1024;
+
+    interface Callback {
+        void onExportProgress(int rowsWritten, int rowCount);
+
+        /** @param error null if the export completed or was cancelled */
+        void onExportFinished(int rowCount, boolean cancelled, IOException error);
+    }
+
+    private final Context context;
+    private final Uri target;
+    private final HistoryExporter.Format format;
+    private final Callback callback;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final HandlerThread thread;
+    private volatile boolean cancelled;
+
+    private HistoryExportTask(Context context, Uri target, HistoryExporter.Format format, Callback callback) {
+        this.context = context.getApplicationContext();
+        this.target = target;
+        this.format = format;
+        this.callback = callback;
+        thread = new HandlerThread("HistoryExport", Process.THREAD_PRIORITY_BACKGROUND);
+    }
+
+    static HistoryExportTask start(Context context, Uri target, HistoryExporter.Format format, Callback callback) {
+        final HistoryExportTask task = new HistoryExportTask(context, target, format, callback);
+        task.thread.start();
+        new Handler(task.thread.getLooper()).post(new Runnable() {
+                @Override
+                public void run() {
+                    task.run();
+                    task.thread.quit();
+                }
+            });
+        return task;
+    }
+
+    /** Stops at the next progress point; the callback still hears about it. */
+    void cancel() {
+        cancelled = true;
+    }
+
+    private void run() {
+        int rowCount = 0;
+        boolean completed = false;
+        IOException error = null;
+        JournalIndex index = new JournalIndex(JournalRecorder.getJournalDirectory(context));
+        try {
+            JournalIndex.Query query = index.query(Long.MIN_VALUE, Long.MAX_VALUE, null);
+            rowCount = query.getCount();
+            OutputStream stream = context.getContentResolver().openOutputStream(target);
+            if (stream == null) {
+                throw new IOException("Cannot open " + target);
+            }
+            Writer writer = new BufferedWriter(new OutputStreamWriter(stream, "UTF-8"), BUFFER_CHARS);
+            try {
+                completed = HistoryExporter.export(query, format, writer, new HistoryExporter.Listener() {
+                        @Override
+                        public boolean onProgress(final int rowsWritten, final int rowCount) {
+                            mainHandler.post(new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        callback.onExportProgress(rowsWritten, rowCount);
+                                    }
+                                });
+                            return !cancelled;
+                        }
+                    });
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Export to " + target + " failed", e);
+            error = e;
+        } catch (RuntimeException e) {
+            // E.g. a SecurityException for a revoked document; the callback must still hear about it
+            Log.e(TAG, "Export to " + target + " failed", e);
+            error = new IOException(e.toString(), e);
+        } finally {
+            try {
+                index.close();
+            } catch (IOException e) {
+                // Read-only, nothing was lost
+            }
+        }
+        if (!completed) {
+            deletePartial();
+        }
+
+        final int rows = rowCount;
+        final boolean wasCancelled = !completed && error == null;
+        final IOException failure = error;
+        mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    callback.onExportFinished(rows, wasCancelled, failure);
+                }
+            });
+    }
+
+    private void deletePartial() {
+        try {
+            if ("file".equals(target.getScheme())) {
+                new File(target.getPath()).delete();
+            } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+                DocumentsContract.deleteDocument(context.getContentResolver(), target);
+            }
+        } catch (Exception e) {
+            // Some providers do not support deleting, the partial file stays
+            Log.w(TAG, "Cannot delete partial export " + target, e);
+        }
+    }
+}
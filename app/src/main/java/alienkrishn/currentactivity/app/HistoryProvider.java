@@ -0,0 +1,121 @@
+package alienkrishn.currentactivity.app;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.content.UriMatcher;
+import android.database.Cursor;
+import android.net.Uri;
+
+import java.io.IOException;
+
+import alienkrishn.currentactivity.app.core.JournalIndex;
+
+/**
+ * Lets other apps on the device ask what was in the foreground, from the
+ * journal, without running an accessibility service of their own. Callers
+ * need the READ_HISTORY permission declared in the manifest.
+ *
+ * {@code content://alienkrishn.currentactivity.app.history/transitions?from=&to=&package=&limit=}
+ *
+ * from and to are wall-clock milliseconds, from inclusive and to exclusive;
+ * every parameter is optional. Rows come oldest first. The returned cursor is
+ * a {@link HistoryCursor}, which reads one window of rows at a time as the
+ * caller moves through it, so a query over days of history never builds the
+ * whole result. Only transitions recorded while the journal was enabled are
+ * available.
+ */
+public class HistoryProvider extends ContentProvider {
+
+    static final String AUTHORITY = "alienkrishn.currentactivity.app.history";
+    static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY + "/transitions");
+
+    static final String COLUMN_ID = "_id";
+    static final String COLUMN_TIME = "time";
+    static final String COLUMN_PACKAGE = "package";
+    static final String COLUMN_ACTIVITY = "activity";
+    static final String COLUMN_SOURCE = "source";
+    static final String[] COLUMNS = {
+        COLUMN_ID, COLUMN_TIME, COLUMN_PACKAGE, COLUMN_ACTIVITY, COLUMN_SOURCE
+    };
+
+    private static final String PARAM_FROM = "from";
+    private static final String PARAM_TO = "to";
+    private static final String PARAM_PACKAGE = "package";
+    private static final String PARAM_LIMIT = "limit";
+
+    private static final String CONTENT_TYPE = "vnd.android.cursor.dir/vnd.alienkrishn.currentactivity.transition";
+    private static final int MATCH_TRANSITIONS = 1;
+
+    private final UriMatcher matcher = new UriMatcher(UriMatcher.NO_MATCH);
+    private JournalIndex index;
+
+    @Override
+    public boolean onCreate() {
+        matcher.addURI(AUTHORITY, "transitions", MATCH_TRANSITIONS);
+        // The index is opened on the first query, most processes never get one
+        return true;
+    }
+
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+        if (matcher.match(uri) != MATCH_TRANSITIONS) {
+            throw new IllegalArgumentException("Unknown URI " + uri);
+        }
+        if (selection != null) {
+            throw new IllegalArgumentException("Selection is not supported, use the from, to and package parameters");
+        }
+        long from = parseLong(uri, PARAM_FROM, Long.MIN_VALUE);
+        long to = parseLong(uri, PARAM_TO, Long.MAX_VALUE);
+        long limit = parseLong(uri, PARAM_LIMIT, Integer.MAX_VALUE);
+        if (limit < 0) {
+            throw new IllegalArgumentException("Negative limit " + limit);
+        }
+
+        try {
+            JournalIndex.Query result = getIndex().query(from, to, uri.getQueryParameter(PARAM_PACKAGE));
+            return new HistoryCursor(result, projection != null ? projection : COLUMNS,
+                (int) Math.min(limit, Integer.MAX_VALUE));
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot read the journal", e);
+        }
+    }
+
+    private synchronized JournalIndex getIndex() {
+        if (index == null) {
+            index = new JournalIndex(JournalRecorder.getJournalDirectory(getContext()));
+        }
+        return index;
+    }
+
+    private static long parseLong(Uri uri, String name, long defaultValue) {
+        String value = uri.getQueryParameter(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Bad " + name + " parameter: " + value);
+        }
+    }
+
+    @Override
+    public String getType(Uri uri) {
+        return matcher.match(uri) == MATCH_TRANSITIONS ? CONTENT_TYPE : null;
+    }
+
+    @Override
+    public Uri insert(Uri uri, ContentValues values) {
+        throw new UnsupportedOperationException("History is read-only");
+    }
+
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException("History is read-only");
+    }
+
+    @Override
+    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException("History is read-only");
+    }
+}
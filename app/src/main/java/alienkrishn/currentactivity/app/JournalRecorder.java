@@ -0,0 +1,133 @@
+package alienkrishn.currentactivity.app;
+
+import android.content.Context;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import alienkrishn.currentactivity.app.core.ActivityEvent;
+import alienkrishn.currentactivity.app.core.ActivityEventBus;
+import alienkrishn.currentactivity.app.core.TransitionJournal;
+
+/**
+ * Writes every transition on the event bus to the {@link TransitionJournal}
+ * from a background thread. The bus subscriber only schedules a drain, so the
+ * accessibility thread never touches the disk.
+ */
+final class JournalRecorder {
+
+    private static final String TAG = "JournalRecorder";
+
+    private final File directory;
+    private final HandlerThread thread;
+    private final Handler handler;
+    private final ActivityEventBus.Reader reader;
+    private final AtomicBoolean drainPending = new AtomicBoolean(false);
+    private TransitionJournal journal;
+
+    private final ActivityEventBus.Subscriber busSubscriber = new ActivityEventBus.Subscriber() {
+        @Override
+        public void onActivityEvent(ActivityEvent event) {
+            if (drainPending.compareAndSet(false, true)) {
+                handler.post(drainTask);
+            }
+        }
+    };
+
+    private final ActivityEventBus.Subscriber journalWriter = new ActivityEventBus.Subscriber() {
+        @Override
+        public void onActivityEvent(ActivityEvent event) {
+            try {
+                journal.append(event.getElapsedNanos(), event.getPackageName(), event.getClassName(), event.getSource());
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to append to journal", e);
+            }
+        }
+    };
+
+    private final Runnable drainTask = new Runnable() {
+        @Override
+        public void run() {
+            drainPending.set(false);
+            if (journal != null) {
+                reader.drain(journalWriter);
+            }
+        }
+    };
+
+    private JournalRecorder(Context context) {
+        directory = getJournalDirectory(context);
+        thread = new HandlerThread("JournalRecorder", Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        handler = new Handler(thread.getLooper());
+        reader = ActivityEventBus.getInstance().newReader();
+    }
+
+    static File getJournalDirectory(Context context) {
+        return new File(context.getFilesDir(), "journal");
+    }
+
+    static JournalRecorder start(Context context) {
+        final JournalRecorder recorder = new JournalRecorder(context);
+        recorder.handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        recorder.journal = TransitionJournal.open(recorder.directory, bootTimeMillis());
+                    } catch (IOException e) {
+                        Log.e(TAG, "Cannot open journal in " + recorder.directory, e);
+                    }
+                }
+            });
+        ActivityEventBus.getInstance().subscribe(recorder.busSubscriber);
+        return recorder;
+    }
+
+    void stop() {
+        ActivityEventBus.getInstance().unsubscribe(busSubscriber);
+        handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (journal != null) {
+                        // Pick up anything published before we unsubscribed
+                        reader.drain(journalWriter);
+                        try {
+                            journal.close();
+                        } catch (IOException e) {
+                            Log.e(TAG, "Failed to close journal", e);
+                        }
+                        journal = null;
+                    }
+                }
+            });
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            thread.quitSafely();
+        } else {
+            handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        thread.quit();
+                    }
+                });
+        }
+    }
+
+    /** Monotonic clock for journal timestamps, keeps counting in deep sleep. */
+    static long elapsedRealtimeNanos() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
+            return SystemClock.elapsedRealtimeNanos();
+        }
+        return SystemClock.elapsedRealtime() * 1000000L;
+    }
+
+    private static long bootTimeMillis() {
+        return System.currentTimeMillis() - SystemClock.elapsedRealtime();
+    }
+}
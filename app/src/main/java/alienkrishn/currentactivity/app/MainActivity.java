@@ -2,12 +2,9 @@ package alienkrishn.currentactivity.app;
 
 import android.app.Activity;
 import android.app.AlertDialog;
-import android.content.BroadcastReceiver;
-import android.content.Context;
+import android.content.ActivityNotFoundException;
 import android.content.DialogInterface;
 import android.content.Intent;
-import android.content.IntentFilter;
-import android.content.SharedPreferences;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
@@ -17,26 +14,45 @@ import android.view.MenuItem;
 import android.view.View;
 import android.widget.Button;
 import android.widget.CompoundButton;
+import android.widget.EditText;
+import android.widget.ProgressBar;
 import android.widget.Switch;
 import android.widget.Toast;
 
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+import alienkrishn.currentactivity.app.core.FilterRule;
+import alienkrishn.currentactivity.app.core.HistoryExporter;
+import alienkrishn.currentactivity.app.core.TriggerRule;
+
 public class MainActivity extends Activity {
 
+    /** Opens the export dialog, e.g. from the overlay. */
+    static final String ACTION_EXPORT_HISTORY = "alienkrishn.currentactivity.app.action.EXPORT_HISTORY";
+
     private static final int OVERLAY_PERMISSION_REQUEST = 1001;
-    private static final String PREFS_NAME = "CurrentActivityPrefs";
-    private static final String PREF_SWITCH_STATE = "switchState";
-    private static final String PREF_ACCESSIBILITY_ENABLED = "accessibilityEnabled";
+    // One request code per format, so the choice survives the activity being recreated meanwhile
+    private static final int EXPORT_REQUEST = 1100;
+    private static final int[] STABILITY_WINDOW_CHOICES_MS = { 0, 100, 250, 500 };
 
     private Switch toggleSwitch;
     private Button btnOverlayPermission;
     private Button btnAccessibility;
+    private StateStore state;
+    private HistoryExportTask exportTask;
+    private AlertDialog exportDialog;
 
-    private BroadcastReceiver floatingWindowClosedReceiver = new BroadcastReceiver() {
+    private final StateStore.Listener stateListener = new StateStore.Listener() {
         @Override
-        public void onReceive(Context context, Intent intent) {
-            if ("FLOATING_WINDOW_CLOSED".equals(intent.getAction())) {
+        public void onStateChanged(StateStore.Key<?> key) {
+            // The overlay was closed from its own close button
+            if (key == StateStore.SWITCH_STATE && !state.get(StateStore.SWITCH_STATE) && toggleSwitch.isChecked()) {
                 toggleSwitch.setChecked(false);
-                saveSwitchState(false);
                 Toast.makeText(MainActivity.this, "Floating window closed", Toast.LENGTH_SHORT).show();
             }
         }
@@ -51,17 +67,16 @@ public class MainActivity extends Activity {
         btnOverlayPermission = findViewById(R.id.btnOverlayPermission);
         btnAccessibility = findViewById(R.id.btnAccessibility);
 
-        // Register receiver for floating window close events
-        IntentFilter filter = new IntentFilter("FLOATING_WINDOW_CLOSED");
-        registerReceiver(floatingWindowClosedReceiver, filter);
+        // Follow floating window close events
+        state = StateStore.get(this);
+        state.addListener(stateListener);
 
         // Load saved switch state
-        SharedPreferences prefs = getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
-        boolean switchState = prefs.getBoolean(PREF_SWITCH_STATE, false);
+        boolean switchState = state.get(StateStore.SWITCH_STATE);
         toggleSwitch.setChecked(switchState);
 
         // Check if accessibility was previously enabled
-        boolean accessibilityWasEnabled = prefs.getBoolean(PREF_ACCESSIBILITY_ENABLED, false);
+        boolean accessibilityWasEnabled = state.get(StateStore.ACCESSIBILITY_ENABLED);
 
         // Check permissions and update UI
         checkPermissions();
@@ -109,11 +124,35 @@ public class MainActivity extends Activity {
                     openAccessibilitySettings();
                 }
             });
+
+        if (savedInstanceState == null) {
+            handleIntent(getIntent());
+        }
+    }
+
+    @Override
+    protected void onNewIntent(Intent intent) {
+        super.onNewIntent(intent);
+        setIntent(intent);
+        handleIntent(intent);
+    }
+
+    private void handleIntent(Intent intent) {
+        if (intent != null && ACTION_EXPORT_HISTORY.equals(intent.getAction())) {
+            showExportDialog();
+        }
     }
 
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         getMenuInflater().inflate(R.menu.options_menu, menu);
+
+        menu.findItem(R.id.menu_broadcast_compat).setChecked(state.get(StateStore.BROADCAST_COMPAT));
+        menu.findItem(R.id.menu_journal).setChecked(state.get(StateStore.JOURNAL_ENABLED));
+        menu.findItem(R.id.menu_stream).setChecked(state.get(StateStore.STREAM_ENABLED));
+        menu.findItem(R.id.menu_latency_debug).setChecked(state.get(StateStore.LATENCY_DEBUG));
+        menu.findItem(R.id.menu_trace_recording).setChecked(state.get(StateStore.TRACE_RECORDING));
+        menu.findItem(R.id.menu_overlay_compact).setChecked(state.get(StateStore.OVERLAY_COMPACT));
         return true;
     }
 
@@ -130,6 +169,58 @@ public class MainActivity extends Activity {
         } else if (id == R.id.menu_about) {
             showAboutDialog();
             return true;
+        } else if (id == R.id.menu_stats) {
+            startActivity(new Intent(this, StatsActivity.class));
+            return true;
+        } else if (id == R.id.menu_diagnostics) {
+            startActivity(new Intent(this, DiagnosticsActivity.class));
+            return true;
+        } else if (id == R.id.menu_filters) {
+            showFilterRulesDialog();
+            return true;
+        } else if (id == R.id.menu_stability) {
+            showStabilityWindowDialog();
+            return true;
+        } else if (id == R.id.menu_triggers) {
+            showTriggersDialog();
+            return true;
+        } else if (id == R.id.menu_journal) {
+            boolean enabled = !item.isChecked();
+            item.setChecked(enabled);
+            state.set(StateStore.JOURNAL_ENABLED, enabled);
+            return true;
+        } else if (id == R.id.menu_export) {
+            showExportDialog();
+            return true;
+        } else if (id == R.id.menu_stream) {
+            boolean enabled = !item.isChecked();
+            item.setChecked(enabled);
+            state.set(StateStore.STREAM_ENABLED, enabled);
+            return true;
+        } else if (id == R.id.menu_latency_debug) {
+            boolean enabled = !item.isChecked();
+            item.setChecked(enabled);
+            state.set(StateStore.LATENCY_DEBUG, enabled);
+            return true;
+        } else if (id == R.id.menu_trace_recording) {
+            boolean enabled = !item.isChecked();
+            item.setChecked(enabled);
+            state.set(StateStore.TRACE_RECORDING, enabled);
+            if (!enabled) {
+                Toast.makeText(this, getString(R.string.trace_saved,
+                                               EventTraceRecorder.getTraceDirectory(this)), Toast.LENGTH_LONG).show();
+            }
+            return true;
+        } else if (id == R.id.menu_overlay_compact) {
+            boolean enabled = !item.isChecked();
+            item.setChecked(enabled);
+            state.set(StateStore.OVERLAY_COMPACT, enabled);
+            return true;
+        } else if (id == R.id.menu_broadcast_compat) {
+            boolean enabled = !item.isChecked();
+            item.setChecked(enabled);
+            state.set(StateStore.BROADCAST_COMPAT, enabled);
+            return true;
         }
 
         return super.onOptionsItemSelected(item);
@@ -169,13 +260,275 @@ public class MainActivity extends Activity {
         builder.show();
     }
 
+    private void showFilterRulesDialog() {
+        final List<FilterRule> rules = FilterRuleStore.load(state);
+
+        CharSequence[] items = new CharSequence[rules.size()];
+        for (int i = 0; i < items.length; i++) {
+            items[i] = rules.get(i).toString();
+        }
+
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle("Window Filters");
+        if (items.length == 0) {
+            builder.setMessage("No custom rules. System windows, toasts, popups, dialogs and the keyboard are filtered by default.");
+        } else {
+            // Tap a rule to remove it
+            builder.setItems(items, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        FilterRule removed = rules.remove(which);
+                        FilterRuleStore.save(state, rules);
+                        Toast.makeText(MainActivity.this, "Removed: " + removed, Toast.LENGTH_SHORT).show();
+                    }
+                });
+        }
+        builder.setPositiveButton("Add Rule", new DialogInterface.OnClickListener() {
+                @Override
+                public void onClick(DialogInterface dialog, int which) {
+                    showAddFilterRuleDialog(rules);
+                }
+            });
+        builder.setNegativeButton("Close", null);
+        builder.setCancelable(true);
+        builder.show();
+    }
+
+    private void showAddFilterRuleDialog(final List<FilterRule> rules) {
+        final EditText input = new EditText(this);
+        input.setSingleLine(true);
+        input.setHint("exclude contains SoftInputWindow");
+
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle("Add Filter Rule");
+        builder.setMessage("include|exclude, then package, prefix, class, contains or regex, then the pattern.");
+        builder.setView(input);
+        builder.setPositiveButton("Add", new DialogInterface.OnClickListener() {
+                @Override
+                public void onClick(DialogInterface dialog, int which) {
+                    try {
+                        FilterRule rule = FilterRule.parse(input.getText().toString());
+                        if (!rules.contains(rule)) {
+                            rules.add(rule);
+                            FilterRuleStore.save(state, rules);
+                        }
+                        Toast.makeText(MainActivity.this, "Added: " + rule, Toast.LENGTH_SHORT).show();
+                    } catch (IllegalArgumentException e) {
+                        Toast.makeText(MainActivity.this, e.getMessage(), Toast.LENGTH_LONG).show();
+                    }
+                }
+            });
+        builder.setNegativeButton("Cancel", null);
+        builder.show();
+    }
+
+    private void showTriggersDialog() {
+        final List<TriggerRule> rules = TriggerRuleStore.load(state);
+
+        CharSequence[] items = new CharSequence[rules.size()];
+        for (int i = 0; i < items.length; i++) {
+            items[i] = rules.get(i).toString();
+        }
+
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle("Triggers");
+        if (items.length == 0) {
+            builder.setMessage("No triggers. Add one to vibrate, log, write a marker or send an intent when an activity comes to the foreground.");
+        } else {
+            // Tap a trigger to remove it
+            builder.setItems(items, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        TriggerRule removed = rules.remove(which);
+                        TriggerRuleStore.save(state, rules);
+                        Toast.makeText(MainActivity.this, "Removed: " + removed, Toast.LENGTH_SHORT).show();
+                    }
+                });
+        }
+        builder.setPositiveButton("Add Trigger", new DialogInterface.OnClickListener() {
+                @Override
+                public void onClick(DialogInterface dialog, int which) {
+                    showAddTriggerDialog(rules);
+                }
+            });
+        builder.setNegativeButton("Close", null);
+        builder.setCancelable(true);
+        builder.show();
+    }
+
+    private void showAddTriggerDialog(final List<TriggerRule> rules) {
+        final EditText input = new EditText(this);
+        input.setSingleLine(true);
+        input.setHint("vibrate activity com.foo/.CheckoutActivity");
+
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle("Add Trigger");
+        builder.setMessage("vibrate, log, marker[:label] or intent:<action>, then package, prefix, class, contains, regex or activity, then the pattern. Markers go to " +
+                           TriggerRunner.getMarkerFile(this));
+        builder.setView(input);
+        builder.setPositiveButton("Add", new DialogInterface.OnClickListener() {
+                @Override
+                public void onClick(DialogInterface dialog, int which) {
+                    try {
+                        TriggerRule rule = TriggerRule.parse(input.getText().toString());
+                        if (!rules.contains(rule)) {
+                            rules.add(rule);
+                            TriggerRuleStore.save(state, rules);
+                        }
+                        Toast.makeText(MainActivity.this, "Added: " + rule, Toast.LENGTH_SHORT).show();
+                    } catch (IllegalArgumentException e) {
+                        Toast.makeText(MainActivity.this, e.getMessage(), Toast.LENGTH_LONG).show();
+                    }
+                }
+            });
+        builder.setNegativeButton("Cancel", null);
+        builder.show();
+    }
+
+    private void showExportDialog() {
+        if (exportTask != null) {
+            Toast.makeText(this, "An export is already running", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        final HistoryExporter.Format[] formats = HistoryExporter.Format.values();
+        // Same order as the formats
+        CharSequence[] items = { "CSV", "JSON Lines", "Perfetto / Chrome trace" };
+
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle("Export History");
+        builder.setItems(items, new DialogInterface.OnClickListener() {
+                @Override
+                public void onClick(DialogInterface dialog, int which) {
+                    chooseExportTarget(formats[which]);
+                }
+            });
+        builder.setNegativeButton("Cancel", null);
+        builder.show();
+    }
+
+    private void chooseExportTarget(HistoryExporter.Format format) {
+        String stamp = new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date());
+        String name = "activity-history-" + stamp + "." + format.getExtension();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            Intent intent = new Intent(Intent.ACTION_CREATE_DOCUMENT);
+            intent.addCategory(Intent.CATEGORY_OPENABLE);
+            intent.setType(format.getMimeType());
+            intent.putExtra(Intent.EXTRA_TITLE, name);
+            try {
+                startActivityForResult(intent, EXPORT_REQUEST + format.ordinal());
+            } catch (ActivityNotFoundException e) {
+                Toast.makeText(this, "No app available to save the file", Toast.LENGTH_SHORT).show();
+            }
+            return;
+        }
+
+        // No document picker before KitKat, export next to the hierarchy captures
+        File dir = getExternalFilesDir(null);
+        if (dir == null) {
+            dir = getFilesDir();
+        }
+        dir = new File(dir, "exports");
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Toast.makeText(this, "Cannot create " + dir, Toast.LENGTH_SHORT).show();
+            return;
+        }
+        startExport(Uri.fromFile(new File(dir, name)), format);
+    }
+
+    private void startExport(final Uri target, HistoryExporter.Format format) {
+        ProgressBar progressBar = new ProgressBar(this, null, android.R.attr.progressBarStyleHorizontal);
+        progressBar.setIndeterminate(true);
+        int padding = Math.round(16 * getResources().getDisplayMetrics().density);
+        progressBar.setPadding(padding, padding, padding, padding);
+        final ProgressBar progress = progressBar;
+
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle("Exporting History");
+        builder.setMessage("Reading the journal…");
+        builder.setView(progress);
+        builder.setNegativeButton("Cancel", new DialogInterface.OnClickListener() {
+                @Override
+                public void onClick(DialogInterface dialog, int which) {
+                    if (exportTask != null) {
+                        exportTask.cancel();
+                    }
+                }
+            });
+        builder.setCancelable(false);
+        exportDialog = builder.show();
+
+        exportTask = HistoryExportTask.start(this, target, format, new HistoryExportTask.Callback() {
+                @Override
+                public void onExportProgress(int rowsWritten, int rowCount) {
+                    if (exportDialog == null) {
+                        return;
+                    }
+                    progress.setIndeterminate(false);
+                    progress.setMax(rowCount);
+                    progress.setProgress(rowsWritten);
+                    exportDialog.setMessage(rowsWritten + " of " + rowCount + " transitions");
+                }
+
+                @Override
+                public void onExportFinished(int rowCount, boolean cancelled, IOException error) {
+                    exportTask = null;
+                    if (exportDialog == null) {
+                        // The activity went away meanwhile
+                        return;
+                    }
+                    exportDialog.dismiss();
+                    exportDialog = null;
+                    String message;
+                    if (error != null) {
+                        message = "Export failed: " + error.getMessage();
+                    } else if (cancelled) {
+                        message = "Export cancelled";
+                    } else if (rowCount == 0) {
+                        message = "Nothing recorded yet, turn on Record History first";
+                    } else {
+                        message = "Exported " + rowCount + " transitions";
+                    }
+                    Toast.makeText(MainActivity.this, message, Toast.LENGTH_LONG).show();
+                }
+            });
+    }
+
+    private void showStabilityWindowDialog() {
+        int current = state.get(StateStore.STABILITY_WINDOW_MS);
+
+        CharSequence[] items = new CharSequence[STABILITY_WINDOW_CHOICES_MS.length];
+        int checked = -1;
+        for (int i = 0; i < items.length; i++) {
+            int millis = STABILITY_WINDOW_CHOICES_MS[i];
+            items[i] = millis == 0 ? "Off, show every activity" : millis + " ms";
+            if (millis == current) {
+                checked = i;
+            }
+        }
+
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle(R.string.menu_stability);
+        builder.setSingleChoiceItems(items, checked, new DialogInterface.OnClickListener() {
+                @Override
+                public void onClick(DialogInterface dialog, int which) {
+                    state.set(StateStore.STABILITY_WINDOW_MS, STABILITY_WINDOW_CHOICES_MS[which]);
+                    dialog.dismiss();
+                }
+            });
+        builder.setNegativeButton("Cancel", null);
+        builder.show();
+    }
+
     @Override
     protected void onDestroy() {
         super.onDestroy();
-        try {
-            unregisterReceiver(floatingWindowClosedReceiver);
-        } catch (Exception e) {
-            // Receiver was not registered
+        state.removeListener(stateListener);
+        if (exportTask != null) {
+            exportTask.cancel();
+        }
+        if (exportDialog != null) {
+            exportDialog.dismiss();
+            exportDialog = null;
         }
     }
 
@@ -186,11 +539,8 @@ public class MainActivity extends Activity {
         btnOverlayPermission.setVisibility(hasOverlayPermission ? View.GONE : View.VISIBLE);
         btnAccessibility.setVisibility(hasAccessibility ? View.GONE : View.VISIBLE);
 
-        // Save accessibility state
-        SharedPreferences prefs = getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
-        SharedPreferences.Editor editor = prefs.edit();
-        editor.putBoolean(PREF_ACCESSIBILITY_ENABLED, hasAccessibility);
-        editor.apply();
+        // Save accessibility state, only written if it changed
+        state.set(StateStore.ACCESSIBILITY_ENABLED, hasAccessibility);
 
         // Enable/disable switch based on permissions
         toggleSwitch.setEnabled(hasOverlayPermission && hasAccessibility);
@@ -240,11 +590,8 @@ public class MainActivity extends Activity {
         }
     }
 
-    private void saveSwitchState(boolean state) {
-        SharedPreferences prefs = getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
-        SharedPreferences.Editor editor = prefs.edit();
-        editor.putBoolean(PREF_SWITCH_STATE, state);
-        editor.apply();
+    private void saveSwitchState(boolean enabled) {
+        state.set(StateStore.SWITCH_STATE, enabled);
     }
 
     @Override
@@ -252,6 +599,10 @@ public class MainActivity extends Activity {
         super.onActivityResult(requestCode, resultCode, data);
         if (requestCode == OVERLAY_PERMISSION_REQUEST) {
             checkPermissions();
+        } else if (requestCode >= EXPORT_REQUEST && requestCode < EXPORT_REQUEST + HistoryExporter.Format.values().length) {
+            if (resultCode == RESULT_OK && data != null && data.getData() != null) {
+                startExport(data.getData(), HistoryExporter.Format.values()[requestCode - EXPORT_REQUEST]);
+            }
         }
     }
 
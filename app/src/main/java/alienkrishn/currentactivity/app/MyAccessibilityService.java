@@ -2,49 +2,260 @@ package alienkrishn.currentactivity.app;
 
 import android.accessibilityservice.AccessibilityService;
 import android.accessibilityservice.AccessibilityServiceInfo;
+import android.content.BroadcastReceiver;
+import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
+import android.graphics.Rect;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.view.Display;
 import android.view.accessibility.AccessibilityEvent;
+import android.view.accessibility.AccessibilityNodeInfo;
+import android.view.accessibility.AccessibilityWindowInfo;
 import android.util.Log;
 
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Collections;
+import java.util.List;
+
+import alienkrishn.currentactivity.app.core.ActivityEvent;
+import alienkrishn.currentactivity.app.core.ActivityEventBus;
+import alienkrishn.currentactivity.app.core.DetectionPipeline;
+import alienkrishn.currentactivity.app.core.DwellAggregator;
+import alienkrishn.currentactivity.app.core.LatencyTracker;
+import alienkrishn.currentactivity.app.core.TriggerMatcher;
+import alienkrishn.currentactivity.app.core.TriggerRule;
+import alienkrishn.currentactivity.app.core.WindowFilter;
+import alienkrishn.currentactivity.app.core.WindowModel;
+
 public class MyAccessibilityService extends AccessibilityService {
 
+    static final String ACTION_ACTIVITY_UPDATE = "CURRENT_ACTIVITY_UPDATE";
+
     private static boolean isRunning = false;
-    private String lastPackageName = "";
-    private String lastClassName = "";
+    // Connected instance, main thread only
+    private static MyAccessibilityService instance;
+    // Lives with the process so statistics survive the service being rebound
+    private static final DwellAggregator dwellAggregator = new DwellAggregator();
+    // Every visible app window while the overlay is showing, main thread only
+    private static final WindowModel windowModel = new WindowModel();
+    // Changes that can move, add or remove an app window or its focus, the rest are ignored
+    private static final int WINDOW_MODEL_CHANGES = AccessibilityEvent.WINDOWS_CHANGE_ADDED |
+        AccessibilityEvent.WINDOWS_CHANGE_REMOVED | AccessibilityEvent.WINDOWS_CHANGE_BOUNDS |
+        AccessibilityEvent.WINDOWS_CHANGE_LAYER | AccessibilityEvent.WINDOWS_CHANGE_FOCUSED |
+        AccessibilityEvent.WINDOWS_CHANGE_ACTIVE | AccessibilityEvent.WINDOWS_CHANGE_PIP;
+    // Window animations send a burst of changes, take one snapshot per frame at most
+    private static final long WINDOWS_REFRESH_DELAY_MS = 16;
+    // Filter, dedup and classification, everything but the Android plumbing
+    private final DetectionPipeline pipeline = new DetectionPipeline(ActivityEventBus.getInstance());
+
+    // Legacy system-wide broadcast for external listeners, off by default
+    private boolean broadcastCompat = false;
+    private StateStore state;
+    private JournalRecorder journalRecorder;
+    private TriggerRunner triggerRunner;
+    private StreamServer streamServer;
+    private EventTraceRecorder traceRecorder;
+    private ActivityIndexLoader activityIndexLoader;
+    private final AccessibilityPolicy policy = new AccessibilityPolicy();
+    private HierarchyCapturer hierarchyCapturer;
+    private HealthMonitor healthMonitor;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Rect windowBounds = new Rect();
+    private boolean windowTracking = false;
+    private boolean windowsRefreshPending = false;
+
+    private final Runnable windowsRefresh = new Runnable() {
+        @Override
+        public void run() {
+            windowsRefreshPending = false;
+            refreshWindows();
+        }
+    };
+
+    // Publishes a candidate activity once it has been on screen for the stability window
+    private final Runnable flushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (pipeline.flushPending(JournalRecorder.elapsedRealtimeNanos())) {
+                onPublished();
+            }
+            scheduleFlush();
+        }
+    };
+
+    private final StateStore.Listener stateListener = new StateStore.Listener() {
+        @Override
+        public void onStateChanged(StateStore.Key<?> key) {
+            if (key == StateStore.BROADCAST_COMPAT) {
+                broadcastCompat = state.get(StateStore.BROADCAST_COMPAT);
+                policy.broadcastCompat = broadcastCompat;
+                applyPolicy();
+            } else if (key == StateStore.JOURNAL_ENABLED) {
+                updateJournalRecorder(state.get(StateStore.JOURNAL_ENABLED));
+                applyPolicy();
+            } else if (key == StateStore.STREAM_ENABLED) {
+                updateStreamServer(state.get(StateStore.STREAM_ENABLED));
+                applyPolicy();
+            } else if (key == StateStore.TRACE_RECORDING) {
+                updateTraceRecorder(state.get(StateStore.TRACE_RECORDING));
+                applyPolicy();
+            } else if (key == StateStore.STABILITY_WINDOW_MS) {
+                updateStabilityWindow();
+            } else if (key == StateStore.FILTER_RULES) {
+                pipeline.setFilter(WindowFilter.withDefaults(FilterRuleStore.load(state)));
+            } else if (key == StateStore.TRIGGER_RULES) {
+                updateTriggerRunner(TriggerRuleStore.load(state));
+            }
+        }
+    };
+
+    private final BroadcastReceiver screenReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            boolean screenOn = Intent.ACTION_SCREEN_ON.equals(intent.getAction());
+            if (screenOn == policy.screenOn) {
+                return;
+            }
+            if (!screenOn) {
+                // Nobody is looking at the screen, so no dwell time accrues
+                dwellAggregator.pause(JournalRecorder.elapsedRealtimeNanos());
+            }
+            // Report whatever is in front once the screen is back
+            handler.removeCallbacks(flushRunnable);
+            pipeline.reset();
+            policy.screenOn = screenOn;
+            applyPolicy();
+            updateHealthMonitor();
+        }
+    };
 
     @Override
     public void onAccessibilityEvent(AccessibilityEvent event) {
         try {
-            if (event.getEventType() == AccessibilityEvent.TYPE_WINDOW_STATE_CHANGED) {
-                if (event.getPackageName() != null && event.getClassName() != null) {
-                    String packageName = event.getPackageName().toString();
-                    String className = event.getClassName().toString();
-
-                    // Filter out system windows and irrelevant events
-                    if (!packageName.equals("android") && 
-                        !className.contains("PopupWindow") &&
-                        !className.contains("Toast") &&
-                        !className.contains("DecorView")) {
-
-                        // Only send update if the activity actually changed
-                        if (!packageName.equals(lastPackageName) || !className.equals(lastClassName)) {
-                            lastPackageName = packageName;
-                            lastClassName = className;
-
-                            // Send broadcast with package and activity info
-                            Intent intent = new Intent("CURRENT_ACTIVITY_UPDATE");
-                            intent.putExtra("package", packageName);
-                            intent.putExtra("activity", className);
-                            sendBroadcast(intent);
-                        }
-                    }
+            // Events already queued when the subscription was dropped
+            if (policy.isPaused()) {
+                return;
+            }
+            int type = event.getEventType();
+            long elapsedNanos = JournalRecorder.elapsedRealtimeNanos();
+            if (traceRecorder != null) {
+                traceRecorder.record(type, event.getEventTime(), elapsedNanos,
+                                     event.getPackageName(), event.getClassName());
+            }
+            if (type == AccessibilityEvent.TYPE_WINDOWS_CHANGED) {
+                if (windowTracking && (Build.VERSION.SDK_INT < Build.VERSION_CODES.P ||
+                                       (event.getWindowChanges() & WINDOW_MODEL_CHANGES) != 0)) {
+                    scheduleWindowsRefresh();
+                }
+            } else if (type == AccessibilityEvent.TYPE_WINDOW_STATE_CHANGED && activityIndexLoader != null) {
+                LatencyTracker latency = LatencyTracker.getInstance();
+                if (latency.isEnabled()) {
+                    latency.onReceipt(event.getEventTime(), SystemClock.uptimeMillis(), System.nanoTime());
+                }
+
+                // Publishes to in-process consumers directly when an activity has settled
+                if (pipeline.onWindowStateChanged(event.getPackageName(), event.getClassName(), event.getEventTime(),
+                                                  elapsedNanos, ActivityEvent.SOURCE_WINDOW_STATE)) {
+                    onPublished();
                 }
+                scheduleFlush();
             }
         } catch (Exception e) {
             Log.e("AccessibilityService", "Error handling accessibility event", e);
         }
     }
 
+    private void onPublished() {
+        if (broadcastCompat) {
+            // Send broadcast with package and activity info
+            Intent intent = new Intent(ACTION_ACTIVITY_UPDATE);
+            intent.putExtra("package", pipeline.getLastPackageName());
+            intent.putExtra("activity", pipeline.getLastClassName());
+            sendBroadcast(intent);
+        }
+    }
+
+    // Wakes up when the pending candidate settles, in case no other event arrives before then
+    private void scheduleFlush() {
+        handler.removeCallbacks(flushRunnable);
+        long deadline = pipeline.getPendingDeadlineNanos();
+        if (deadline >= 0) {
+            long delayMillis = (deadline - JournalRecorder.elapsedRealtimeNanos() + 999999) / 1000000;
+            handler.postDelayed(flushRunnable, Math.max(0, delayMillis));
+        }
+    }
+
+    private void scheduleWindowsRefresh() {
+        if (!windowsRefreshPending) {
+            windowsRefreshPending = true;
+            handler.postDelayed(windowsRefresh, WINDOWS_REFRESH_DELAY_MS);
+        }
+    }
+
+    // Diffs the current app windows into the model, only new windows cost a lookup of their package
+    private void refreshWindows() {
+        if (!windowTracking) {
+            return;
+        }
+        List<AccessibilityWindowInfo> windows = getWindows();
+        windowModel.beginSnapshot();
+        for (int i = 0; i < windows.size(); i++) {
+            AccessibilityWindowInfo window = windows.get(i);
+            if (window.getType() == AccessibilityWindowInfo.TYPE_APPLICATION) {
+                window.getBoundsInScreen(windowBounds);
+                // getWindows() only lists windows on the default display
+                if (windowModel.put(window.getId(), Display.DEFAULT_DISPLAY, window.getLayer(), windowBounds.left, windowBounds.top,
+                                    windowBounds.right, windowBounds.bottom, window.isFocused())) {
+                    String packageName = pipeline.getInterner().intern(getWindowPackage(window));
+                    windowModel.setPackageName(window.getId(), packageName);
+                }
+            }
+            window.recycle();
+        }
+        windowModel.endSnapshot();
+    }
+
+    private static CharSequence getWindowPackage(AccessibilityWindowInfo window) {
+        AccessibilityNodeInfo root = window.getRoot();
+        if (root == null) {
+            // Not ready yet, asked again with the next snapshot
+            return null;
+        }
+        CharSequence packageName = root.getPackageName();
+        root.recycle();
+        return packageName;
+    }
+
+    private void updateWindowTracking() {
+        boolean tracking = policy.isWindowTracking();
+        if (tracking == windowTracking) {
+            return;
+        }
+        windowTracking = tracking;
+        if (tracking) {
+            // The first snapshot, later ones follow the window changes
+            scheduleWindowsRefresh();
+        } else {
+            handler.removeCallbacks(windowsRefresh);
+            windowsRefreshPending = false;
+            windowModel.clear();
+        }
+    }
+
+    private void updateStabilityWindow() {
+        int millis = state.get(StateStore.STABILITY_WINDOW_MS);
+        pipeline.setStabilityWindowNanos(millis * 1000000L);
+        scheduleFlush();
+    }
+
     @Override
     public void onInterrupt() {
         // Service was interrupted - but will restart automatically
@@ -54,25 +265,194 @@ public class MyAccessibilityService extends AccessibilityService {
     protected void onServiceConnected() {
         super.onServiceConnected();
         isRunning = true;
+        instance = this;
+
+        activityIndexLoader = new ActivityIndexLoader(this);
+        pipeline.setClassifier(activityIndexLoader);
+        ActivityEventBus.getInstance().subscribe(dwellAggregator);
+
+        state = StateStore.get(this);
+        broadcastCompat = state.get(StateStore.BROADCAST_COMPAT);
+        pipeline.setFilter(WindowFilter.withDefaults(FilterRuleStore.load(state)));
+        updateStabilityWindow();
+        state.addListener(stateListener);
+        updateJournalRecorder(state.get(StateStore.JOURNAL_ENABLED));
+        updateStreamServer(state.get(StateStore.STREAM_ENABLED));
+        updateTraceRecorder(state.get(StateStore.TRACE_RECORDING));
+        updateTriggerRunner(TriggerRuleStore.load(state));
 
-        // Configure the accessibility service
-        AccessibilityServiceInfo info = new AccessibilityServiceInfo();
-        info.eventTypes = AccessibilityEvent.TYPE_WINDOW_STATE_CHANGED;
-        info.feedbackType = AccessibilityServiceInfo.FEEDBACK_GENERIC;
-        info.notificationTimeout = 100;
-        info.flags = AccessibilityServiceInfo.DEFAULT |
-            AccessibilityServiceInfo.FLAG_INCLUDE_NOT_IMPORTANT_VIEWS |
-            AccessibilityServiceInfo.FLAG_REPORT_VIEW_IDS;
+        IntentFilter screenFilter = new IntentFilter(Intent.ACTION_SCREEN_ON);
+        screenFilter.addAction(Intent.ACTION_SCREEN_OFF);
+        registerReceiver(screenReceiver, screenFilter);
 
-        setServiceInfo(info);
+        // Configure the accessibility service for what is in use right now
+        policy.screenOn = isScreenOn();
+        policy.overlayVisible = FloatingService.isRunning();
+        policy.broadcastCompat = broadcastCompat;
+        policy.invalidate();
+        applyPolicy();
+
+        healthMonitor = new HealthMonitor(pipeline);
+        updateHealthMonitor();
+    }
+
+    // Sampling once a second is cheap, but not worth waking up for with the screen off
+    private void updateHealthMonitor() {
+        if (healthMonitor == null) {
+            return;
+        }
+        if (policy.screenOn) {
+            healthMonitor.start();
+        } else {
+            healthMonitor.stop();
+        }
+    }
+
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        try {
+            HealthMonitor.writeReport(this, writer);
+        } catch (IOException e) {
+            // PrintWriter does not throw
+        }
+    }
+
+    private boolean isScreenOn() {
+        PowerManager powerManager = (PowerManager) getSystemService(Context.POWER_SERVICE);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT_WATCH) {
+            return powerManager.isInteractive();
+        }
+        return powerManager.isScreenOn();
+    }
+
+    private void applyPolicy() {
+        policy.journalEnabled = journalRecorder != null;
+        policy.streamEnabled = streamServer != null;
+        policy.traceRecording = traceRecorder != null;
+        AccessibilityServiceInfo info = policy.createServiceInfoIfChanged();
+        if (info != null) {
+            Log.d("AccessibilityService", "Applying " + policy);
+            setServiceInfo(info);
+        }
+        updateWindowTracking();
+    }
+
+    /**
+     * Captures the view hierarchy of the active window in the background.
+     * Returns false if the service is not connected or a capture is running.
+     */
+    static boolean captureHierarchy(final HierarchyCapturer.Callback callback) {
+        if (instance == null) {
+            return false;
+        }
+        final MyAccessibilityService service = instance;
+        if (service.hierarchyCapturer == null) {
+            service.hierarchyCapturer = new HierarchyCapturer(service);
+        } else if (service.hierarchyCapturer.isBusy()) {
+            return false;
+        }
+
+        // Ask for the full tree only for the duration of the capture
+        service.policy.hierarchyCapture = true;
+        service.applyPolicy();
+        return service.hierarchyCapturer.capture(service.pipeline.getLastPackageName(),
+                                                 service.pipeline.getLastClassName(),
+            new HierarchyCapturer.Callback() {
+                @Override
+                public void onCaptureFinished(File file, int nodeCount, boolean truncated, long durationMillis) {
+                    if (instance == service) {
+                        service.policy.hierarchyCapture = false;
+                        service.applyPolicy();
+                    }
+                    callback.onCaptureFinished(file, nodeCount, truncated, durationMillis);
+                }
+            });
+    }
+
+    /** Called by FloatingService when the overlay comes or goes. */
+    static void onOverlayVisibilityChanged() {
+        if (instance != null) {
+            instance.policy.overlayVisible = FloatingService.isRunning();
+            instance.applyPolicy();
+        }
+    }
+
+    private void updateJournalRecorder(boolean enabled) {
+        if (enabled && journalRecorder == null) {
+            journalRecorder = JournalRecorder.start(this);
+        } else if (!enabled && journalRecorder != null) {
+            journalRecorder.stop();
+            journalRecorder = null;
+        }
+    }
+
+    private void updateTriggerRunner(List<TriggerRule> rules) {
+        if (!rules.isEmpty() && triggerRunner == null) {
+            triggerRunner = TriggerRunner.start(this, TriggerMatcher.compile(rules));
+        } else if (!rules.isEmpty()) {
+            triggerRunner.setMatcher(TriggerMatcher.compile(rules));
+        } else if (triggerRunner != null) {
+            triggerRunner.stop();
+            triggerRunner = null;
+        }
+    }
+
+    private void updateStreamServer(boolean enabled) {
+        if (enabled && streamServer == null) {
+            streamServer = new StreamServer();
+            streamServer.start();
+        } else if (!enabled && streamServer != null) {
+            streamServer.stop();
+            streamServer = null;
+        }
+    }
+
+    private void updateTraceRecorder(boolean enabled) {
+        if (enabled && traceRecorder == null) {
+            traceRecorder = EventTraceRecorder.start(this);
+        } else if (!enabled && traceRecorder != null) {
+            traceRecorder.stop();
+            traceRecorder = null;
+        }
     }
 
     @Override
     public boolean onUnbind(Intent intent) {
         // This will be called when service is disabled by user
         isRunning = false;
-        lastPackageName = "";
-        lastClassName = "";
+        instance = null;
+        handler.removeCallbacks(flushRunnable);
+        pipeline.reset();
+        if (state != null) {
+            state.removeListener(stateListener);
+        }
+        updateJournalRecorder(false);
+        updateStreamServer(false);
+        updateTraceRecorder(false);
+        updateTriggerRunner(Collections.<TriggerRule>emptyList());
+        try {
+            unregisterReceiver(screenReceiver);
+        } catch (IllegalArgumentException e) {
+            // Receiver was not registered
+        }
+        ActivityEventBus.getInstance().unsubscribe(dwellAggregator);
+        pipeline.setClassifier(null);
+        if (activityIndexLoader != null) {
+            activityIndexLoader.release();
+            activityIndexLoader = null;
+        }
+        if (hierarchyCapturer != null) {
+            hierarchyCapturer.release();
+            hierarchyCapturer = null;
+        }
+        if (healthMonitor != null) {
+            healthMonitor.release();
+            healthMonitor = null;
+        }
+        policy.hierarchyCapture = false;
+        policy.overlayVisible = false;
+        updateWindowTracking();
+        dwellAggregator.pause(JournalRecorder.elapsedRealtimeNanos());
         return super.onUnbind(intent);
     }
 
@@ -82,6 +462,14 @@ public class MyAccessibilityService extends AccessibilityService {
         isRunning = true;
     }
 
+    static DwellAggregator getDwellAggregator() {
+        return dwellAggregator;
+    }
+
+    static WindowModel getWindowModel() {
+        return windowModel;
+    }
+
     public static boolean isRunning() {
         return isRunning;
     }
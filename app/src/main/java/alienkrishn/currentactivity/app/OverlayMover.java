@@ -0,0 +1,248 @@
+package alienkrishn.currentactivity.app;
+
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.DisplayMetrics;
+import android.view.Choreographer;
+import android.view.View;
+import android.view.WindowManager;
+
+/**
+ * Moves the overlay window: follows drags, then flings and snaps to the
+ * nearest screen edge when released.
+ *
+ * Drag movement only updates the wanted position; the window itself is moved
+ * at most once per display frame, so a 240 Hz touch panel costs one
+ * updateViewLayout call per vsync instead of one per touch sample. After a
+ * release the window coasts with friction, then a critically damped spring
+ * pulls it inside the screen and onto an edge if it came to rest near one.
+ * Main thread only.
+ */
+class OverlayMover implements Runnable {
+
+    interface Listener {
+        /** The window has come to rest at this position. */
+        void onSettled(int x, int y);
+    }
+
+    private static final int STATE_IDLE = 0;
+    private static final int STATE_DRAGGING = 1;
+    private static final int STATE_FLINGING = 2;
+    private static final int STATE_SNAPPING = 3;
+
+    // Fling velocity decays by e every 1/FRICTION seconds
+    private static final float FRICTION = 4f;
+    private static final float SPRING_STIFFNESS = 300f;
+    private static final float SPRING_DAMPING = 2f * (float) Math.sqrt(SPRING_STIFFNESS);
+    // Longest step the physics takes, so a dropped frame does not overshoot
+    private static final float MAX_STEP_SECONDS = 1f / 30;
+
+    private final WindowManager windowManager;
+    private final View view;
+    private final WindowManager.LayoutParams params;
+    private final Listener listener;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    // Only created on API 16+, Choreographer does not exist before that
+    private Choreographer.FrameCallback frameCallback;
+
+    private final float snapDistance;
+    private final float minFlingVelocity;
+    private final float restVelocity;
+
+    private int state = STATE_IDLE;
+    private boolean scheduled = false;
+    private long lastFrameNanos;
+
+    // Wanted position, fractional so slow animation frames still make progress
+    private float x;
+    private float y;
+    private float velocityX;
+    private float velocityY;
+    private float dragStartX;
+    private float dragStartY;
+    private float restX;
+    private float restY;
+
+    OverlayMover(WindowManager windowManager, View view, WindowManager.LayoutParams params, Listener listener) {
+        this.windowManager = windowManager;
+        this.view = view;
+        this.params = params;
+        this.listener = listener;
+        float density = view.getResources().getDisplayMetrics().density;
+        snapDistance = 48 * density;
+        minFlingVelocity = 400 * density;
+        restVelocity = 20 * density;
+        x = params.x;
+        y = params.y;
+    }
+
+    void startDrag() {
+        cancel();
+        state = STATE_DRAGGING;
+        x = params.x;
+        y = params.y;
+        dragStartX = x;
+        dragStartY = y;
+    }
+
+    /** Pointer movement in screen pixels since startDrag. */
+    void dragTo(float dx, float dy) {
+        if (state != STATE_DRAGGING) {
+            return;
+        }
+        x = dragStartX + dx;
+        y = dragStartY + dy;
+        schedule();
+    }
+
+    /** Ends the drag with the pointer's velocity in pixels per second. */
+    void release(float velocityX, float velocityY) {
+        if (state != STATE_DRAGGING) {
+            return;
+        }
+        if (Math.hypot(velocityX, velocityY) >= minFlingVelocity) {
+            this.velocityX = velocityX;
+            this.velocityY = velocityY;
+            state = STATE_FLINGING;
+        } else {
+            startSnap(0, 0);
+        }
+        lastFrameNanos = 0;
+        schedule();
+    }
+
+    /** Pulls the window back inside the screen, e.g. after a rotation. */
+    void settle() {
+        cancel();
+        x = params.x;
+        y = params.y;
+        startSnap(0, 0);
+        lastFrameNanos = 0;
+        schedule();
+    }
+
+    void cancel() {
+        if (scheduled) {
+            scheduled = false;
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+                Choreographer.getInstance().removeFrameCallback(frameCallback);
+            } else {
+                handler.removeCallbacks(this);
+            }
+        }
+        state = STATE_IDLE;
+    }
+
+    private void schedule() {
+        if (scheduled) {
+            return;
+        }
+        scheduled = true;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            if (frameCallback == null) {
+                frameCallback = new Choreographer.FrameCallback() {
+                    @Override
+                    public void doFrame(long frameTimeNanos) {
+                        onFrame(frameTimeNanos);
+                    }
+                };
+            }
+            Choreographer.getInstance().postFrameCallback(frameCallback);
+        } else {
+            // No Choreographer before API 16, aim for about 60 frames a second
+            handler.postDelayed(this, 16);
+        }
+    }
+
+    @Override
+    public void run() {
+        onFrame(System.nanoTime());
+    }
+
+    private void onFrame(long frameTimeNanos) {
+        scheduled = false;
+        float dt = lastFrameNanos == 0 ? 1f / 60 :
+            Math.min((frameTimeNanos - lastFrameNanos) / 1e9f, MAX_STEP_SECONDS);
+        lastFrameNanos = frameTimeNanos;
+
+        if (state == STATE_FLINGING) {
+            stepFling(dt);
+        } else if (state == STATE_SNAPPING) {
+            stepSnap(dt);
+        }
+        apply();
+
+        if (state == STATE_FLINGING || state == STATE_SNAPPING) {
+            schedule();
+        } else if (state == STATE_IDLE) {
+            listener.onSettled(params.x, params.y);
+        }
+    }
+
+    private void stepFling(float dt) {
+        x += velocityX * dt;
+        y += velocityY * dt;
+        float decay = (float) Math.exp(-FRICTION * dt);
+        velocityX *= decay;
+        velocityY *= decay;
+
+        // Leaving the screen ends the coast, the spring brings it back
+        boolean outside = x < 0 || y < 0 || x > maxX() || y > maxY();
+        if (outside || Math.hypot(velocityX, velocityY) < restVelocity) {
+            startSnap(velocityX, velocityY);
+        }
+    }
+
+    private void startSnap(float velocityX, float velocityY) {
+        float maxX = maxX();
+        float maxY = maxY();
+        if (x < snapDistance) {
+            restX = 0;
+        } else if (x > maxX - snapDistance) {
+            restX = maxX;
+        } else {
+            restX = x;
+        }
+        restY = Math.max(0, Math.min(y, maxY));
+        this.velocityX = velocityX;
+        this.velocityY = velocityY;
+        state = STATE_SNAPPING;
+    }
+
+    private void stepSnap(float dt) {
+        // Semi-implicit Euler on a critically damped spring
+        velocityX += (-SPRING_STIFFNESS * (x - restX) - SPRING_DAMPING * velocityX) * dt;
+        velocityY += (-SPRING_STIFFNESS * (y - restY) - SPRING_DAMPING * velocityY) * dt;
+        x += velocityX * dt;
+        y += velocityY * dt;
+
+        if (Math.abs(x - restX) < 0.5f && Math.abs(y - restY) < 0.5f &&
+            Math.hypot(velocityX, velocityY) < restVelocity) {
+            x = restX;
+            y = restY;
+            state = STATE_IDLE;
+        }
+    }
+
+    // One window manager call per frame, and none if the pixel position did not change
+    private void apply() {
+        int newX = Math.round(x);
+        int newY = Math.round(y);
+        if (newX != params.x || newY != params.y) {
+            params.x = newX;
+            params.y = newY;
+            windowManager.updateViewLayout(view, params);
+        }
+    }
+
+    private float maxX() {
+        DisplayMetrics metrics = view.getResources().getDisplayMetrics();
+        return Math.max(0, metrics.widthPixels - view.getWidth());
+    }
+
+    private float maxY() {
+        DisplayMetrics metrics = view.getResources().getDisplayMetrics();
+        return Math.max(0, metrics.heightPixels - view.getHeight());
+    }
+}
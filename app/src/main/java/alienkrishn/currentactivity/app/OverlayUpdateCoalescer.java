@@ -0,0 +1,92 @@
+package alienkrishn.currentactivity.app;
+
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+
+/**
+ * Collapses bursts of overlay updates into at most one per display frame.
+ *
+ * Only the latest (package, activity) pair is kept. It is applied on the next
+ * vsync, and frames where it matches what is already shown are skipped, so a
+ * burst of transitions costs a single layout of the overlay. Main thread only.
+ */
+class OverlayUpdateCoalescer implements Runnable {
+
+    interface Target {
+        void applyUpdate(String packageName, String activityName);
+    }
+
+    private final Target target;
+    private final Handler handler;
+    // Only created on API 16+, Choreographer does not exist before that
+    private Choreographer.FrameCallback frameCallback;
+
+    private String pendingPackage;
+    private String pendingActivity;
+    private String appliedPackage;
+    private String appliedActivity;
+    private boolean scheduled = false;
+
+    OverlayUpdateCoalescer(Target target) {
+        this.target = target;
+        this.handler = new Handler(Looper.getMainLooper());
+    }
+
+    void submit(String packageName, String activityName) {
+        pendingPackage = packageName;
+        pendingActivity = activityName;
+
+        if (!scheduled) {
+            scheduled = true;
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+                if (frameCallback == null) {
+                    frameCallback = new Choreographer.FrameCallback() {
+                        @Override
+                        public void doFrame(long frameTimeNanos) {
+                            flush();
+                        }
+                    };
+                }
+                Choreographer.getInstance().postFrameCallback(frameCallback);
+            } else {
+                // No Choreographer before API 16, next looper turn is the best we can do
+                handler.post(this);
+            }
+        }
+    }
+
+    void cancel() {
+        if (scheduled) {
+            scheduled = false;
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+                Choreographer.getInstance().removeFrameCallback(frameCallback);
+            } else {
+                handler.removeCallbacks(this);
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        flush();
+    }
+
+    private void flush() {
+        scheduled = false;
+
+        // Nothing changed since the last applied frame (e.g. A -> B -> A within one vsync)
+        if (equals(pendingPackage, appliedPackage) && equals(pendingActivity, appliedActivity)) {
+            return;
+        }
+
+        appliedPackage = pendingPackage;
+        appliedActivity = pendingActivity;
+        target.applyUpdate(appliedPackage, appliedActivity);
+    }
+
+    private static boolean equals(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
@@ -0,0 +1,632 @@
+package alienkrishn.currentactivity.app;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.Typeface;
+import android.text.Layout;
+import android.text.StaticLayout;
+import android.text.TextPaint;
+import android.text.TextUtils;
+import android.util.DisplayMetrics;
+import android.view.MotionEvent;
+import android.view.VelocityTracker;
+import android.view.View;
+import android.view.ViewConfiguration;
+
+import alienkrishn.currentactivity.app.core.HealthMetrics;
+
+/**
+ * The whole overlay as a single View: header with the capture and close
+ * buttons, app row, package and activity rows, and the optional visible apps
+ * and latency rows, all drawn straight onto the canvas.
+ *
+ * Text is laid out into StaticLayouts when it changes, never in measure or
+ * draw, and a new activity only asks the window for a relayout when the
+ * overlay's height actually changes. Touches are hit-tested here: a tap on a
+ * target goes to the Listener, anything that moves past the touch slop drags
+ * the window. Compact mode shrinks it to one line with the app icon, the
+ * activity and the close button. Main thread only.
+ */
+class OverlayView extends View {
+
+    static final int TARGET_NONE = 0;
+    static final int TARGET_CAPTURE = 1;
+    static final int TARGET_CLOSE = 2;
+    static final int TARGET_PACKAGE = 3;
+    static final int TARGET_ACTIVITY = 4;
+    static final int TARGET_LATENCY = 5;
+    static final int TARGET_VISIBLE_APPS = 6;
+    static final int TARGET_EXPORT = 7;
+
+    interface Listener {
+        void onTap(int target);
+
+        void onLongPress(int target);
+
+        void onDragStart();
+
+        /** Pointer movement in screen pixels since the drag started. */
+        void onDrag(float dx, float dy);
+
+        /** Pointer velocity in screen pixels per second when it was lifted. */
+        void onDragEnd(float velocityX, float velocityY);
+    }
+
+    // Row colours, darkest at the top
+    private static final int COLOR_HEADER = 0xCC2C3E50;
+    private static final int COLOR_APP_ROW = 0xA02C3E50;
+    private static final int COLOR_PACKAGE_ROW = 0x802C3E50;
+    private static final int COLOR_ACTIVITY_ROW = 0x602C3E50;
+    private static final int COLOR_VISIBLE_APPS_ROW = 0x502C3E50;
+    private static final int COLOR_LATENCY_ROW = 0x402C3E50;
+    private static final int COLOR_PRESSED = 0x33FFFFFF;
+    private static final int COLOR_TEXT = 0xFFFFFFFF;
+    private static final int COLOR_TEXT_DISABLED = 0x80FFFFFF;
+
+    private static final int PACKAGE_MAX_LINES = 2;
+    private static final int ACTIVITY_MAX_LINES = 3;
+    private static final int VISIBLE_APPS_MAX_LINES = 4;
+    private static final int LATENCY_MAX_LINES = 2;
+
+    private final Listener listener;
+
+    // Geometry in pixels
+    private final int width;
+    private final int padding;
+    private final int headerHeight;
+    private final int appRowHeight;
+    private final int packageRowMinHeight;
+    private final int rowPadding;
+    private final int latencyPadding;
+    private final int compactHeight;
+    private final int buttonSize;
+    private final int buttonGap;
+    private final int iconSize;
+    private final int iconGap;
+    private final int captionWidth;
+    private final int valueWidth;
+    private final int touchSlop;
+    private final int maxFlingVelocity;
+
+    private final TextPaint titlePaint;
+    private final TextPaint buttonPaint;
+    private final TextPaint disabledButtonPaint;
+    private final TextPaint appLabelPaint;
+    private final TextPaint captionPaint;
+    private final TextPaint valuePaint;
+    private final TextPaint latencyPaint;
+    private final Paint fillPaint = new Paint();
+    private final Paint bitmapPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+    // Fixed text, laid out once
+    private final Layout titleLayout;
+    private final Layout captureLayout;
+    private final Layout exportLayout;
+    private final Layout disabledCaptureLayout;
+    private final Layout closeLayout;
+    private final Layout packageCaptionLayout;
+    private final Layout activityCaptionLayout;
+    private final Layout visibleAppsCaptionLayout;
+
+    // Changing text, laid out when it changes
+    private String packageName = "";
+    private String activityName = "";
+    private Layout packageLayout;
+    private Layout activityLayout;
+    private String visibleApps;
+    private Layout visibleAppsLayout;
+    private CharSequence appLabel;
+    private Layout appLabelLayout;
+    private Layout latencyLayout;
+    private Layout compactLayout;
+    private Bitmap appIcon;
+
+    private boolean compact = false;
+    private boolean captureEnabled = true;
+
+    // Hit targets, recomputed with the rows
+    private final Rect captureRect = new Rect();
+    private final Rect exportRect = new Rect();
+    private final Rect closeRect = new Rect();
+    private final Rect packageRect = new Rect();
+    private final Rect activityRect = new Rect();
+    private final Rect visibleAppsRect = new Rect();
+    private final Rect latencyRect = new Rect();
+    private final Rect iconRect = new Rect();
+    private int contentHeight;
+
+    // Touch state
+    private int pressedTarget = TARGET_NONE;
+    private boolean dragging = false;
+    private boolean longPressed = false;
+    private float downRawX;
+    private float downRawY;
+    private VelocityTracker velocityTracker;
+
+    private final Runnable longPressRunnable = new Runnable() {
+        @Override
+        public void run() {
+            longPressed = true;
+            int target = pressedTarget;
+            setPressedTarget(TARGET_NONE);
+            listener.onLongPress(target);
+        }
+    };
+
+    /**
+     * Geometry, paints and fixed text of the overlay. Nothing in here is a
+     * View or touches view state, so it can be prepared on a background thread
+     * while the view itself is created on the main thread.
+     */
+    static final class Style {
+        final int width;
+        final int padding;
+        final int headerHeight;
+        final int appRowHeight;
+        final int packageRowMinHeight;
+        final int rowPadding;
+        final int latencyPadding;
+        final int compactHeight;
+        final int buttonSize;
+        final int buttonGap;
+        final int iconSize;
+        final int iconGap;
+        final int captionWidth;
+        final int valueWidth;
+
+        final TextPaint titlePaint;
+        final TextPaint buttonPaint;
+        final TextPaint disabledButtonPaint;
+        final TextPaint appLabelPaint;
+        final TextPaint captionPaint;
+        final TextPaint valuePaint;
+        final TextPaint latencyPaint;
+
+        final Layout titleLayout;
+        final Layout captureLayout;
+        final Layout exportLayout;
+        final Layout disabledCaptureLayout;
+        final Layout closeLayout;
+        final Layout packageCaptionLayout;
+        final Layout activityCaptionLayout;
+        final Layout visibleAppsCaptionLayout;
+
+        Style(Context context) {
+            DisplayMetrics metrics = context.getResources().getDisplayMetrics();
+            float density = metrics.density;
+            float scaledDensity = metrics.scaledDensity;
+            width = Math.round(280 * density);
+            padding = Math.round(12 * density);
+            headerHeight = Math.round(40 * density);
+            appRowHeight = Math.round(36 * density);
+            packageRowMinHeight = Math.round(50 * density);
+            rowPadding = Math.round(8 * density);
+            latencyPadding = Math.round(4 * density);
+            compactHeight = Math.round(32 * density);
+            buttonSize = Math.round(24 * density);
+            buttonGap = Math.round(8 * density);
+            iconSize = context.getResources().getDimensionPixelSize(R.dimen.overlay_icon_size);
+            iconGap = Math.round(8 * density);
+            // Caption and value columns split 1 : 1.5 like the old layout weights
+            captionWidth = (width - 2 * padding) * 2 / 5;
+            valueWidth = width - 2 * padding - captionWidth;
+
+            titlePaint = textPaint(14 * scaledDensity, Typeface.DEFAULT_BOLD, COLOR_TEXT);
+            buttonPaint = textPaint(16 * scaledDensity, Typeface.DEFAULT_BOLD, COLOR_TEXT);
+            disabledButtonPaint = textPaint(16 * scaledDensity, Typeface.DEFAULT_BOLD, COLOR_TEXT_DISABLED);
+            appLabelPaint = textPaint(13 * scaledDensity, Typeface.DEFAULT_BOLD, COLOR_TEXT);
+            captionPaint = textPaint(12 * scaledDensity, Typeface.DEFAULT, COLOR_TEXT);
+            valuePaint = textPaint(12 * scaledDensity, Typeface.DEFAULT_BOLD, COLOR_TEXT);
+            latencyPaint = textPaint(10 * scaledDensity, Typeface.MONOSPACE, COLOR_TEXT);
+
+            int titleWidth = width - 2 * padding - 3 * buttonSize - 2 * buttonGap;
+            titleLayout = singleLine(context.getString(R.string.overlay_title), titlePaint, titleWidth,
+                                     TextUtils.TruncateAt.END);
+            captureLayout = centered("⊞", buttonPaint, buttonSize);
+            disabledCaptureLayout = centered("⊞", disabledButtonPaint, buttonSize);
+            closeLayout = centered("✕", buttonPaint, buttonSize);
+            exportLayout = centered("↓", buttonPaint, buttonSize);
+            packageCaptionLayout = multiLine(context.getString(R.string.overlay_package), captionPaint,
+                                             captionWidth, PACKAGE_MAX_LINES);
+            activityCaptionLayout = multiLine(context.getString(R.string.overlay_activity), captionPaint,
+                                              captionWidth, ACTIVITY_MAX_LINES);
+            visibleAppsCaptionLayout = multiLine(context.getString(R.string.overlay_visible_apps), captionPaint,
+                                                 captionWidth, VISIBLE_APPS_MAX_LINES);
+        }
+    }
+
+    /** Main thread only, style may come from any thread. */
+    OverlayView(Context context, Style style, Listener listener) {
+        super(context);
+        this.listener = listener;
+
+        width = style.width;
+        padding = style.padding;
+        headerHeight = style.headerHeight;
+        appRowHeight = style.appRowHeight;
+        packageRowMinHeight = style.packageRowMinHeight;
+        rowPadding = style.rowPadding;
+        latencyPadding = style.latencyPadding;
+        compactHeight = style.compactHeight;
+        buttonSize = style.buttonSize;
+        buttonGap = style.buttonGap;
+        iconSize = style.iconSize;
+        iconGap = style.iconGap;
+        captionWidth = style.captionWidth;
+        valueWidth = style.valueWidth;
+        // Its per-density cache is not thread-safe
+        ViewConfiguration configuration = ViewConfiguration.get(context);
+        touchSlop = configuration.getScaledTouchSlop();
+        maxFlingVelocity = configuration.getScaledMaximumFlingVelocity();
+
+        titlePaint = style.titlePaint;
+        buttonPaint = style.buttonPaint;
+        disabledButtonPaint = style.disabledButtonPaint;
+        appLabelPaint = style.appLabelPaint;
+        captionPaint = style.captionPaint;
+        valuePaint = style.valuePaint;
+        latencyPaint = style.latencyPaint;
+
+        titleLayout = style.titleLayout;
+        captureLayout = style.captureLayout;
+        disabledCaptureLayout = style.disabledCaptureLayout;
+        closeLayout = style.closeLayout;
+        exportLayout = style.exportLayout;
+        packageCaptionLayout = style.packageCaptionLayout;
+        activityCaptionLayout = style.activityCaptionLayout;
+        visibleAppsCaptionLayout = style.visibleAppsCaptionLayout;
+
+        setContentDescription(context.getString(R.string.app_name));
+        setContent("Unknown", "Unknown");
+        setAppInfo("Unknown", null);
+    }
+
+    /** Shows a new transition. Only relayouts the window if the height changes. */
+    void setContent(String packageName, String activityName) {
+        if (packageName.equals(this.packageName) && activityName.equals(this.activityName)) {
+            return;
+        }
+        this.packageName = packageName;
+        this.activityName = activityName;
+        packageLayout = multiLine(packageName, valuePaint, valueWidth, PACKAGE_MAX_LINES);
+        activityLayout = multiLine(activityName, valuePaint, valueWidth, ACTIVITY_MAX_LINES);
+        compactLayout = null;
+        onContentChanged();
+    }
+
+    void setAppInfo(CharSequence label, Bitmap icon) {
+        if (icon == appIcon && TextUtils.equals(label, appLabel)) {
+            return;
+        }
+        appLabel = label;
+        appLabelLayout = singleLine(label, appLabelPaint, width - 2 * padding - iconSize - iconGap,
+                                    TextUtils.TruncateAt.END);
+        appIcon = icon;
+        invalidate();
+    }
+
+    /** One app per line; null hides the row, e.g. when only one app is on screen. */
+    void setVisibleApps(String text) {
+        if (text == null ? visibleApps == null : text.equals(visibleApps)) {
+            return;
+        }
+        visibleApps = text;
+        visibleAppsLayout = text == null ? null : multiLine(text, valuePaint, valueWidth, VISIBLE_APPS_MAX_LINES);
+        onContentChanged();
+    }
+
+    /** Null hides the latency row. */
+    void setLatencyText(CharSequence text) {
+        if (text == null && latencyLayout == null) {
+            return;
+        }
+        latencyLayout = text == null ? null : multiLine(text, latencyPaint, width - 2 * padding, LATENCY_MAX_LINES);
+        onContentChanged();
+    }
+
+    void setCompact(boolean compact) {
+        if (compact != this.compact) {
+            this.compact = compact;
+            setPressedTarget(TARGET_NONE);
+            onContentChanged();
+        }
+    }
+
+    void setCaptureEnabled(boolean enabled) {
+        if (enabled != captureEnabled) {
+            captureEnabled = enabled;
+            invalidate();
+        }
+    }
+
+    private void onContentChanged() {
+        int oldHeight = contentHeight;
+        layoutRows();
+        if (contentHeight != oldHeight) {
+            requestLayout();
+        }
+        invalidate();
+    }
+
+    // Positions every row and hit target for the current text and mode
+    private void layoutRows() {
+        if (compact) {
+            if (compactLayout == null) {
+                int textWidth = width - 2 * padding - iconSize - iconGap - buttonSize - buttonGap;
+                compactLayout = singleLine(shortName(packageName, activityName), valuePaint, textWidth,
+                                           TextUtils.TruncateAt.MIDDLE);
+            }
+            contentHeight = compactHeight;
+            iconRect.set(padding, (compactHeight - iconSize) / 2, padding + iconSize, (compactHeight + iconSize) / 2);
+            closeRect.set(width - padding - buttonSize, 0, width, compactHeight);
+            activityRect.set(0, 0, closeRect.left, compactHeight);
+            captureRect.set(0, 0, 0, 0);
+            exportRect.set(0, 0, 0, 0);
+            packageRect.set(0, 0, 0, 0);
+            visibleAppsRect.set(0, 0, 0, 0);
+            latencyRect.set(0, 0, 0, 0);
+            return;
+        }
+
+        int y = 0;
+        closeRect.set(width - padding - buttonSize, y, width, y + headerHeight);
+        captureRect.set(closeRect.left - buttonGap - buttonSize, y, closeRect.left, y + headerHeight);
+        exportRect.set(captureRect.left - buttonGap - buttonSize, y, captureRect.left, y + headerHeight);
+        y += headerHeight;
+
+        iconRect.set(padding, y + (appRowHeight - iconSize) / 2, padding + iconSize, y + (appRowHeight + iconSize) / 2);
+        y += appRowHeight;
+
+        int packageHeight = Math.max(packageRowMinHeight,
+                                     Math.max(packageCaptionLayout.getHeight(), packageLayout.getHeight()) + 2 * rowPadding);
+        packageRect.set(0, y, width, y + packageHeight);
+        y += packageHeight;
+
+        int activityHeight = Math.max(activityCaptionLayout.getHeight(), activityLayout.getHeight()) + 2 * rowPadding;
+        activityRect.set(0, y, width, y + activityHeight);
+        y += activityHeight;
+
+        if (visibleAppsLayout != null) {
+            int visibleAppsHeight = Math.max(visibleAppsCaptionLayout.getHeight(), visibleAppsLayout.getHeight()) +
+                2 * rowPadding;
+            visibleAppsRect.set(0, y, width, y + visibleAppsHeight);
+            y += visibleAppsHeight;
+        } else {
+            visibleAppsRect.set(0, 0, 0, 0);
+        }
+
+        if (latencyLayout != null) {
+            latencyRect.set(0, y, width, y + latencyLayout.getHeight() + 2 * latencyPadding);
+            y = latencyRect.bottom;
+        } else {
+            latencyRect.set(0, 0, 0, 0);
+        }
+        contentHeight = y;
+    }
+
+    @Override
+    protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+        if (contentHeight == 0) {
+            layoutRows();
+        }
+        setMeasuredDimension(width, contentHeight);
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        long start = System.nanoTime();
+        drawContent(canvas);
+        HealthMetrics.getInstance().onFrame(System.nanoTime() - start);
+    }
+
+    private void drawContent(Canvas canvas) {
+        if (compact) {
+            fill(canvas, 0, 0, width, compactHeight, COLOR_HEADER);
+            drawIcon(canvas);
+            drawAt(canvas, compactLayout, iconRect.right + iconGap, 0, compactHeight);
+            drawButton(canvas, closeLayout, closeRect, TARGET_CLOSE);
+            drawPressed(canvas, TARGET_ACTIVITY, activityRect);
+            return;
+        }
+
+        fill(canvas, 0, 0, width, headerHeight, COLOR_HEADER);
+        drawAt(canvas, titleLayout, padding, 0, headerHeight);
+        drawButton(canvas, exportLayout, exportRect, TARGET_EXPORT);
+        drawButton(canvas, captureEnabled ? captureLayout : disabledCaptureLayout, captureRect, TARGET_CAPTURE);
+        drawButton(canvas, closeLayout, closeRect, TARGET_CLOSE);
+
+        int appTop = headerHeight;
+        fill(canvas, 0, appTop, width, appTop + appRowHeight, COLOR_APP_ROW);
+        drawIcon(canvas);
+        drawAt(canvas, appLabelLayout, iconRect.right + iconGap, appTop, appRowHeight);
+
+        drawRow(canvas, packageRect, COLOR_PACKAGE_ROW, packageCaptionLayout, packageLayout, TARGET_PACKAGE);
+        drawRow(canvas, activityRect, COLOR_ACTIVITY_ROW, activityCaptionLayout, activityLayout, TARGET_ACTIVITY);
+        if (visibleAppsLayout != null) {
+            drawRow(canvas, visibleAppsRect, COLOR_VISIBLE_APPS_ROW, visibleAppsCaptionLayout, visibleAppsLayout,
+                    TARGET_VISIBLE_APPS);
+        }
+
+        if (latencyLayout != null) {
+            fill(canvas, latencyRect.left, latencyRect.top, latencyRect.right, latencyRect.bottom, COLOR_LATENCY_ROW);
+            drawAt(canvas, latencyLayout, padding, latencyRect.top, latencyRect.height());
+            drawPressed(canvas, TARGET_LATENCY, latencyRect);
+        }
+    }
+
+    private void drawRow(Canvas canvas, Rect row, int color, Layout caption, Layout value, int target) {
+        fill(canvas, row.left, row.top, row.right, row.bottom, color);
+        drawAt(canvas, caption, padding, row.top, row.height());
+        drawAt(canvas, value, padding + captionWidth, row.top, row.height());
+        drawPressed(canvas, target, row);
+    }
+
+    private void drawButton(Canvas canvas, Layout glyph, Rect target, int id) {
+        int top = target.top + (target.height() - buttonSize) / 2;
+        if (pressedTarget == id) {
+            fill(canvas, target.left, top, target.left + buttonSize, top + buttonSize, COLOR_PRESSED);
+        }
+        drawAt(canvas, glyph, target.left, top, buttonSize);
+    }
+
+    private void drawPressed(Canvas canvas, int target, Rect rect) {
+        if (pressedTarget == target) {
+            fill(canvas, rect.left, rect.top, rect.right, rect.bottom, COLOR_PRESSED);
+        }
+    }
+
+    private void drawIcon(Canvas canvas) {
+        if (appIcon != null) {
+            canvas.drawBitmap(appIcon, null, iconRect, bitmapPaint);
+        }
+    }
+
+    // Draws the layout at x, vertically centred in the band starting at top
+    private static void drawAt(Canvas canvas, Layout layout, int x, int top, int height) {
+        canvas.save();
+        canvas.translate(x, top + (height - layout.getHeight()) / 2);
+        layout.draw(canvas);
+        canvas.restore();
+    }
+
+    private void fill(Canvas canvas, int left, int top, int right, int bottom, int color) {
+        fillPaint.setColor(color);
+        canvas.drawRect(left, top, right, bottom, fillPaint);
+    }
+
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        trackVelocity(event);
+        switch (event.getActionMasked()) {
+            case MotionEvent.ACTION_DOWN:
+                downRawX = event.getRawX();
+                downRawY = event.getRawY();
+                dragging = false;
+                longPressed = false;
+                setPressedTarget(hitTest((int) event.getX(), (int) event.getY()));
+                if (pressedTarget != TARGET_NONE) {
+                    postDelayed(longPressRunnable, ViewConfiguration.getLongPressTimeout());
+                }
+                return true;
+
+            case MotionEvent.ACTION_MOVE: {
+                float dx = event.getRawX() - downRawX;
+                float dy = event.getRawY() - downRawY;
+                if (!dragging && !longPressed && (Math.abs(dx) > touchSlop || Math.abs(dy) > touchSlop)) {
+                    dragging = true;
+                    removeCallbacks(longPressRunnable);
+                    setPressedTarget(TARGET_NONE);
+                    listener.onDragStart();
+                }
+                if (dragging) {
+                    listener.onDrag(dx, dy);
+                }
+                return true;
+            }
+
+            case MotionEvent.ACTION_UP:
+            case MotionEvent.ACTION_CANCEL: {
+                removeCallbacks(longPressRunnable);
+                int target = pressedTarget;
+                setPressedTarget(TARGET_NONE);
+                if (dragging) {
+                    dragging = false;
+                    if (event.getActionMasked() == MotionEvent.ACTION_UP) {
+                        velocityTracker.computeCurrentVelocity(1000, maxFlingVelocity);
+                        listener.onDragEnd(velocityTracker.getXVelocity(), velocityTracker.getYVelocity());
+                    } else {
+                        listener.onDragEnd(0, 0);
+                    }
+                } else if (event.getActionMasked() == MotionEvent.ACTION_UP && !longPressed &&
+                           target != TARGET_NONE) {
+                    listener.onTap(target);
+                }
+                velocityTracker.recycle();
+                velocityTracker = null;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // The window moves under the pointer, so only screen coordinates give a real velocity
+    private void trackVelocity(MotionEvent event) {
+        if (velocityTracker == null) {
+            velocityTracker = VelocityTracker.obtain();
+        }
+        float offsetX = event.getRawX() - event.getX();
+        float offsetY = event.getRawY() - event.getY();
+        event.offsetLocation(offsetX, offsetY);
+        velocityTracker.addMovement(event);
+        event.offsetLocation(-offsetX, -offsetY);
+    }
+
+    private int hitTest(int x, int y) {
+        if (closeRect.contains(x, y)) {
+            return TARGET_CLOSE;
+        } else if (captureRect.contains(x, y)) {
+            return captureEnabled ? TARGET_CAPTURE : TARGET_NONE;
+        } else if (exportRect.contains(x, y)) {
+            return TARGET_EXPORT;
+        } else if (packageRect.contains(x, y)) {
+            return TARGET_PACKAGE;
+        } else if (activityRect.contains(x, y)) {
+            return TARGET_ACTIVITY;
+        } else if (visibleAppsRect.contains(x, y)) {
+            return TARGET_VISIBLE_APPS;
+        } else if (latencyRect.contains(x, y)) {
+            return TARGET_LATENCY;
+        }
+        return TARGET_NONE;
+    }
+
+    private void setPressedTarget(int target) {
+        if (target != pressedTarget) {
+            pressedTarget = target;
+            invalidate();
+        }
+    }
+
+    // "com.example/.ui.MainActivity", like the activity manager prints it
+    static String shortName(String packageName, String activityName) {
+        if (activityName.startsWith(packageName) && activityName.length() > packageName.length() &&
+            activityName.charAt(packageName.length()) == '.') {
+            return packageName + "/" + activityName.substring(packageName.length());
+        }
+        return packageName + "/" + activityName;
+    }
+
+    private static TextPaint textPaint(float size, Typeface typeface, int color) {
+        TextPaint paint = new TextPaint(Paint.ANTI_ALIAS_FLAG);
+        paint.setTextSize(size);
+        paint.setTypeface(typeface);
+        paint.setColor(color);
+        return paint;
+    }
+
+    private static Layout centered(CharSequence text, TextPaint paint, int width) {
+        return new StaticLayout(text, paint, width, Layout.Alignment.ALIGN_CENTER, 1f, 0f, false);
+    }
+
+    private static Layout singleLine(CharSequence text, TextPaint paint, int width, TextUtils.TruncateAt where) {
+        CharSequence fitted = TextUtils.ellipsize(text, paint, width, where);
+        return new StaticLayout(fitted, paint, width, Layout.Alignment.ALIGN_NORMAL, 1f, 0f, false);
+    }
+
+    // Wraps to at most maxLines, ellipsizing the last one, on every API level
+    private static Layout multiLine(CharSequence text, TextPaint paint, int width, int maxLines) {
+        Layout layout = new StaticLayout(text, paint, width, Layout.Alignment.ALIGN_NORMAL, 1f, 0f, false);
+        if (layout.getLineCount() <= maxLines) {
+            return layout;
+        }
+        int lastLineStart = layout.getLineStart(maxLines - 1);
+        // Joined into one run, a newline kept by ellipsize would start another line
+        String rest = text.subSequence(lastLineStart, text.length()).toString().replace('\n', ' ');
+        CharSequence lastLine = TextUtils.ellipsize(rest, paint, width, TextUtils.TruncateAt.END);
+        String fitted = text.subSequence(0, lastLineStart).toString() + lastLine;
+        return new StaticLayout(fitted, paint, width, Layout.Alignment.ALIGN_NORMAL, 1f, 0f, false);
+    }
+}
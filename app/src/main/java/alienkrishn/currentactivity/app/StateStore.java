@@ -0,0 +1,254 @@
+package alienkrishn.currentactivity.app;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Typed, in-memory copy of the app's settings and state, shared by the
+ * activity and both services.
+ *
+ * The preferences file is read once on a background thread, started by
+ * CurrentActivityApp as soon as the process comes up; after that every read
+ * is a field lookup, and a read that races the load waits for it. Writes
+ * that do not change the value are dropped. Real changes are applied in
+ * memory, reported to listeners on the main thread straight away, and
+ * written to disk together on the background thread shortly after.
+ *
+ * get may be called from any thread; set, addListener and removeListener
+ * only from the main thread.
+ */
+final class StateStore {
+
+    interface Listener {
+        void onStateChanged(Key<?> key);
+    }
+
+    static final class Key<T> {
+        private static final int TYPE_BOOLEAN = 0;
+        private static final int TYPE_INT = 1;
+        private static final int TYPE_STRING_SET = 2;
+
+        final String name;
+        final T defaultValue;
+        private final int type;
+        private final int index;
+
+        private Key(String name, T defaultValue, int type) {
+            this.name = name;
+            this.defaultValue = defaultValue;
+            this.type = type;
+            this.index = KEYS.size();
+            KEYS.add(this);
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    private static final List<Key<?>> KEYS = new ArrayList<Key<?>>();
+
+    // Names are the keys the values had as plain preferences, so existing settings carry over
+    static final Key<Boolean> SWITCH_STATE = bool("switchState", false);
+    static final Key<Boolean> ACCESSIBILITY_ENABLED = bool("accessibilityEnabled", false);
+    static final Key<Boolean> BROADCAST_COMPAT = bool("broadcastCompat", false);
+    static final Key<Boolean> JOURNAL_ENABLED = bool("journalEnabled", false);
+    static final Key<Boolean> STREAM_ENABLED = bool("streamEnabled", false);
+    static final Key<Boolean> LATENCY_DEBUG = bool("latencyDebug", false);
+    static final Key<Boolean> TRACE_RECORDING = bool("traceRecording", false);
+    static final Key<Boolean> OVERLAY_COMPACT = bool("overlayCompact", false);
+    static final Key<Integer> STABILITY_WINDOW_MS = integer("stabilityWindowMs", 0);
+    static final Key<Integer> OVERLAY_X = integer("overlayX", 100);
+    static final Key<Integer> OVERLAY_Y = integer("overlayY", 300);
+    // Times the system brought the overlay back after killing it, for diagnostics
+    static final Key<Integer> OVERLAY_RESTARTS = integer("overlayRestarts", 0);
+    static final Key<Set<String>> FILTER_RULES = stringSet("filterRules");
+    static final Key<Set<String>> TRIGGER_RULES = stringSet("triggerRules");
+
+    private static final String PREFS_NAME = "CurrentActivityPrefs";
+    // Long enough to batch a burst of changes, short enough not to lose them
+    private static final long FLUSH_DELAY_MS = 300;
+
+    private static StateStore instance;
+
+    private final SharedPreferences prefs;
+    private final Handler ioHandler;
+    private final CountDownLatch loaded = new CountDownLatch(1);
+    private final List<Listener> listeners = new ArrayList<Listener>();
+
+    // Guarded by this
+    private final Object[] values = new Object[KEYS.size()];
+    private final boolean[] dirty = new boolean[KEYS.size()];
+    private boolean flushScheduled = false;
+
+    private final Runnable flushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    private StateStore(Context context) {
+        prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        HandlerThread thread = new HandlerThread("StateStore", Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        ioHandler = new Handler(thread.getLooper());
+        ioHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                load();
+            }
+        });
+    }
+
+    /** Starts loading in the background; called from CurrentActivityApp.onCreate. */
+    static synchronized void preload(Context context) {
+        if (instance == null) {
+            instance = new StateStore(context.getApplicationContext());
+        }
+    }
+
+    static StateStore get(Context context) {
+        StateStore store;
+        synchronized (StateStore.class) {
+            if (instance == null) {
+                instance = new StateStore(context.getApplicationContext());
+            }
+            store = instance;
+        }
+        store.awaitLoaded();
+        return store;
+    }
+
+    @SuppressWarnings("unchecked")
+    <T> T get(Key<T> key) {
+        synchronized (this) {
+            return (T) values[key.index];
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    <T> void set(Key<T> key, T value) {
+        synchronized (this) {
+            Object old = values[key.index];
+            if (old == null ? value == null : old.equals(value)) {
+                return;
+            }
+            values[key.index] = key.type == Key.TYPE_STRING_SET ?
+                Collections.unmodifiableSet(new HashSet<String>((Set<String>) value)) : value;
+            dirty[key.index] = true;
+            if (!flushScheduled) {
+                flushScheduled = true;
+                ioHandler.postDelayed(flushRunnable, FLUSH_DELAY_MS);
+            }
+        }
+        for (int i = listeners.size() - 1; i >= 0; i--) {
+            listeners.get(i).onStateChanged(key);
+        }
+    }
+
+    void addListener(Listener listener) {
+        if (!listeners.contains(listener)) {
+            listeners.add(listener);
+        }
+    }
+
+    void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    private void load() {
+        synchronized (this) {
+            for (Key<?> key : KEYS) {
+                switch (key.type) {
+                    case Key.TYPE_BOOLEAN:
+                        values[key.index] = prefs.getBoolean(key.name, (Boolean) key.defaultValue);
+                        break;
+                    case Key.TYPE_INT:
+                        values[key.index] = prefs.getInt(key.name, (Integer) key.defaultValue);
+                        break;
+                    case Key.TYPE_STRING_SET:
+                        Set<String> set = prefs.getStringSet(key.name, null);
+                        values[key.index] = set == null ? key.defaultValue :
+                            Collections.unmodifiableSet(new HashSet<String>(set));
+                        break;
+                }
+            }
+        }
+        loaded.countDown();
+    }
+
+    private void awaitLoaded() {
+        if (Looper.myLooper() == ioHandler.getLooper()) {
+            // Queued behind the load anyway, waiting here would deadlock
+            return;
+        }
+        boolean interrupted = false;
+        while (true) {
+            try {
+                loaded.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void flush() {
+        SharedPreferences.Editor editor = prefs.edit();
+        synchronized (this) {
+            flushScheduled = false;
+            for (Key<?> key : KEYS) {
+                if (!dirty[key.index]) {
+                    continue;
+                }
+                dirty[key.index] = false;
+                Object value = values[key.index];
+                switch (key.type) {
+                    case Key.TYPE_BOOLEAN:
+                        editor.putBoolean(key.name, (Boolean) value);
+                        break;
+                    case Key.TYPE_INT:
+                        editor.putInt(key.name, (Integer) value);
+                        break;
+                    case Key.TYPE_STRING_SET:
+                        editor.putStringSet(key.name, (Set<String>) value);
+                        break;
+                }
+            }
+        }
+        // Already off the main thread, so the synchronous commit costs nobody a frame
+        if (!editor.commit()) {
+            Log.w("StateStore", "Could not write preferences");
+        }
+    }
+
+    private static Key<Boolean> bool(String name, boolean defaultValue) {
+        return new Key<Boolean>(name, defaultValue, Key.TYPE_BOOLEAN);
+    }
+
+    private static Key<Integer> integer(String name, int defaultValue) {
+        return new Key<Integer>(name, defaultValue, Key.TYPE_INT);
+    }
+
+    private static Key<Set<String>> stringSet(String name) {
+        return new Key<Set<String>>(name, Collections.<String>emptySet(), Key.TYPE_STRING_SET);
+    }
+}
@@ -0,0 +1,92 @@
+package alienkrishn.currentactivity.app;
+
+import android.app.Activity;
+import android.os.Bundle;
+import android.view.View;
+import android.widget.Button;
+import android.widget.TextView;
+
+import java.util.List;
+import java.util.Locale;
+
+import alienkrishn.currentactivity.app.core.DwellAggregator;
+
+public class StatsActivity extends Activity {
+
+    // Rows shown per section, the full data stays in the aggregator
+    private static final int MAX_ROWS = 25;
+
+    private TextView tvStats;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_stats);
+
+        tvStats = findViewById(R.id.tvStats);
+        Button btnReset = findViewById(R.id.btnResetStats);
+
+        btnReset.setOnClickListener(new View.OnClickListener() {
+                @Override
+                public void onClick(View v) {
+                    MyAccessibilityService.getDwellAggregator().reset();
+                    refresh();
+                }
+            });
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        refresh();
+    }
+
+    private void refresh() {
+        DwellAggregator.Snapshot snapshot =
+            MyAccessibilityService.getDwellAggregator().snapshot(JournalRecorder.elapsedRealtimeNanos());
+
+        StringBuilder text = new StringBuilder();
+        text.append("Transitions: ").append(snapshot.totalTransitions).append("\n\n");
+
+        appendEntries(text, "Apps by time in foreground", snapshot.packages);
+        appendEntries(text, "Activities by time in foreground", snapshot.activities);
+
+        text.append("Most frequent transitions\n");
+        if (snapshot.transitions.isEmpty()) {
+            text.append("  none yet\n");
+        }
+        for (int i = 0; i < snapshot.transitions.size() && i < MAX_ROWS; i++) {
+            DwellAggregator.Transition transition = snapshot.transitions.get(i);
+            text.append(String.format(Locale.US, "%6d  %s\n        -> %s\n",
+                                      transition.count, transition.from, transition.to));
+        }
+
+        if (!MyAccessibilityService.isRunning()) {
+            text.insert(0, "Accessibility service is not running, statistics are paused.\n\n");
+        }
+        tvStats.setText(text);
+    }
+
+    private static void appendEntries(StringBuilder text, String title, List<DwellAggregator.Entry> entries) {
+        text.append(title).append('\n');
+        if (entries.isEmpty()) {
+            text.append("  none yet\n");
+        }
+        for (int i = 0; i < entries.size() && i < MAX_ROWS; i++) {
+            DwellAggregator.Entry entry = entries.get(i);
+            text.append(String.format(Locale.US, "%9s %5dx  %s\n",
+                                      formatDuration(entry.dwellNanos), entry.visits, entry.name));
+        }
+        text.append('\n');
+    }
+
+    private static String formatDuration(long nanos) {
+        long seconds = nanos / 1000000000L;
+        if (seconds < 60) {
+            return seconds + "s";
+        } else if (seconds < 3600) {
+            return String.format(Locale.US, "%dm%02ds", seconds / 60, seconds % 60);
+        }
+        return String.format(Locale.US, "%dh%02dm", seconds / 3600, (seconds / 60) % 60);
+    }
+}
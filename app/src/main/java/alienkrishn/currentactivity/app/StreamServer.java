@@ -0,0 +1,257 @@
+package alienkrishn.currentactivity.app;
+
+import android.net.LocalServerSocket;
+import android.net.LocalSocket;
+import android.net.LocalSocketAddress;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import alienkrishn.currentactivity.app.core.ActivityEvent;
+import alienkrishn.currentactivity.app.core.ActivityEventBus;
+import alienkrishn.currentactivity.app.core.TransitionStreamCodec;
+
+/**
+ * Pushes transitions to clients of an abstract local socket, e.g. a desktop
+ * tool behind {@code adb forward tcp:7070 localabstract:currentactivity}.
+ *
+ * Only this app, root and the shell user (which is what {@code adb forward}
+ * connects as) are served; the same history is behind a dangerous permission
+ * in HistoryProvider, so other apps on the device are turned away.
+ *
+ * A client may send 'J' within the first half second to get JSON lines;
+ * otherwise it gets length-prefixed binary frames (see TransitionStreamCodec).
+ * The handshake runs on the client's own thread, so a silent client does not
+ * hold up the next connection, and the hello frame is always queued before
+ * the client can receive any transition.
+ * Each event is encoded once per format and shared by all clients. Every
+ * client has a bounded queue drained by its own writer thread, which writes
+ * whatever has queued up in one batch before flushing. A client whose queue
+ * overflows is disconnected rather than allowed to slow anyone else down.
+ *
+ * An instance is started and stopped once. Stopping does not wait for any of
+ * its threads, which wind down by themselves, and releases the socket name
+ * straight away, so a new instance can be started right after.
+ */
+final class StreamServer {
+
+    static final String SOCKET_NAME = "currentactivity";
+
+    private static final String TAG = "StreamServer";
+    private static final int CLIENT_QUEUE_SIZE = 256;
+    private static final int HANDSHAKE_TIMEOUT_MS = 500;
+    // Process.SHELL_UID is not public before API 29
+    private static final int SHELL_UID = 2000;
+    private static final int ROOT_UID = 0;
+
+    private final CopyOnWriteArrayList<Client> clients = new CopyOnWriteArrayList<Client>();
+    private final TransitionStreamCodec codec = new TransitionStreamCodec();
+    // Encoded up front, the codec's buffer belongs to the publishing thread
+    private final byte[] helloBinary = codec.helloFrame();
+    private final byte[] helloJson = codec.helloJson();
+    private LocalServerSocket serverSocket;
+    private volatile boolean running;
+
+    // Runs on the publishing thread; encoding happens at most once per format
+    private final ActivityEventBus.Subscriber busSubscriber = new ActivityEventBus.Subscriber() {
+        @Override
+        public void onActivityEvent(ActivityEvent event) {
+            byte[] binary = null;
+            byte[] json = null;
+            for (Client client : clients) {
+                byte[] frame;
+                if (client.json) {
+                    frame = json != null ? json : (json = codec.encodeJson(event));
+                } else {
+                    frame = binary != null ? binary : (binary = codec.encodeBinary(event));
+                }
+                if (!client.queue.offer(frame)) {
+                    Log.w(TAG, "Disconnecting slow client");
+                    client.close();
+                }
+            }
+        }
+    };
+
+    void start() {
+        try {
+            serverSocket = new LocalServerSocket(SOCKET_NAME);
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot bind local socket " + SOCKET_NAME, e);
+            return;
+        }
+        running = true;
+        new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    acceptLoop();
+                }
+            }, "StreamServer").start();
+        ActivityEventBus.getInstance().subscribe(busSubscriber);
+    }
+
+    /** Called on the main thread, so nothing here waits for the other threads. */
+    void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        ActivityEventBus.getInstance().unsubscribe(busSubscriber);
+        if (serverSocket != null) {
+            // Neither close nor interrupt reliably wakes a native accept(), a connection does.
+            // It only queues in the backlog, so it returns without waiting for the accept thread.
+            LocalSocket wakeUp = new LocalSocket();
+            try {
+                wakeUp.connect(new LocalSocketAddress(SOCKET_NAME));
+            } catch (IOException e) {
+                // The accept thread has already gone
+            } finally {
+                closeQuietly(wakeUp);
+            }
+            // Frees the name for the next instance; the accept thread exits on the connection or the close
+            try {
+                serverSocket.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+        }
+        // Writers blocked on their queues are interrupted, those that are writing fail on the closed socket
+        for (Client client : clients) {
+            client.close();
+        }
+    }
+
+    int getClientCount() {
+        return clients.size();
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            LocalSocket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                if (running) {
+                    Log.w(TAG, "accept failed", e);
+                }
+                return;
+            }
+            if (!running) {
+                closeQuietly(socket);
+                return;
+            }
+            if (!isAllowed(socket)) {
+                closeQuietly(socket);
+                continue;
+            }
+            new Client(socket).start();
+        }
+    }
+
+    private static boolean isAllowed(LocalSocket socket) {
+        int uid;
+        try {
+            uid = socket.getPeerCredentials().getUid();
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot read peer credentials", e);
+            return false;
+        }
+        if (uid == SHELL_UID || uid == ROOT_UID || uid == Process.myUid()) {
+            return true;
+        }
+        Log.w(TAG, "Refusing stream client with uid " + uid);
+        return false;
+    }
+
+    private static boolean readMode(LocalSocket socket) throws IOException {
+        socket.setSoTimeout(HANDSHAKE_TIMEOUT_MS);
+        try {
+            InputStream in = socket.getInputStream();
+            return in.read() == 'J';
+        } catch (SocketTimeoutException e) {
+            // Silent clients get the binary format
+            return false;
+        } finally {
+            socket.setSoTimeout(0);
+        }
+    }
+
+    private static void closeQuietly(LocalSocket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Nothing to do
+        }
+    }
+
+    private final class Client implements Runnable {
+
+        final LocalSocket socket;
+        // Set by the handshake before the client is added to clients
+        boolean json;
+        final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<byte[]>(CLIENT_QUEUE_SIZE);
+        private volatile boolean closed;
+        private Thread writer;
+
+        Client(LocalSocket socket) {
+            this.socket = socket;
+        }
+
+        void start() {
+            writer = new Thread(this, "StreamClient");
+            writer.start();
+        }
+
+        @Override
+        public void run() {
+            List<byte[]> batch = new ArrayList<byte[]>(CLIENT_QUEUE_SIZE);
+            try {
+                json = readMode(socket);
+                queue.offer(json ? helloJson : helloBinary);
+                // Only now can the publisher reach this client, after the hello
+                clients.add(this);
+                if (!running) {
+                    return;
+                }
+                OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 8192);
+                while (!closed) {
+                    batch.add(queue.take());
+                    queue.drainTo(batch);
+                    for (byte[] frame : batch) {
+                        out.write(frame);
+                    }
+                    out.flush();
+                    batch.clear();
+                }
+            } catch (InterruptedException e) {
+                // Closed while waiting for frames
+            } catch (IOException e) {
+                // Client went away
+            } finally {
+                close();
+            }
+        }
+
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            clients.remove(this);
+            closeQuietly(socket);
+            if (writer != null) {
+                writer.interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package alienkrishn.currentactivity.app;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import alienkrishn.currentactivity.app.core.TriggerRule;
+
+/**
+ * Persists the user's triggers in the state store, one rule per string in
+ * its text form.
+ */
+final class TriggerRuleStore {
+
+    private TriggerRuleStore() {
+    }
+
+    static List<TriggerRule> load(StateStore state) {
+        List<TriggerRule> rules = new ArrayList<TriggerRule>();
+        Set<String> lines = state.get(StateStore.TRIGGER_RULES);
+        for (String line : lines) {
+            try {
+                rules.add(TriggerRule.parse(line));
+            } catch (IllegalArgumentException e) {
+                Log.w("TriggerRuleStore", "Dropping invalid trigger: " + line, e);
+            }
+        }
+        return rules;
+    }
+
+    static void save(StateStore state, List<TriggerRule> rules) {
+        Set<String> lines = new HashSet<String>();
+        for (TriggerRule rule : rules) {
+            lines.add(rule.toString());
+        }
+        state.set(StateStore.TRIGGER_RULES, lines);
+    }
+}
@@ -0,0 +1,186 @@
+package alienkrishn.currentactivity.app;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.VibrationEffect;
+import android.os.Vibrator;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import alienkrishn.currentactivity.app.core.ActivityEvent;
+import alienkrishn.currentactivity.app.core.ActivityEventBus;
+import alienkrishn.currentactivity.app.core.TriggerMatcher;
+import alienkrishn.currentactivity.app.core.TriggerRule;
+
+/**
+ * Runs the user's triggers for every transition on the event bus.
+ *
+ * Matching happens right in the bus subscriber against the compiled
+ * {@link TriggerMatcher}; only the actions of rules that fired go to a
+ * background thread. At most {@link #MAX_PENDING} actions wait there, anything
+ * beyond that is dropped and counted, so a slow receiver or a flood of
+ * transitions cannot pile up work or hold up the accessibility thread. The
+ * count is shown in diagnostics.
+ */
+final class TriggerRunner implements ActivityEventBus.Subscriber {
+
+    private static final String TAG = "TriggerRunner";
+    private static final int MAX_PENDING = 32;
+    private static final long VIBRATE_MS = 60;
+
+    private final Context context;
+    private final HandlerThread thread;
+    private final Handler handler;
+    private final AtomicInteger pending = new AtomicInteger();
+    private final BitSet fired = new BitSet();
+    private TriggerMatcher matcher;
+    // Since the process started, written on the publishing thread only
+    private static volatile int dropped;
+
+    private TriggerRunner(Context context, TriggerMatcher matcher) {
+        this.context = context.getApplicationContext();
+        this.matcher = matcher;
+        thread = new HandlerThread("TriggerActions", Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        handler = new Handler(thread.getLooper());
+    }
+
+    static TriggerRunner start(Context context, TriggerMatcher matcher) {
+        TriggerRunner runner = new TriggerRunner(context, matcher);
+        ActivityEventBus.getInstance().subscribe(runner);
+        return runner;
+    }
+
+    /** Swaps in newly compiled rules, on the thread events are published on. */
+    void setMatcher(TriggerMatcher matcher) {
+        this.matcher = matcher;
+    }
+
+    void stop() {
+        ActivityEventBus.getInstance().unsubscribe(this);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            thread.quitSafely();
+        } else {
+            handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        thread.quit();
+                    }
+                });
+        }
+    }
+
+    /** Actions dropped because too many were already waiting, by any runner in this process. */
+    static int getDroppedCount() {
+        return dropped;
+    }
+
+    @Override
+    public void onActivityEvent(ActivityEvent event) {
+        String packageName = event.getPackageName();
+        String className = event.getClassName();
+        if (matcher.match(packageName, className, fired) == 0) {
+            return;
+        }
+        long timeMillis = System.currentTimeMillis();
+        for (int i = fired.nextSetBit(0); i >= 0; i = fired.nextSetBit(i + 1)) {
+            submit(matcher.getRule(i), packageName, className, timeMillis);
+        }
+    }
+
+    private void submit(final TriggerRule rule, final String packageName, final String className,
+                        final long timeMillis) {
+        if (pending.incrementAndGet() > MAX_PENDING) {
+            pending.decrementAndGet();
+            if (dropped++ == 0) {
+                Log.w(TAG, "Too many pending trigger actions, dropping " + rule);
+            }
+            return;
+        }
+        handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    pending.decrementAndGet();
+                    try {
+                        runAction(rule, packageName, className, timeMillis);
+                    } catch (RuntimeException e) {
+                        Log.e(TAG, "Trigger failed: " + rule, e);
+                    }
+                }
+            });
+    }
+
+    private void runAction(TriggerRule rule, String packageName, String className, long timeMillis) {
+        switch (rule.getAction()) {
+            case VIBRATE:
+                vibrate();
+                break;
+            case LOG:
+                Log.i(TAG, rule + ": " + packageName + "/" + className);
+                break;
+            case MARKER:
+                writeMarker(rule.getArgument() != null ? rule.getArgument() : rule.toString(),
+                            packageName, className, timeMillis);
+                break;
+            case INTENT:
+                Intent intent = new Intent(rule.getArgument());
+                intent.putExtra("package", packageName);
+                intent.putExtra("activity", className);
+                intent.putExtra("time", timeMillis);
+                context.sendBroadcast(intent);
+                break;
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    private void vibrate() {
+        Vibrator vibrator = (Vibrator) context.getSystemService(Context.VIBRATOR_SERVICE);
+        if (vibrator == null || !vibrator.hasVibrator()) {
+            return;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            vibrator.vibrate(VibrationEffect.createOneShot(VIBRATE_MS, VibrationEffect.DEFAULT_AMPLITUDE));
+        } else {
+            vibrator.vibrate(VIBRATE_MS);
+        }
+    }
+
+    private void writeMarker(String label, String packageName, String className, long timeMillis) {
+        File file = getMarkerFile(context);
+        try {
+            File dir = file.getParentFile();
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Cannot create " + dir);
+            }
+            Writer writer = new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8");
+            try {
+                writer.write(timeMillis + "\t" + label + "\t" + packageName + "/" + className + "\n");
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot write marker to " + file, e);
+        }
+    }
+
+    /** Tab-separated: wall time in milliseconds, label, component. */
+    static File getMarkerFile(Context context) {
+        File dir = context.getExternalFilesDir(null);
+        if (dir == null) {
+            // External storage not mounted
+            dir = context.getFilesDir();
+        }
+        return new File(new File(dir, "triggers"), "markers.tsv");
+    }
+}
@@ -0,0 +1,69 @@
+package alienkrishn.currentactivity.app.core;
+
+/**
+ * One foreground transition as carried by {@link ActivityEventBus}.
+ *
+ * Instances are pre-allocated ring slots owned by the bus and are overwritten
+ * as the ring wraps, so subscribers must copy what they need before returning.
+ */
+public final class ActivityEvent {
+
+    /** TYPE_WINDOW_STATE_CHANGED from the accessibility service. */
+    public static final int SOURCE_WINDOW_STATE = 1;
+
+    // -1 while the producer is writing the slot
+    volatile long sequence = -1;
+    volatile String packageName = "";
+    volatile String className = "";
+    volatile long eventTime;
+    volatile long elapsedNanos;
+    volatile int source;
+    volatile long publishNanos;
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public String getPackageName() {
+        return packageName;
+    }
+
+    public String getClassName() {
+        return className;
+    }
+
+    /** Uptime millis reported by the originating AccessibilityEvent. */
+    public long getEventTime() {
+        return eventTime;
+    }
+
+    /** Monotonic timestamp that keeps counting in deep sleep (elapsedRealtimeNanos on Android). */
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /** One of the SOURCE_ constants. */
+    public int getSource() {
+        return source;
+    }
+
+    /** System.nanoTime() taken when the event was published. */
+    public long getPublishNanos() {
+        return publishNanos;
+    }
+
+    void copyFrom(ActivityEvent other) {
+        sequence = other.sequence;
+        packageName = other.packageName;
+        className = other.className;
+        eventTime = other.eventTime;
+        elapsedNanos = other.elapsedNanos;
+        source = other.source;
+        publishNanos = other.publishNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "ActivityEvent{" + sequence + " " + packageName + "/" + className + "}";
+    }
+}
@@ -0,0 +1,158 @@
+package alienkrishn.currentactivity.app.core;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process replacement for the CURRENT_ACTIVITY_UPDATE broadcast.
+ *
+ * A single producer (the accessibility service, on the main thread) writes
+ * transitions into a ring of pre-allocated slots. Subscribers are called
+ * synchronously on the producer thread; consumers on other threads use a
+ * {@link Reader} to drain the ring at their own pace without locking.
+ */
+public final class ActivityEventBus {
+
+    public interface Subscriber {
+        void onActivityEvent(ActivityEvent event);
+    }
+
+    public static final int DEFAULT_CAPACITY = 256;
+
+    private static final ActivityEventBus INSTANCE = new ActivityEventBus(DEFAULT_CAPACITY);
+
+    private final ActivityEvent[] slots;
+    private final int mask;
+    // Sequence of the last fully published slot, -1 when empty
+    private final AtomicLong cursor = new AtomicLong(-1);
+    private final CopyOnWriteArrayList<Subscriber> subscribers = new CopyOnWriteArrayList<Subscriber>();
+
+    public ActivityEventBus(int capacity) {
+        if (capacity <= 0 || (capacity & (capacity - 1)) != 0) {
+            throw new IllegalArgumentException("capacity must be a power of two: " + capacity);
+        }
+        slots = new ActivityEvent[capacity];
+        for (int i = 0; i < capacity; i++) {
+            slots[i] = new ActivityEvent();
+        }
+        mask = capacity - 1;
+    }
+
+    public static ActivityEventBus getInstance() {
+        return INSTANCE;
+    }
+
+    public void subscribe(Subscriber subscriber) {
+        subscribers.addIfAbsent(subscriber);
+    }
+
+    public void unsubscribe(Subscriber subscriber) {
+        subscribers.remove(subscriber);
+    }
+
+    public boolean hasSubscribers() {
+        return !subscribers.isEmpty();
+    }
+
+    /**
+     * Publishes a window state transition stamped with System.nanoTime().
+     */
+    public long publish(String packageName, String className, long eventTime) {
+        return publish(packageName, className, eventTime, System.nanoTime(), ActivityEvent.SOURCE_WINDOW_STATE);
+    }
+
+    /**
+     * Publishes a transition. Must only be called from one thread at a time.
+     *
+     * @return the sequence number assigned to the event
+     */
+    public long publish(String packageName, String className, long eventTime, long elapsedNanos, int source) {
+        long sequence = cursor.get() + 1;
+        ActivityEvent slot = slots[(int) sequence & mask];
+
+        // Mark the slot as in flight so concurrent readers retry instead of
+        // observing a half-written event
+        slot.sequence = -1;
+        slot.packageName = packageName;
+        slot.className = className;
+        slot.eventTime = eventTime;
+        slot.elapsedNanos = elapsedNanos;
+        slot.source = source;
+        slot.publishNanos = System.nanoTime();
+        slot.sequence = sequence;
+        cursor.lazySet(sequence);
+
+        for (Subscriber subscriber : subscribers) {
+            subscriber.onActivityEvent(slot);
+        }
+        return sequence;
+    }
+
+    /** Sequence of the most recently published event, or -1 if none. */
+    public long getCursor() {
+        return cursor.get();
+    }
+
+    public int getCapacity() {
+        return slots.length;
+    }
+
+    /** Creates a reader positioned after the most recently published event. */
+    public Reader newReader() {
+        return new Reader(cursor.get() + 1);
+    }
+
+    /**
+     * Pull-side consumer for threads other than the producer. Each reader is
+     * confined to a single thread.
+     */
+    public final class Reader {
+
+        private final ActivityEvent scratch = new ActivityEvent();
+        private long next;
+        private long dropped;
+
+        Reader(long next) {
+            this.next = next;
+        }
+
+        /**
+         * Delivers every event published since the last call to the given
+         * subscriber. Events overwritten before they could be read are skipped
+         * and counted in {@link #getDropped()}.
+         *
+         * @return number of events delivered
+         */
+        public int drain(Subscriber subscriber) {
+            int delivered = 0;
+            long available = cursor.get();
+            while (next <= available) {
+                if (available - next >= slots.length) {
+                    // Producer lapped us, jump to the oldest slot still intact
+                    long resume = available - slots.length + 1;
+                    dropped += resume - next;
+                    next = resume;
+                }
+                ActivityEvent slot = slots[(int) next & mask];
+                long before = slot.sequence;
+                if (before == next) {
+                    scratch.copyFrom(slot);
+                    if (slot.sequence == before) {
+                        subscriber.onActivityEvent(scratch);
+                        delivered++;
+                        next++;
+                        continue;
+                    }
+                }
+                // Slot is being rewritten by a producer that lapped us, reload
+                // the cursor so the lap check above can skip ahead
+                available = cursor.get();
+            }
+            return delivered;
+        }
+
+        public long getDropped() {
+            return dropped;
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package alienkrishn.currentactivity.app.core;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Per-package index of declared activity class names, used to tell real
+ * activities apart from dialogs and views that also raise window state changes.
+ *
+ * Lookups are a hash probe on the package plus a hash probe on the class name.
+ * Filling the index (PackageManager queries, disk cache) is the caller's job;
+ * entries can be added, replaced and removed from any thread.
+ */
+public final class ActivityIndex implements DetectionPipeline.Classifier {
+
+    public static final int KIND_UNKNOWN = 0;
+    public static final int KIND_ACTIVITY = 1;
+    public static final int KIND_DIALOG = 2;
+    public static final int KIND_VIEW = 3;
+
+    private static final int FORMAT_VERSION = 1;
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    private static final class Entry {
+        final long lastUpdateTime;
+        final List<String> classNames;
+        final CharSequenceSet classes;
+        // Whether lastUpdateTime has been checked against the installed package in this process
+        volatile boolean verified;
+
+        Entry(long lastUpdateTime, List<String> classNames, boolean verified) {
+            this.lastUpdateTime = lastUpdateTime;
+            this.classNames = classNames;
+            this.classes = new CharSequenceSet(classNames);
+            this.verified = verified;
+        }
+    }
+
+    /**
+     * Classifies a window by its class name. Returns KIND_UNKNOWN when the
+     * package has not been indexed yet.
+     */
+    @Override
+    public int classify(String packageName, CharSequence className) {
+        Entry entry = entries.get(packageName);
+        if (entry == null) {
+            return KIND_UNKNOWN;
+        }
+        if (entry.classes.contains(className)) {
+            return KIND_ACTIVITY;
+        }
+        // Not a declared activity, so a dialog or some other window content
+        return contains(className, "Dialog") ? KIND_DIALOG : KIND_VIEW;
+    }
+
+    public boolean contains(String packageName) {
+        return entries.containsKey(packageName);
+    }
+
+    /** True when the package is indexed but its entry came from disk and was not re-checked yet. */
+    public boolean needsVerification(String packageName) {
+        Entry entry = entries.get(packageName);
+        return entry != null && !entry.verified;
+    }
+
+    public long getLastUpdateTime(String packageName) {
+        Entry entry = entries.get(packageName);
+        return entry == null ? -1 : entry.lastUpdateTime;
+    }
+
+    public void markVerified(String packageName) {
+        Entry entry = entries.get(packageName);
+        if (entry != null) {
+            entry.verified = true;
+        }
+    }
+
+    public void put(String packageName, long lastUpdateTime, Collection<String> activityClassNames) {
+        entries.put(packageName, new Entry(lastUpdateTime, new ArrayList<String>(activityClassNames), true));
+    }
+
+    public void remove(String packageName) {
+        entries.remove(packageName);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /** Writes every entry in a compact binary form. */
+    public void writeTo(OutputStream stream) throws IOException {
+        DataOutputStream out = new DataOutputStream(stream);
+        List<Map.Entry<String, Entry>> snapshot = new ArrayList<Map.Entry<String, Entry>>(entries.entrySet());
+        out.writeInt(FORMAT_VERSION);
+        out.writeInt(snapshot.size());
+        for (Map.Entry<String, Entry> e : snapshot) {
+            out.writeUTF(e.getKey());
+            out.writeLong(e.getValue().lastUpdateTime);
+            List<String> names = e.getValue().classNames;
+            out.writeInt(names.size());
+            for (String name : names) {
+                out.writeUTF(name);
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * Loads entries written by {@link #writeTo}. Entries already present are
+     * kept, since they are at least as fresh as anything on disk. Loaded
+     * entries are marked unverified.
+     */
+    public void readFrom(InputStream stream) throws IOException {
+        DataInputStream in = new DataInputStream(stream);
+        if (in.readInt() != FORMAT_VERSION) {
+            throw new IOException("Unsupported activity index format");
+        }
+        int packages = in.readInt();
+        for (int i = 0; i < packages; i++) {
+            String packageName = in.readUTF();
+            long lastUpdateTime = in.readLong();
+            int count = in.readInt();
+            List<String> names = new ArrayList<String>(count);
+            for (int j = 0; j < count; j++) {
+                names.add(in.readUTF());
+            }
+            if (!entries.containsKey(packageName)) {
+                entries.put(packageName, new Entry(lastUpdateTime, names, false));
+            }
+        }
+    }
+
+    private static boolean contains(CharSequence text, String part) {
+        int last = text.length() - part.length();
+        for (int start = 0; start <= last; start++) {
+            int i = 0;
+            while (i < part.length() && text.charAt(start + i) == part.charAt(i)) {
+                i++;
+            }
+            if (i == part.length()) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,198 @@
+package alienkrishn.currentactivity.app.core;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Multi-pattern matcher compiled into a dense transition table.
+ *
+ * In substring mode failure links are folded into the table at build time, so
+ * a scan is a single pass over the input with one array lookup per character.
+ * In prefix mode the same table is a plain trie anchored at the start of the
+ * input. Neither mode allocates while matching. {@link #collect} also reports
+ * which patterns matched, by their position in the collection it was built
+ * from.
+ */
+final class AhoCorasickMatcher {
+
+    private static final int DEAD = -1;
+
+    private final int alphabetSize;
+    // ASCII char -> table column, 0 is "not in any pattern"
+    private final int[] asciiColumns = new int[128];
+    // Sorted non-ASCII pattern chars, column is index + 1 + asciiCount
+    private final char[] wideChars;
+    private final int asciiCount;
+    private final int[] transitions;
+    private final boolean[] accepting;
+    // Pattern indexes matched on reaching each state, including those via failure links
+    private final int[][] outputs;
+
+    static AhoCorasickMatcher substrings(Collection<String> patterns) {
+        return new AhoCorasickMatcher(patterns, false);
+    }
+
+    static AhoCorasickMatcher prefixes(Collection<String> patterns) {
+        return new AhoCorasickMatcher(patterns, true);
+    }
+
+    private AhoCorasickMatcher(Collection<String> patterns, boolean anchored) {
+        // Build the alphabet from the pattern characters only
+        StringBuilder wide = new StringBuilder();
+        int ascii = 0;
+        for (String pattern : patterns) {
+            for (int i = 0; i < pattern.length(); i++) {
+                char c = pattern.charAt(i);
+                if (c < 128) {
+                    if (asciiColumns[c] == 0) {
+                        asciiColumns[c] = ++ascii;
+                    }
+                } else if (wide.indexOf(String.valueOf(c)) < 0) {
+                    wide.append(c);
+                }
+            }
+        }
+        asciiCount = ascii;
+        wideChars = wide.toString().toCharArray();
+        Arrays.sort(wideChars);
+        alphabetSize = 1 + asciiCount + wideChars.length;
+
+        // Trie of all patterns
+        List<int[]> trie = new ArrayList<int[]>();
+        List<Boolean> terminal = new ArrayList<Boolean>();
+        List<List<Integer>> ends = new ArrayList<List<Integer>>();
+        trie.add(newRow(alphabetSize));
+        terminal.add(false);
+        ends.add(new ArrayList<Integer>());
+        int patternIndex = 0;
+        for (String pattern : patterns) {
+            int state = 0;
+            for (int i = 0; i < pattern.length(); i++) {
+                int column = column(pattern.charAt(i));
+                if (trie.get(state)[column] == DEAD) {
+                    trie.get(state)[column] = trie.size();
+                    trie.add(newRow(alphabetSize));
+                    terminal.add(false);
+                    ends.add(new ArrayList<Integer>());
+                }
+                state = trie.get(state)[column];
+            }
+            terminal.set(state, true);
+            ends.get(state).add(patternIndex++);
+        }
+
+        int states = trie.size();
+        transitions = new int[states * alphabetSize];
+        accepting = new boolean[states];
+        outputs = new int[states][];
+        for (int state = 0; state < states; state++) {
+            accepting[state] = terminal.get(state);
+            outputs[state] = toArray(ends.get(state));
+        }
+
+        if (anchored) {
+            for (int state = 0; state < states; state++) {
+                System.arraycopy(trie.get(state), 0, transitions, state * alphabetSize, alphabetSize);
+            }
+            return;
+        }
+
+        // Breadth-first so every failure target is complete before it is used
+        int[] failure = new int[states];
+        ArrayDeque<Integer> queue = new ArrayDeque<Integer>();
+        for (int column = 0; column < alphabetSize; column++) {
+            int next = trie.get(0)[column];
+            transitions[column] = next == DEAD ? 0 : next;
+            if (next != DEAD) {
+                queue.add(next);
+            }
+        }
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            accepting[state] |= accepting[failure[state]];
+            if (outputs[failure[state]].length > 0) {
+                List<Integer> merged = new ArrayList<Integer>(ends.get(state));
+                for (int index : outputs[failure[state]]) {
+                    merged.add(index);
+                }
+                outputs[state] = toArray(merged);
+            }
+            int[] row = trie.get(state);
+            for (int column = 0; column < alphabetSize; column++) {
+                int fallback = transitions[failure[state] * alphabetSize + column];
+                int next = row[column];
+                if (next != DEAD) {
+                    failure[next] = fallback;
+                    transitions[state * alphabetSize + column] = next;
+                    queue.add(next);
+                } else {
+                    transitions[state * alphabetSize + column] = fallback;
+                }
+            }
+        }
+    }
+
+    private static int[] toArray(List<Integer> values) {
+        int[] array = new int[values.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = values.get(i);
+        }
+        return array;
+    }
+
+    private static int[] newRow(int size) {
+        int[] row = new int[size];
+        Arrays.fill(row, DEAD);
+        return row;
+    }
+
+    private int column(char c) {
+        if (c < 128) {
+            return asciiColumns[c];
+        }
+        int index = Arrays.binarySearch(wideChars, c);
+        return index < 0 ? 0 : 1 + asciiCount + index;
+    }
+
+    /**
+     * Substring mode: true if any pattern occurs in the text.
+     * Prefix mode: true if the text starts with any pattern.
+     */
+    boolean matches(CharSequence text) {
+        int state = 0;
+        if (accepting[state]) {
+            return true;
+        }
+        for (int i = 0, n = text.length(); i < n; i++) {
+            state = transitions[state * alphabetSize + column(text.charAt(i))];
+            if (state == DEAD) {
+                return false;
+            }
+            if (accepting[state]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Sets the index of every pattern that matches: anywhere in the text in
+     * substring mode, at its start in prefix mode. Bits already set are kept.
+     */
+    void collect(CharSequence text, BitSet matched) {
+        int state = 0;
+        for (int i = 0, n = text.length(); i < n; i++) {
+            state = transitions[state * alphabetSize + column(text.charAt(i))];
+            if (state == DEAD) {
+                return;
+            }
+            for (int index : outputs[state]) {
+                matched.set(index);
+            }
+        }
+    }
+}
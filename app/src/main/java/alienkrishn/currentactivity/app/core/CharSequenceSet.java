@@ -0,0 +1,78 @@
+package alienkrishn.currentactivity.app.core;
+
+import java.util.Collection;
+
+/**
+ * Immutable open-addressing set of strings that can be probed with any
+ * CharSequence without converting it to a String first.
+ */
+final class CharSequenceSet {
+
+    private final String[] table;
+    private final int mask;
+    private final int size;
+
+    CharSequenceSet(Collection<String> values) {
+        int capacity = 4;
+        while (capacity < values.size() * 2) {
+            capacity <<= 1;
+        }
+        table = new String[capacity];
+        mask = capacity - 1;
+
+        int count = 0;
+        for (String value : values) {
+            int slot = hash(value) & mask;
+            while (table[slot] != null && !table[slot].equals(value)) {
+                slot = (slot + 1) & mask;
+            }
+            if (table[slot] == null) {
+                table[slot] = value;
+                count++;
+            }
+        }
+        size = count;
+    }
+
+    boolean contains(CharSequence value) {
+        if (size == 0) {
+            return false;
+        }
+        int slot = hash(value) & mask;
+        String candidate;
+        while ((candidate = table[slot]) != null) {
+            if (contentEquals(candidate, value)) {
+                return true;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return false;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    // Same function as String.hashCode so String and CharSequence probes agree
+    static int hash(CharSequence value) {
+        int h = 0;
+        for (int i = 0, n = value.length(); i < n; i++) {
+            h = 31 * h + value.charAt(i);
+        }
+        // Spread the low bits a little, package names share long prefixes
+        return h ^ (h >>> 16);
+    }
+
+    static boolean contentEquals(CharSequence a, CharSequence b) {
+        int n = a.length();
+        if (n != b.length()) {
+            return false;
+        }
+        for (int i = 0; i < n; i++) {
+            if (a.charAt(i) != b.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
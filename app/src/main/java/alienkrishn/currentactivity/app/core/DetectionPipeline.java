@@ -0,0 +1,224 @@
+package alienkrishn.currentactivity.app.core;
+
+/**
+ * Turns raw window state changes into activity transitions: filter, dedup
+ * against the last transition, classify, hold for the stability window, then
+ * publish on the event bus.
+ *
+ * With a stability window a new activity only becomes a candidate; it is
+ * published once nothing else has replaced it for the whole window. A
+ * candidate that gets replaced, or that is followed by a return to the
+ * activity already published (A to B to A), is counted as transient and never
+ * published. Dialogs and duplicate events do not disturb a candidate. Time is
+ * taken from the events themselves, so the caller only has to call
+ * {@link #flushPending} once the deadline passes without further events.
+ *
+ * Names are published as the canonical Strings of a {@link StringInterner},
+ * so a name seen before costs no allocation, and the overlay, journal and
+ * statistics all share one instance per name.
+ *
+ * This is everything the accessibility service does per event, minus the
+ * Android plumbing, so it can be driven from a recorded trace or a synthetic
+ * generator on a plain JVM. Single-threaded; the service calls it on the main
+ * thread.
+ */
+public final class DetectionPipeline {
+
+    /** Decides whether a window is a real activity, see ActivityIndex.classify. */
+    public interface Classifier {
+        int classify(String packageName, CharSequence className);
+    }
+
+    // A device shows a few hundred distinct names, room for all of them and some churn
+    private static final int INTERNER_CAPACITY = 1024;
+
+    private final ActivityEventBus bus;
+    private final StringInterner interner = new StringInterner(INTERNER_CAPACITY);
+    private WindowFilter filter = WindowFilter.compile(WindowFilter.DEFAULT_RULES);
+    private Classifier classifier;
+
+    private String lastPackageName = "";
+    private String lastClassName = "";
+
+    private long received;
+    private long filtered;
+    private long duplicates;
+    private long classifiedAway;
+    private long published;
+    private long transients;
+
+    private long stabilityWindowNanos;
+    private boolean hasPending;
+    private String pendingPackageName;
+    private String pendingClassName;
+    private long pendingEventTime;
+    private long pendingElapsedNanos;
+    private int pendingSource;
+
+    public DetectionPipeline(ActivityEventBus bus) {
+        this.bus = bus;
+    }
+
+    public void setFilter(WindowFilter filter) {
+        this.filter = filter;
+    }
+
+    /** Zero publishes every new activity immediately. */
+    public void setStabilityWindowNanos(long stabilityWindowNanos) {
+        this.stabilityWindowNanos = stabilityWindowNanos;
+        if (stabilityWindowNanos == 0 && hasPending) {
+            publishPending();
+        }
+    }
+
+    public long getStabilityWindowNanos() {
+        return stabilityWindowNanos;
+    }
+
+    /** Null trusts every window that passes the filter. */
+    public void setClassifier(Classifier classifier) {
+        this.classifier = classifier;
+    }
+
+    /**
+     * Handles one window state change. Returns true if this published a
+     * transition, either this event or a candidate that has now settled; the
+     * published one is then in getLastPackageName/getLastClassName.
+     */
+    public boolean onWindowStateChanged(CharSequence packageName, CharSequence className,
+                                        long eventTime, long elapsedNanos, int source) {
+        received++;
+        boolean settled = flushPending(elapsedNanos);
+
+        // Reject without materialising Strings
+        if (packageName == null || className == null || !filter.accepts(packageName, className)) {
+            filtered++;
+            return settled;
+        }
+
+        if (hasPending && pendingPackageName.contentEquals(packageName) && pendingClassName.contentEquals(className)) {
+            duplicates++;
+            return settled;
+        }
+        if (lastPackageName.contentEquals(packageName) && lastClassName.contentEquals(className)) {
+            if (hasPending) {
+                // Back where we were before the candidate appeared
+                hasPending = false;
+                transients++;
+            } else {
+                duplicates++;
+            }
+            return settled;
+        }
+
+        // Most transitions stay within the same app, which skips hashing the package
+        String packageString = lastPackageName.contentEquals(packageName) ?
+            lastPackageName : interner.intern(packageName);
+
+        // Dialogs and views keep the last real activity on screen.
+        // Packages not indexed yet are trusted until they are.
+        if (classifier != null) {
+            int kind = classifier.classify(packageString, className);
+            if (kind == ActivityIndex.KIND_DIALOG || kind == ActivityIndex.KIND_VIEW) {
+                classifiedAway++;
+                return settled;
+            }
+        }
+
+        if (hasPending) {
+            transients++;
+        }
+        hasPending = true;
+        pendingPackageName = packageString;
+        pendingClassName = interner.intern(className);
+        pendingEventTime = eventTime;
+        pendingElapsedNanos = elapsedNanos;
+        pendingSource = source;
+        if (stabilityWindowNanos == 0) {
+            publishPending();
+            return true;
+        }
+        return settled;
+    }
+
+    /**
+     * Publishes the candidate if it has been stable for the whole window by
+     * nowNanos, on the same clock as the events' elapsedNanos. Returns true
+     * if it did.
+     */
+    public boolean flushPending(long nowNanos) {
+        if (hasPending && nowNanos - pendingElapsedNanos >= stabilityWindowNanos) {
+            publishPending();
+            return true;
+        }
+        return false;
+    }
+
+    /** When the current candidate settles, or -1 if there is none. */
+    public long getPendingDeadlineNanos() {
+        return hasPending ? pendingElapsedNanos + stabilityWindowNanos : -1;
+    }
+
+    private void publishPending() {
+        hasPending = false;
+        lastPackageName = pendingPackageName;
+        lastClassName = pendingClassName;
+        published++;
+        // Stamped with when the activity appeared, not when it settled
+        bus.publish(lastPackageName, lastClassName, pendingEventTime, pendingElapsedNanos, pendingSource);
+    }
+
+    /** Forgets the last transition so the next accepted window is published even if it is the same. */
+    public void reset() {
+        lastPackageName = "";
+        lastClassName = "";
+        hasPending = false;
+    }
+
+    /** Canonical names for anything else that handles package or class names on the same thread. */
+    public StringInterner getInterner() {
+        return interner;
+    }
+
+    public String getLastPackageName() {
+        return lastPackageName;
+    }
+
+    public String getLastClassName() {
+        return lastClassName;
+    }
+
+    public long getReceivedCount() {
+        return received;
+    }
+
+    public long getFilteredCount() {
+        return filtered;
+    }
+
+    public long getDuplicateCount() {
+        return duplicates;
+    }
+
+    public long getClassifiedAwayCount() {
+        return classifiedAway;
+    }
+
+    public long getPublishedCount() {
+        return published;
+    }
+
+    /** Candidates that were replaced before they settled. */
+    public long getTransientCount() {
+        return transients;
+    }
+
+    public void resetCounters() {
+        received = 0;
+        filtered = 0;
+        duplicates = 0;
+        classifiedAway = 0;
+        published = 0;
+        transients = 0;
+    }
+}
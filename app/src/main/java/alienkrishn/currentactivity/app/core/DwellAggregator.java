@@ -0,0 +1,232 @@
+package alienkrishn.currentactivity.app.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Incremental dwell-time, visit and transition statistics over the stream of
+ * foreground transitions.
+ *
+ * Every transition is O(1): names map to dense int ids, per-package and
+ * per-activity counters live in parallel long arrays indexed by id, and the
+ * activity-to-activity matrix is a {@link LongLongMap} keyed by the packed
+ * (from, to) pair. Sorting and String building only happen in
+ * {@link #snapshot}. Not thread-safe; the app feeds and reads it on the main
+ * thread.
+ */
+public final class DwellAggregator implements ActivityEventBus.Subscriber {
+
+    private static final int NONE = -1;
+
+    private final Map<String, Integer> packageIds = new HashMap<String, Integer>();
+    private final List<String> packageNames = new ArrayList<String>();
+    private long[] packageDwellNanos = new long[16];
+    private long[] packageVisits = new long[16];
+
+    private final Map<String, Integer> classIds = new HashMap<String, Integer>();
+    private final List<String> classNames = new ArrayList<String>();
+
+    // (packageId << 32 | classId) -> activity index
+    private final LongLongMap activityIndex = new LongLongMap(64);
+    private final List<int[]> activityKeys = new ArrayList<int[]>();
+    private long[] activityDwellNanos = new long[16];
+    private long[] activityVisits = new long[16];
+
+    // (fromActivity << 32 | toActivity) -> count
+    private final LongLongMap transitions = new LongLongMap(256);
+
+    private int currentPackage = NONE;
+    private int currentActivity = NONE;
+    private long currentSinceNanos;
+    private long totalTransitions;
+
+    @Override
+    public void onActivityEvent(ActivityEvent event) {
+        onTransition(event.getElapsedNanos(), event.getPackageName(), event.getClassName());
+    }
+
+    public void onTransition(long elapsedNanos, String packageName, String className) {
+        int packageId = idFor(packageIds, packageNames, packageName);
+        int classId = idFor(classIds, classNames, className);
+        int activity = activityFor(packageId, classId);
+
+        closeCurrent(elapsedNanos);
+
+        if (packageId != currentPackage) {
+            packageVisits[packageId]++;
+        }
+        activityVisits[activity]++;
+        if (currentActivity != NONE) {
+            transitions.addTo(((long) currentActivity << 32) | activity, 1);
+        }
+        totalTransitions++;
+
+        currentPackage = packageId;
+        currentActivity = activity;
+        currentSinceNanos = elapsedNanos;
+    }
+
+    /**
+     * Ends the current dwell without starting another, e.g. when detection
+     * stops. The next transition starts fresh and is not linked to the last one.
+     */
+    public void pause(long elapsedNanos) {
+        closeCurrent(elapsedNanos);
+        currentPackage = NONE;
+        currentActivity = NONE;
+    }
+
+    public void reset() {
+        packageIds.clear();
+        packageNames.clear();
+        classIds.clear();
+        classNames.clear();
+        activityIndex.clear();
+        activityKeys.clear();
+        transitions.clear();
+        Arrays.fill(packageDwellNanos, 0);
+        Arrays.fill(packageVisits, 0);
+        Arrays.fill(activityDwellNanos, 0);
+        Arrays.fill(activityVisits, 0);
+        currentPackage = NONE;
+        currentActivity = NONE;
+        totalTransitions = 0;
+    }
+
+    private void closeCurrent(long elapsedNanos) {
+        if (currentActivity == NONE) {
+            return;
+        }
+        long dwell = Math.max(0, elapsedNanos - currentSinceNanos);
+        packageDwellNanos[currentPackage] += dwell;
+        activityDwellNanos[currentActivity] += dwell;
+        currentSinceNanos = elapsedNanos;
+    }
+
+    private int idFor(Map<String, Integer> ids, List<String> names, String name) {
+        Integer id = ids.get(name);
+        if (id != null) {
+            return id;
+        }
+        int next = names.size();
+        ids.put(name, next);
+        names.add(name);
+        if (ids == packageIds && next >= packageVisits.length) {
+            packageDwellNanos = Arrays.copyOf(packageDwellNanos, next * 2);
+            packageVisits = Arrays.copyOf(packageVisits, next * 2);
+        }
+        return next;
+    }
+
+    private int activityFor(int packageId, int classId) {
+        long key = ((long) packageId << 32) | classId;
+        long index = activityIndex.get(key, NONE);
+        if (index != NONE) {
+            return (int) index;
+        }
+        int next = activityKeys.size();
+        activityIndex.put(key, next);
+        activityKeys.add(new int[] { packageId, classId });
+        if (next >= activityVisits.length) {
+            activityDwellNanos = Arrays.copyOf(activityDwellNanos, next * 2);
+            activityVisits = Arrays.copyOf(activityVisits, next * 2);
+        }
+        return next;
+    }
+
+    /**
+     * Builds a sorted copy of the statistics, counting the ongoing dwell up to
+     * {@code nowNanos}.
+     */
+    public Snapshot snapshot(long nowNanos) {
+        long openDwell = currentActivity == NONE ? 0 : Math.max(0, nowNanos - currentSinceNanos);
+
+        List<Entry> packages = new ArrayList<Entry>(packageNames.size());
+        for (int id = 0; id < packageNames.size(); id++) {
+            long dwell = packageDwellNanos[id] + (id == currentPackage ? openDwell : 0);
+            packages.add(new Entry(packageNames.get(id), dwell, packageVisits[id]));
+        }
+
+        List<Entry> activities = new ArrayList<Entry>(activityKeys.size());
+        for (int index = 0; index < activityKeys.size(); index++) {
+            long dwell = activityDwellNanos[index] + (index == currentActivity ? openDwell : 0);
+            activities.add(new Entry(activityName(index), dwell, activityVisits[index]));
+        }
+
+        final List<Transition> edges = new ArrayList<Transition>(transitions.size());
+        transitions.forEach(new LongLongMap.Visitor() {
+                @Override
+                public void visit(long key, long count) {
+                    edges.add(new Transition(activityName((int) (key >>> 32)), activityName((int) key), count));
+                }
+            });
+
+        Collections.sort(packages, BY_DWELL);
+        Collections.sort(activities, BY_DWELL);
+        Collections.sort(edges, new Comparator<Transition>() {
+                @Override
+                public int compare(Transition a, Transition b) {
+                    return a.count < b.count ? 1 : a.count > b.count ? -1 : 0;
+                }
+            });
+        return new Snapshot(packages, activities, edges, totalTransitions);
+    }
+
+    private String activityName(int index) {
+        int[] key = activityKeys.get(index);
+        return packageNames.get(key[0]) + "/" + classNames.get(key[1]);
+    }
+
+    private static final Comparator<Entry> BY_DWELL = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            return a.dwellNanos < b.dwellNanos ? 1 : a.dwellNanos > b.dwellNanos ? -1 : 0;
+        }
+    };
+
+    public static final class Entry {
+        public final String name;
+        public final long dwellNanos;
+        public final long visits;
+
+        Entry(String name, long dwellNanos, long visits) {
+            this.name = name;
+            this.dwellNanos = dwellNanos;
+            this.visits = visits;
+        }
+    }
+
+    public static final class Transition {
+        public final String from;
+        public final String to;
+        public final long count;
+
+        Transition(String from, String to, long count) {
+            this.from = from;
+            this.to = to;
+            this.count = count;
+        }
+    }
+
+    public static final class Snapshot {
+        /** Sorted by dwell time, longest first. */
+        public final List<Entry> packages;
+        /** Sorted by dwell time, longest first. Names are package/class. */
+        public final List<Entry> activities;
+        /** Sorted by count, most frequent first. */
+        public final List<Transition> transitions;
+        public final long totalTransitions;
+
+        Snapshot(List<Entry> packages, List<Entry> activities, List<Transition> transitions, long totalTransitions) {
+            this.packages = packages;
+            this.activities = activities;
+            this.transitions = transitions;
+            this.totalTransitions = totalTransitions;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package alienkrishn.currentactivity.app.core;
+
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * A sequence of raw window events as the accessibility service saw them,
+ * before any filtering, for replaying through a {@link DetectionPipeline}.
+ *
+ * Events are held in parallel arrays so a replay loop touches no per-event
+ * objects. The file form is a header {@code [int magic][int version][int count]}
+ * followed by one record per event:
+ * {@code [int type][long eventTime][long elapsedNanos][byte nulls][utf package][utf class]},
+ * where bit 0 of nulls marks a null package and bit 1 a null class (the
+ * string is then written as "").
+ *
+ * A file can also be written in parts, as a recorder does: the header first
+ * with {@link #writeHeader}, then each batch with {@link #writeRecords}, and
+ * the count at {@link #COUNT_OFFSET} rewritten after every batch so the file
+ * is complete at any point.
+ */
+public final class EventTrace {
+
+    public static final int MAGIC = 0x43415452; // "CATR"
+    public static final int VERSION = 1;
+    /** File offset of the event count in the header. */
+    public static final int COUNT_OFFSET = 8;
+
+    private int size;
+    private int[] types;
+    private long[] eventTimes;
+    private long[] elapsedNanos;
+    private String[] packageNames;
+    private String[] classNames;
+
+    public EventTrace() {
+        this(1024);
+    }
+
+    public EventTrace(int initialCapacity) {
+        int capacity = Math.max(1, initialCapacity);
+        types = new int[capacity];
+        eventTimes = new long[capacity];
+        elapsedNanos = new long[capacity];
+        packageNames = new String[capacity];
+        classNames = new String[capacity];
+    }
+
+    public void add(int type, long eventTime, long elapsed, String packageName, String className) {
+        if (size == types.length) {
+            int capacity = size * 2;
+            types = Arrays.copyOf(types, capacity);
+            eventTimes = Arrays.copyOf(eventTimes, capacity);
+            elapsedNanos = Arrays.copyOf(elapsedNanos, capacity);
+            packageNames = Arrays.copyOf(packageNames, capacity);
+            classNames = Arrays.copyOf(classNames, capacity);
+        }
+        types[size] = type;
+        eventTimes[size] = eventTime;
+        elapsedNanos[size] = elapsed;
+        packageNames[size] = packageName;
+        classNames[size] = className;
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getType(int index) {
+        return types[index];
+    }
+
+    public long getEventTime(int index) {
+        return eventTimes[index];
+    }
+
+    public long getElapsedNanos(int index) {
+        return elapsedNanos[index];
+    }
+
+    public String getPackageName(int index) {
+        return packageNames[index];
+    }
+
+    public String getClassName(int index) {
+        return classNames[index];
+    }
+
+    public void writeTo(OutputStream stream) throws IOException {
+        DataOutputStream out = new DataOutputStream(stream);
+        writeHeader(out, size);
+        writeRecords(out);
+        out.flush();
+    }
+
+    public static void writeHeader(DataOutput out, int count) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(count);
+    }
+
+    /** Writes every event without a header, to follow those already in a file. */
+    public void writeRecords(DataOutput out) throws IOException {
+        for (int i = 0; i < size; i++) {
+            out.writeInt(types[i]);
+            out.writeLong(eventTimes[i]);
+            out.writeLong(elapsedNanos[i]);
+            out.writeByte((packageNames[i] == null ? 1 : 0) | (classNames[i] == null ? 2 : 0));
+            out.writeUTF(packageNames[i] == null ? "" : packageNames[i]);
+            out.writeUTF(classNames[i] == null ? "" : classNames[i]);
+        }
+    }
+
+    public static EventTrace readFrom(InputStream stream) throws IOException {
+        DataInputStream in = new DataInputStream(stream);
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not an event trace");
+        }
+        int version = in.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported event trace version " + version);
+        }
+        int count = in.readInt();
+        if (count < 0) {
+            throw new IOException("Corrupt event trace");
+        }
+        EventTrace trace = new EventTrace(count);
+        for (int i = 0; i < count; i++) {
+            int type = in.readInt();
+            long eventTime = in.readLong();
+            long elapsed = in.readLong();
+            int nulls = in.readByte();
+            String packageName = in.readUTF();
+            String className = in.readUTF();
+            trace.add(type, eventTime, elapsed,
+                      (nulls & 1) != 0 ? null : packageName,
+                      (nulls & 2) != 0 ? null : className);
+        }
+        return trace;
+    }
+}
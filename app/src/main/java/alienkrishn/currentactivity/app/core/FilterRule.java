@@ -0,0 +1,123 @@
+package alienkrishn.currentactivity.app.core;
+
+import java.util.Locale;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * A single include/exclude rule for {@link WindowFilter}.
+ *
+ * Rules have a one-line text form used for storage and user input:
+ * {@code <include|exclude> <package|prefix|class|contains|regex> <pattern>},
+ * for example {@code exclude contains SoftInputWindow}.
+ */
+public final class FilterRule {
+
+    public enum Kind {
+        /** Package name equals the pattern. */
+        PACKAGE("package"),
+        /** Package name starts with the pattern. */
+        PREFIX("prefix"),
+        /** Class name equals the pattern. */
+        CLASS("class"),
+        /** Class name contains the pattern. */
+        CONTAINS("contains"),
+        /** Class name matches the regular expression anywhere. */
+        REGEX("regex");
+
+        final String keyword;
+
+        Kind(String keyword) {
+            this.keyword = keyword;
+        }
+    }
+
+    private final boolean include;
+    private final Kind kind;
+    private final String pattern;
+
+    public FilterRule(boolean include, Kind kind, String pattern) {
+        if (kind == null || pattern == null || pattern.length() == 0) {
+            throw new IllegalArgumentException("Rule needs a kind and a non-empty pattern");
+        }
+        if (kind == Kind.REGEX) {
+            try {
+                Pattern.compile(pattern);
+            } catch (PatternSyntaxException e) {
+                throw new IllegalArgumentException("Invalid regex: " + e.getDescription(), e);
+            }
+        }
+        this.include = include;
+        this.kind = kind;
+        this.pattern = pattern;
+    }
+
+    public static FilterRule include(Kind kind, String pattern) {
+        return new FilterRule(true, kind, pattern);
+    }
+
+    public static FilterRule exclude(Kind kind, String pattern) {
+        return new FilterRule(false, kind, pattern);
+    }
+
+    /**
+     * Parses the text form of a rule.
+     *
+     * @throws IllegalArgumentException if the line is not a valid rule
+     */
+    public static FilterRule parse(String line) {
+        String[] parts = line == null ? new String[0] : line.trim().split("\\s+", 3);
+        if (parts.length != 3) {
+            throw new IllegalArgumentException("Expected: include|exclude <kind> <pattern>");
+        }
+
+        boolean include;
+        String action = parts[0].toLowerCase(Locale.US);
+        if (action.equals("include")) {
+            include = true;
+        } else if (action.equals("exclude")) {
+            include = false;
+        } else {
+            throw new IllegalArgumentException("Unknown action: " + parts[0]);
+        }
+
+        String keyword = parts[1].toLowerCase(Locale.US);
+        for (Kind kind : Kind.values()) {
+            if (kind.keyword.equals(keyword)) {
+                return new FilterRule(include, kind, parts[2]);
+            }
+        }
+        throw new IllegalArgumentException("Unknown rule kind: " + parts[1]);
+    }
+
+    public boolean isInclude() {
+        return include;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public String getPattern() {
+        return pattern;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof FilterRule)) {
+            return false;
+        }
+        FilterRule other = (FilterRule) o;
+        return include == other.include && kind == other.kind && pattern.equals(other.pattern);
+    }
+
+    @Override
+    public int hashCode() {
+        return (pattern.hashCode() * 31 + kind.hashCode()) * 31 + (include ? 1 : 0);
+    }
+
+    @Override
+    public String toString() {
+        return (include ? "include " : "exclude ") + kind.keyword + " " + pattern;
+    }
+}
@@ -0,0 +1,150 @@
+package alienkrishn.currentactivity.app.core;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * What the detector itself costs, so its own overhead can be told apart from
+ * the performance being measured with it.
+ *
+ * Event counts, main-thread time spent in overlay callbacks, heap size and
+ * allocation are sampled once a second into {@link MetricRing}s holding the
+ * last {@link #HISTORY_SECONDS} seconds; overlay draw times go into a ring of
+ * their own, one sample per frame. Recording is a few field updates with no
+ * allocation or locking, and reports can be taken from any thread.
+ *
+ * {@link #onCallback} and {@link #sample} must be called on the main thread.
+ */
+public final class HealthMetrics {
+
+    public static final int HISTORY_SECONDS = 64;
+    public static final int HISTORY_FRAMES = 128;
+
+    /** Accessibility events the service received. */
+    public static final int RECEIVED = 0;
+    /** Events dropped by the filter, as duplicates or by the classifier. */
+    public static final int FILTERED = 1;
+    /** Transitions published on the bus. */
+    public static final int EMITTED = 2;
+    /** Main-thread time in overlay callbacks, microseconds per second. */
+    public static final int CALLBACK_MICROS = 3;
+    public static final int HEAP_KB = 4;
+    /** Kilobytes allocated per second, -1 where the runtime does not tell. */
+    public static final int ALLOCATED_KB = 5;
+
+    private static final String[] NAMES = {
+        "received/s", "filtered/s", "emitted/s", "overlay main us/s", "heap KB", "alloc KB/s"
+    };
+    private static final HealthMetrics INSTANCE = new HealthMetrics();
+
+    private final MetricRing[] perSecond = new MetricRing[NAMES.length];
+    private final MetricRing frameMicros = new MetricRing(HISTORY_FRAMES);
+
+    // Main thread, added up between samples
+    private long callbackNanos;
+    private long lastReceived = -1;
+    private long lastFiltered;
+    private long lastEmitted;
+    private long lastAllocated = -1;
+
+    public HealthMetrics() {
+        for (int i = 0; i < perSecond.length; i++) {
+            perSecond[i] = new MetricRing(HISTORY_SECONDS);
+        }
+    }
+
+    public static HealthMetrics getInstance() {
+        return INSTANCE;
+    }
+
+    /** At the end of an overlay callback that started at startNanos. */
+    public void onCallback(long startNanos) {
+        callbackNanos += System.nanoTime() - startNanos;
+    }
+
+    /** After the overlay drew a frame in drawNanos; called on the overlay's thread. */
+    public void onFrame(long drawNanos) {
+        frameMicros.add(drawNanos / 1000);
+    }
+
+    /**
+     * Adds one second's samples. Counters are cumulative and turned into
+     * rates here; one that went backwards, e.g. after a reset, counts from 0.
+     *
+     * @param allocatedBytes cumulative bytes allocated by the process, -1 if unknown
+     */
+    public void sample(long received, long filtered, long emitted, long heapBytes, long allocatedBytes) {
+        if (lastReceived >= 0) {
+            perSecond[RECEIVED].add(delta(received, lastReceived));
+            perSecond[FILTERED].add(delta(filtered, lastFiltered));
+            perSecond[EMITTED].add(delta(emitted, lastEmitted));
+            perSecond[CALLBACK_MICROS].add(callbackNanos / 1000);
+            perSecond[HEAP_KB].add(heapBytes / 1024);
+            perSecond[ALLOCATED_KB].add(allocatedBytes >= 0 && lastAllocated >= 0
+                                        ? delta(allocatedBytes, lastAllocated) / 1024 : -1);
+        }
+        callbackNanos = 0;
+        lastReceived = received;
+        lastFiltered = filtered;
+        lastEmitted = emitted;
+        lastAllocated = allocatedBytes;
+    }
+
+    /** Forgets the counters, so a sampler starting over does not report one huge first second. */
+    public void restartSampling() {
+        lastReceived = -1;
+        lastAllocated = -1;
+        callbackNanos = 0;
+    }
+
+    public MetricRing getRing(int metric) {
+        return perSecond[metric];
+    }
+
+    public MetricRing getFrameRing() {
+        return frameMicros;
+    }
+
+    /** Last, mean and max of every metric over the history held. */
+    public void writeReport(Appendable out) throws IOException {
+        long[] samples = new long[Math.max(HISTORY_SECONDS, HISTORY_FRAMES)];
+        out.append(String.format(Locale.US, "%-18s %9s %9s %9s %5s%n", "metric", "last", "mean", "max", "n"));
+        for (int metric = 0; metric < perSecond.length; metric++) {
+            int n = perSecond[metric].snapshot(samples);
+            appendRow(out, NAMES[metric], samples, n);
+        }
+
+        int frames = frameMicros.snapshot(samples);
+        appendRow(out, "overlay draw us", samples, frames);
+        if (frames > 0) {
+            Arrays.sort(samples, 0, frames);
+            out.append(String.format(Locale.US, "overlay draw us p50 %d p90 %d over %d frames, %d drawn in total%n",
+                                     samples[frames / 2], samples[frames * 9 / 10], frames,
+                                     frameMicros.getCount()));
+        }
+    }
+
+    private static void appendRow(Appendable out, String name, long[] samples, int n) throws IOException {
+        if (n == 0 || samples[n - 1] < 0) {
+            out.append(String.format(Locale.US, "%-18s %9s %9s %9s %5d%n", name, "n/a", "n/a", "n/a", n));
+            return;
+        }
+        long sum = 0;
+        long max = Long.MIN_VALUE;
+        int known = 0;
+        for (int i = 0; i < n; i++) {
+            if (samples[i] >= 0) {
+                sum += samples[i];
+                max = Math.max(max, samples[i]);
+                known++;
+            }
+        }
+        out.append(String.format(Locale.US, "%-18s %9d %9.1f %9d %5d%n", name, samples[n - 1],
+                                 (double) sum / known, max, n));
+    }
+
+    private static long delta(long value, long last) {
+        return value >= last ? value - last : value;
+    }
+}
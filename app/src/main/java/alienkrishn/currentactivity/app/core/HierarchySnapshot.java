@@ -0,0 +1,250 @@
+package alienkrishn.currentactivity.app.core;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * Compact, reusable copy of a view hierarchy.
+ *
+ * Nodes are stored in pre-order in parallel arrays, each with its parent index
+ * and depth, so a capture is a run of appends with no per-node objects. The
+ * arrays only ever grow; {@link #clear()} keeps them for the next capture.
+ */
+public final class HierarchySnapshot {
+
+    public static final int FLAG_VISIBLE = 1;
+    public static final int FLAG_ENABLED = 1 << 1;
+    public static final int FLAG_CLICKABLE = 1 << 2;
+    public static final int FLAG_LONG_CLICKABLE = 1 << 3;
+    public static final int FLAG_FOCUSABLE = 1 << 4;
+    public static final int FLAG_FOCUSED = 1 << 5;
+    public static final int FLAG_SCROLLABLE = 1 << 6;
+    public static final int FLAG_CHECKABLE = 1 << 7;
+    public static final int FLAG_CHECKED = 1 << 8;
+    public static final int FLAG_SELECTED = 1 << 9;
+    public static final int FLAG_EDITABLE = 1 << 10;
+    public static final int FLAG_PASSWORD = 1 << 11;
+
+    private static final String[] FLAG_NAMES = {
+        "visible", "enabled", "clickable", "longClickable", "focusable", "focused",
+        "scrollable", "checkable", "checked", "selected", "editable", "password"
+    };
+
+    /** Longest text kept per node, the rest is cut off. */
+    public static final int MAX_TEXT_LENGTH = 80;
+
+    private int size;
+    private int[] parents;
+    private int[] depths;
+    private int[] flags;
+    // left, top, right, bottom per node
+    private int[] bounds;
+    private String[] classNames;
+    private String[] viewIds;
+    private String[] texts;
+
+    private String packageName;
+    private String activityName;
+    private long captureNanos;
+    private boolean truncated;
+
+    public HierarchySnapshot() {
+        this(256);
+    }
+
+    public HierarchySnapshot(int initialCapacity) {
+        parents = new int[initialCapacity];
+        depths = new int[initialCapacity];
+        flags = new int[initialCapacity];
+        bounds = new int[initialCapacity * 4];
+        classNames = new String[initialCapacity];
+        viewIds = new String[initialCapacity];
+        texts = new String[initialCapacity];
+    }
+
+    public void clear() {
+        // Drop string references so old captures can be collected
+        Arrays.fill(classNames, 0, size, null);
+        Arrays.fill(viewIds, 0, size, null);
+        Arrays.fill(texts, 0, size, null);
+        size = 0;
+        packageName = null;
+        activityName = null;
+        captureNanos = 0;
+        truncated = false;
+    }
+
+    public void setSource(String packageName, String activityName) {
+        this.packageName = packageName;
+        this.activityName = activityName;
+    }
+
+    public void setCaptureNanos(long captureNanos) {
+        this.captureNanos = captureNanos;
+    }
+
+    public void setTruncated(boolean truncated) {
+        this.truncated = truncated;
+    }
+
+    /**
+     * Appends a node. Nodes must be added in pre-order, so parent is always
+     * an index that was returned earlier, or -1 for the root.
+     */
+    public int add(int parent, int depth, CharSequence className, CharSequence viewId, CharSequence text,
+                   int left, int top, int right, int bottom, int nodeFlags) {
+        if (size == parents.length) {
+            grow();
+        }
+        int index = size++;
+        parents[index] = parent;
+        depths[index] = depth;
+        flags[index] = nodeFlags;
+        bounds[index * 4] = left;
+        bounds[index * 4 + 1] = top;
+        bounds[index * 4 + 2] = right;
+        bounds[index * 4 + 3] = bottom;
+        classNames[index] = className == null ? null : className.toString();
+        viewIds[index] = viewId == null ? null : viewId.toString();
+        if (text == null) {
+            texts[index] = null;
+        } else if (text.length() > MAX_TEXT_LENGTH) {
+            texts[index] = text.subSequence(0, MAX_TEXT_LENGTH).toString() + "…";
+        } else {
+            texts[index] = text.toString();
+        }
+        return index;
+    }
+
+    private void grow() {
+        int capacity = Math.max(16, parents.length * 2);
+        parents = Arrays.copyOf(parents, capacity);
+        depths = Arrays.copyOf(depths, capacity);
+        flags = Arrays.copyOf(flags, capacity);
+        bounds = Arrays.copyOf(bounds, capacity * 4);
+        classNames = Arrays.copyOf(classNames, capacity);
+        viewIds = Arrays.copyOf(viewIds, capacity);
+        texts = Arrays.copyOf(texts, capacity);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getParent(int index) {
+        return parents[index];
+    }
+
+    public int getDepth(int index) {
+        return depths[index];
+    }
+
+    public int getFlags(int index) {
+        return flags[index];
+    }
+
+    public String getClassName(int index) {
+        return classNames[index];
+    }
+
+    public String getViewId(int index) {
+        return viewIds[index];
+    }
+
+    public String getText(int index) {
+        return texts[index];
+    }
+
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    public long getCaptureNanos() {
+        return captureNanos;
+    }
+
+    /**
+     * Writes the tree as one nested JSON object. Children are closed by
+     * tracking depth, so this does not recurse either.
+     */
+    public void writeJson(Writer out) throws IOException {
+        StringBuilder sb = new StringBuilder(256);
+        sb.append("{\"package\":");
+        appendNullable(sb, packageName);
+        sb.append(",\"activity\":");
+        appendNullable(sb, activityName);
+        sb.append(",\"nodeCount\":").append(size)
+            .append(",\"truncated\":").append(truncated)
+            .append(",\"captureMillis\":").append(captureNanos / 1000000.0)
+            .append(",\"root\":");
+        out.append(sb);
+
+        if (size == 0) {
+            out.write("null}\n");
+            return;
+        }
+
+        int openDepth = -1;
+        for (int i = 0; i < size; i++) {
+            int depth = depths[i];
+            sb.setLength(0);
+            // Close nodes deeper than or level with this one; a first child needs no comma
+            boolean sibling = openDepth >= depth;
+            while (openDepth >= depth) {
+                sb.append("]}");
+                openDepth--;
+            }
+            if (sibling) {
+                sb.append(',');
+            }
+            sb.append("{\"class\":");
+            appendNullable(sb, classNames[i]);
+            if (viewIds[i] != null) {
+                sb.append(",\"id\":");
+                TransitionStreamCodec.appendJsonString(sb, viewIds[i]);
+            }
+            if (texts[i] != null) {
+                sb.append(",\"text\":");
+                TransitionStreamCodec.appendJsonString(sb, texts[i]);
+            }
+            sb.append(",\"bounds\":[").append(bounds[i * 4]).append(',').append(bounds[i * 4 + 1])
+                .append(',').append(bounds[i * 4 + 2]).append(',').append(bounds[i * 4 + 3]).append(']');
+            appendFlags(sb, flags[i]);
+            sb.append(",\"children\":[");
+            openDepth = depth;
+            out.append(sb);
+        }
+
+        sb.setLength(0);
+        while (openDepth >= depths[0]) {
+            sb.append("]}");
+            openDepth--;
+        }
+        sb.append("}\n");
+        out.append(sb);
+    }
+
+    private static void appendNullable(StringBuilder sb, String value) {
+        if (value == null) {
+            sb.append("null");
+        } else {
+            TransitionStreamCodec.appendJsonString(sb, value);
+        }
+    }
+
+    private static void appendFlags(StringBuilder sb, int nodeFlags) {
+        sb.append(",\"flags\":[");
+        boolean first = true;
+        for (int bit = 0; bit < FLAG_NAMES.length; bit++) {
+            if ((nodeFlags & (1 << bit)) != 0) {
+                if (!first) {
+                    sb.append(',');
+                }
+                sb.append('"').append(FLAG_NAMES[bit]).append('"');
+                first = false;
+            }
+        }
+        sb.append(']');
+    }
+}
@@ -0,0 +1,224 @@
+package alienkrishn.currentactivity.app.core;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes the result of a {@link JournalIndex.Query} out as text, one row at a
+ * time, so exporting millions of transitions needs no more memory than
+ * exporting ten.
+ *
+ * Rows are formatted into one reused buffer that goes to the Writer whenever
+ * it passes {@link #CHUNK_CHARS}. The trace format is the Chrome trace-event
+ * JSON that Perfetto and chrome://tracing open: each activity is a slice
+ * lasting until the next transition, timed on the boot clock the journal
+ * records, which is the clock system traces use, so the slices line up with
+ * a trace taken during the same boot.
+ */
+public final class HistoryExporter {
+
+    public enum Format {
+        CSV("csv", "text/csv"),
+        JSON_LINES("jsonl", "application/x-ndjson"),
+        TRACE("json", "application/json");
+
+        private final String extension;
+        private final String mimeType;
+
+        Format(String extension, String mimeType) {
+            this.extension = extension;
+            this.mimeType = mimeType;
+        }
+
+        public String getExtension() {
+            return extension;
+        }
+
+        public String getMimeType() {
+            return mimeType;
+        }
+    }
+
+    public interface Listener {
+        /**
+         * Called every {@link #PROGRESS_ROWS} rows and once at the end.
+         *
+         * @return false to stop the export
+         */
+        boolean onProgress(int rowsWritten, int rowCount);
+    }
+
+    public static final int PROGRESS_ROWS = 4096;
+    private static final int CHUNK_CHARS = 16 * 1024;
+
+    private final Format format;
+    private final Writer out;
+    private final StringBuilder sb = new StringBuilder(CHUNK_CHARS + 512);
+
+    // Trace rows are written once the next one tells how long they lasted
+    private boolean pending;
+    private long pendingNanos;
+    private String pendingPackage;
+    private String pendingClass;
+    private int pendingSource;
+
+    private HistoryExporter(Format format, Writer out) {
+        this.format = format;
+        this.out = out;
+    }
+
+    /**
+     * Writes every row of the query, from its first, to out. The Writer is
+     * flushed but not closed.
+     *
+     * @return false if the listener cancelled, with only part of the rows written
+     */
+    public static boolean export(JournalIndex.Query query, Format format, Writer out, Listener listener)
+        throws IOException {
+        return new HistoryExporter(format, out).run(query, listener);
+    }
+
+    private boolean run(JournalIndex.Query query, Listener listener) throws IOException {
+        int count = query.getCount();
+        writeHeader();
+        for (int row = 0; row < count; row++) {
+            if (!query.moveToPosition(row)) {
+                break;
+            }
+            writeRow(query.getWallTimeMillis(), query.getElapsedNanos(), query.getPackageName(),
+                     query.getClassName(), query.getSource());
+            if (sb.length() >= CHUNK_CHARS) {
+                out.append(sb);
+                sb.setLength(0);
+            }
+            if ((row + 1) % PROGRESS_ROWS == 0 && listener != null && !listener.onProgress(row + 1, count)) {
+                out.append(sb);
+                out.flush();
+                return false;
+            }
+        }
+        writeFooter();
+        out.append(sb);
+        sb.setLength(0);
+        out.flush();
+        if (listener != null) {
+            listener.onProgress(count, count);
+        }
+        return true;
+    }
+
+    private void writeHeader() {
+        switch (format) {
+            case CSV:
+                sb.append("time,elapsed_nanos,package,activity,source\n");
+                break;
+            case TRACE:
+                sb.append("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[\n");
+                sb.append("{\"name\":\"process_name\",\"ph\":\"M\",\"pid\":1,\"args\":{\"name\":\"Foreground activity\"}}");
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void writeRow(long timeMillis, long elapsedNanos, String packageName, String className, int source) {
+        switch (format) {
+            case CSV:
+                sb.append(timeMillis).append(',').append(elapsedNanos).append(',');
+                appendCsv(packageName);
+                sb.append(',');
+                appendCsv(className);
+                sb.append(',').append(source).append('\n');
+                break;
+            case JSON_LINES:
+                sb.append("{\"time\":").append(timeMillis).append(",\"elapsedNanos\":").append(elapsedNanos)
+                    .append(",\"package\":");
+                appendJson(packageName);
+                sb.append(",\"activity\":");
+                appendJson(className);
+                sb.append(",\"source\":").append(source).append("}\n");
+                break;
+            case TRACE:
+                if (pending) {
+                    writeSlice(elapsedNanos);
+                }
+                pending = true;
+                pendingNanos = elapsedNanos;
+                pendingPackage = packageName;
+                pendingClass = className;
+                pendingSource = source;
+                break;
+        }
+    }
+
+    private void writeFooter() {
+        if (format == Format.TRACE) {
+            if (pending) {
+                writeSlice(-1);
+            }
+            sb.append("\n]}\n");
+        }
+    }
+
+    // Ends the pending slice at endNanos; as an instant for the last one, or one followed by a reboot
+    private void writeSlice(long endNanos) {
+        sb.append(",\n{\"name\":");
+        appendJson(pendingClass);
+        sb.append(",\"cat\":\"activity\",\"pid\":1,\"tid\":1,\"ts\":");
+        appendMicros(pendingNanos);
+        if (endNanos >= pendingNanos) {
+            sb.append(",\"ph\":\"X\",\"dur\":");
+            appendMicros(endNanos - pendingNanos);
+        } else {
+            sb.append(",\"ph\":\"i\",\"s\":\"t\"");
+        }
+        sb.append(",\"args\":{\"package\":");
+        appendJson(pendingPackage);
+        sb.append(",\"source\":").append(pendingSource).append("}}");
+    }
+
+    // Trace timestamps are microseconds; keep the nanoseconds as three decimals
+    private void appendMicros(long nanos) {
+        sb.append(nanos / 1000).append('.');
+        int fraction = (int) (nanos % 1000);
+        if (fraction < 100) {
+            sb.append('0');
+        }
+        if (fraction < 10) {
+            sb.append('0');
+        }
+        sb.append(fraction);
+    }
+
+    private void appendJson(String value) {
+        if (value == null) {
+            sb.append("null");
+        } else {
+            TransitionStreamCodec.appendJsonString(sb, value);
+        }
+    }
+
+    private void appendCsv(String value) {
+        if (value == null) {
+            return;
+        }
+        boolean quote = false;
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!quote) {
+            sb.append(value);
+            return;
+        }
+        sb.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"') {
+                sb.append('"');
+            }
+            sb.append(c);
+        }
+        sb.append('"');
+    }
+}
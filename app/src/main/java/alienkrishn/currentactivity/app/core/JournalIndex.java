@@ -0,0 +1,384 @@
+package alienkrishn.currentactivity.app.core;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Read-only view of a {@link TransitionJournal} directory that answers
+ * time-range and package queries without reading the whole history.
+ *
+ * Every segment is summarised once: how many valid records it holds and
+ * which package ids occur in it. Records in a segment are in time order, so a
+ * query binary-searches the ends of its range, skips segments that are outside
+ * it or never saw the package, and compares ids rather than strings while
+ * counting. Segments before the last are complete and never scanned again;
+ * the last one may still be growing and is picked up from where it was left.
+ * Segments the journal has deleted under its retention limit are dropped and
+ * their files closed; queries made before keep reading their mappings.
+ *
+ * It can be used while the journal is being written, and only sees records
+ * that were complete when a query started. Thread-safe, though each
+ * {@link Query} must be used by one thread at a time.
+ */
+public final class JournalIndex implements Closeable {
+
+    private static final int HEADER_SIZE = TransitionJournal.HEADER_SIZE;
+    private static final int RECORD_SIZE = TransitionJournal.RECORD_SIZE;
+    private static final int CHECKED_BYTES = TransitionJournal.CHECKED_BYTES;
+
+    private final File directory;
+    private final CRC32 crc = new CRC32();
+    private final byte[] scratch = new byte[CHECKED_BYTES];
+
+    // Guarded by this
+    private final List<Segment> segments = new ArrayList<Segment>();
+    private StringDictionary dictionary;
+    private boolean closed = false;
+
+    public JournalIndex(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Finds the transitions with fromMillis <= wall time < toMillis, oldest
+     * first.
+     *
+     * @param packageName only transitions into this package, or null for all
+     */
+    public synchronized Query query(long fromMillis, long toMillis, String packageName) throws IOException {
+        if (closed) {
+            throw new IOException("Index is closed");
+        }
+        refresh();
+
+        int packageId = -1;
+        if (packageName != null) {
+            packageId = dictionary != null ? dictionary.find(packageName) : -1;
+            if (packageId < 0) {
+                // Never seen, nothing can match
+                return new Query(new Segment[0], new int[0], new int[0], 0);
+            }
+        }
+
+        List<Segment> matched = new ArrayList<Segment>();
+        int[] starts = new int[segments.size()];
+        int[] ends = new int[segments.size()];
+        for (Segment segment : segments) {
+            if (segment.recordCount == 0 || (packageId >= 0 && !segment.packageIds.get(packageId))) {
+                continue;
+            }
+            int start = segment.lowerBound(fromMillis);
+            int end = segment.lowerBound(toMillis);
+            if (start < end) {
+                starts[matched.size()] = start;
+                ends[matched.size()] = end;
+                matched.add(segment);
+            }
+        }
+        return new Query(matched.toArray(new Segment[matched.size()]), starts, ends, packageId);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        closed = true;
+        IOException failure = null;
+        for (Segment segment : segments) {
+            try {
+                segment.file.close();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        segments.clear();
+        if (dictionary != null) {
+            dictionary.close();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void refresh() throws IOException {
+        if (dictionary == null) {
+            File path = new File(directory, TransitionJournal.DICTIONARY_NAME);
+            if (!path.exists()) {
+                // Nothing recorded yet
+                return;
+            }
+            dictionary = new StringDictionary(path, true);
+        }
+        // Strings first, so every id in a record read below resolves
+        dictionary.refresh();
+
+        int[] indexes = TransitionJournal.listSegments(directory);
+        for (Iterator<Segment> it = segments.iterator(); it.hasNext(); ) {
+            Segment segment = it.next();
+            if (Arrays.binarySearch(indexes, segment.index) < 0) {
+                it.remove();
+                segment.file.close();
+            }
+        }
+        int newest = indexes.length > 0 ? indexes[indexes.length - 1] : -1;
+        int known = segments.isEmpty() ? -1 : segments.get(segments.size() - 1).index;
+        for (int index : indexes) {
+            if (index > known) {
+                Segment segment = openSegment(index);
+                if (segment != null) {
+                    segments.add(segment);
+                }
+            }
+        }
+        for (Segment segment : segments) {
+            if (segment.sealed) {
+                continue;
+            }
+            scan(segment);
+            // The writer only starts a segment after finishing the one before
+            segment.sealed = segment.index < newest;
+        }
+    }
+
+    private Segment openSegment(int index) throws IOException {
+        File path = new File(directory, TransitionJournal.segmentName(index));
+        RandomAccessFile file;
+        try {
+            file = new RandomAccessFile(path, "r");
+        } catch (IOException e) {
+            // Gone since the listing
+            return null;
+        }
+        long size = file.length();
+        if (size < HEADER_SIZE || size > Integer.MAX_VALUE) {
+            file.close();
+            return null;
+        }
+        MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        if (buffer.getInt(0) != TransitionJournal.MAGIC || buffer.getInt(4) != TransitionJournal.VERSION) {
+            // Possibly a header still being written, the next refresh tries again
+            file.close();
+            return null;
+        }
+        return new Segment(index, file, buffer);
+    }
+
+    private void scan(Segment segment) {
+        int capacity = (segment.buffer.limit() - HEADER_SIZE) / RECORD_SIZE;
+        int known = dictionary.size();
+        while (segment.recordCount < capacity) {
+            int position = HEADER_SIZE + segment.recordCount * RECORD_SIZE;
+            if (!isValidRecord(segment.buffer, position, known)) {
+                break;
+            }
+            segment.packageIds.set(segment.buffer.getInt(position + 8));
+            segment.recordCount++;
+        }
+    }
+
+    private boolean isValidRecord(MappedByteBuffer buffer, int position, int known) {
+        for (int i = 0; i < CHECKED_BYTES; i++) {
+            scratch[i] = buffer.get(position + i);
+        }
+        crc.reset();
+        crc.update(scratch, 0, CHECKED_BYTES);
+        if ((int) crc.getValue() != buffer.getInt(position + CHECKED_BYTES)) {
+            return false;
+        }
+        int packageId = buffer.getInt(position + 8);
+        int classId = buffer.getInt(position + 12);
+        return packageId >= 0 && packageId < known && classId >= 0 && classId < known;
+    }
+
+    private String lookup(int id) {
+        StringDictionary strings;
+        synchronized (this) {
+            strings = dictionary;
+        }
+        return strings != null ? strings.lookup(id) : null;
+    }
+
+    private static final class Segment {
+        final int index;
+        final RandomAccessFile file;
+        final MappedByteBuffer buffer;
+        final long bootTimeMillis;
+        final BitSet packageIds = new BitSet();
+        // Records known to be valid, only ever grows
+        int recordCount;
+        // Set once a later segment exists, the writer never comes back to this one
+        boolean sealed;
+
+        Segment(int index, RandomAccessFile file, MappedByteBuffer buffer) {
+            this.index = index;
+            this.file = file;
+            this.buffer = buffer;
+            this.bootTimeMillis = buffer.getLong(16);
+        }
+
+        long elapsedNanos(int record) {
+            return buffer.getLong(HEADER_SIZE + record * RECORD_SIZE);
+        }
+
+        long wallTimeMillis(int record) {
+            return bootTimeMillis + elapsedNanos(record) / 1000000L;
+        }
+
+        int packageId(int record) {
+            return buffer.getInt(HEADER_SIZE + record * RECORD_SIZE + 8);
+        }
+
+        int classId(int record) {
+            return buffer.getInt(HEADER_SIZE + record * RECORD_SIZE + 12);
+        }
+
+        int source(int record) {
+            return buffer.getShort(HEADER_SIZE + record * RECORD_SIZE + 16);
+        }
+
+        // First record at or after the given wall time, recordCount if none
+        int lowerBound(long wallTimeMillis) {
+            int low = 0;
+            int high = recordCount;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (wallTimeMillis(mid) < wallTimeMillis) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+
+    /**
+     * The result of one query, a fixed snapshot that records appended later do
+     * not change. Positions run from 0 to getCount() - 1 and can be visited in
+     * any order; moving forward is cheapest.
+     */
+    public final class Query {
+
+        private final Segment[] matched;
+        private final int[] starts;
+        private final int[] ends;
+        private final int packageId;
+        // Position of the first match in each segment, plus the total at the end
+        private final int[] firstPositions;
+
+        private int position = -1;
+        private int segment;
+        private int record;
+
+        Query(Segment[] matched, int[] starts, int[] ends, int packageId) {
+            this.matched = matched;
+            this.starts = starts;
+            this.ends = ends;
+            this.packageId = packageId;
+            firstPositions = new int[matched.length + 1];
+            for (int i = 0; i < matched.length; i++) {
+                firstPositions[i + 1] = firstPositions[i] + countMatches(i);
+            }
+        }
+
+        private int countMatches(int segment) {
+            if (packageId < 0) {
+                return ends[segment] - starts[segment];
+            }
+            Segment s = matched[segment];
+            int count = 0;
+            for (int r = starts[segment]; r < ends[segment]; r++) {
+                if (s.packageId(r) == packageId) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        public int getCount() {
+            return firstPositions[matched.length];
+        }
+
+        public int getPosition() {
+            return position;
+        }
+
+        /** Moves to the given match; false, without moving, if there is none. */
+        public boolean moveToPosition(int target) {
+            if (target < 0 || target >= getCount()) {
+                return false;
+            }
+            if (target == position) {
+                return true;
+            }
+            if (position < 0 || target < position || target >= firstPositions[segment + 1]) {
+                // Jump to the segment holding the target and walk from its start
+                int low = 0;
+                int high = matched.length - 1;
+                while (low < high) {
+                    int mid = (low + high + 1) >>> 1;
+                    if (firstPositions[mid] <= target) {
+                        low = mid;
+                    } else {
+                        high = mid - 1;
+                    }
+                }
+                segment = low;
+                position = firstPositions[segment] - 1;
+                record = starts[segment] - 1;
+            }
+            if (packageId < 0) {
+                record += target - position;
+            } else {
+                Segment s = matched[segment];
+                while (position < target) {
+                    do {
+                        record++;
+                    } while (s.packageId(record) != packageId);
+                    position++;
+                }
+            }
+            position = target;
+            return true;
+        }
+
+        public boolean moveToNext() {
+            return moveToPosition(position + 1);
+        }
+
+        /** Stable for the life of the journal: segment index in the high half, record in the low. */
+        public long getRecordId() {
+            return ((long) matched[segment].index << 32) | record;
+        }
+
+        public long getElapsedNanos() {
+            return matched[segment].elapsedNanos(record);
+        }
+
+        public long getWallTimeMillis() {
+            return matched[segment].wallTimeMillis(record);
+        }
+
+        public String getPackageName() {
+            return lookup(matched[segment].packageId(record));
+        }
+
+        public String getClassName() {
+            return lookup(matched[segment].classId(record));
+        }
+
+        public int getSource() {
+            return matched[segment].source(record);
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package alienkrishn.currentactivity.app.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram with fixed log-linear buckets.
+ *
+ * Values are kept in microseconds: exact below 16 µs, then 8 buckets per
+ * power of two, so any percentile is within about 12% of the true value.
+ * Recording is one atomic increment plus a CAS for the maximum, safe from any
+ * thread and free of allocation. Reads are not a consistent snapshot while
+ * records are in flight, which is fine for monitoring.
+ */
+public final class LatencyHistogram {
+
+    private static final int LINEAR_BUCKETS = 16;
+    private static final int SUB_BUCKETS = 8;
+    private static final int BUCKETS = 320;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    public void record(long nanos) {
+        if (nanos < 0) {
+            // Clocks from different sources can disagree by a little
+            nanos = 0;
+        }
+        counts.incrementAndGet(bucketFor(nanos / 1000));
+        total.incrementAndGet();
+        long max = maxNanos.get();
+        while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+            max = maxNanos.get();
+        }
+    }
+
+    static int bucketFor(long micros) {
+        if (micros < LINEAR_BUCKETS) {
+            return (int) micros;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(micros) - 3;
+        int index = shift * SUB_BUCKETS + (int) (micros >>> shift);
+        return Math.min(index, BUCKETS - 1);
+    }
+
+    static long lowerBoundMicros(int bucket) {
+        if (bucket < LINEAR_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        return (long) (bucket % SUB_BUCKETS + SUB_BUCKETS) << shift;
+    }
+
+    public long getCount() {
+        return total.get();
+    }
+
+    public long getMaxNanos() {
+        return maxNanos.get();
+    }
+
+    /**
+     * Returns the value at the given percentile (0..100) in nanoseconds, as
+     * the middle of the bucket it falls in, or 0 when nothing was recorded.
+     */
+    public long getPercentileNanos(double percentile) {
+        long count = total.get();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(count * percentile / 100.0));
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            seen += counts.get(bucket);
+            if (seen >= rank) {
+                long low = lowerBoundMicros(bucket);
+                long high = bucket + 1 < BUCKETS ? lowerBoundMicros(bucket + 1) : low;
+                long middle = (low + high) / 2 * 1000;
+                // Never report more than was actually seen
+                return Math.min(middle, maxNanos.get());
+            }
+        }
+        return maxNanos.get();
+    }
+
+    public void reset() {
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            counts.set(bucket, 0);
+        }
+        total.set(0);
+        maxNanos.set(0);
+    }
+}
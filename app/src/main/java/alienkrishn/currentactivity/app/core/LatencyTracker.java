@@ -0,0 +1,137 @@
+package alienkrishn.currentactivity.app.core;
+
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * Per-stage latency of a transition on its way from the accessibility event
+ * to the overlay pixels:
+ *
+ * <ol>
+ *   <li>notify: event time to receipt by the service, includes notificationTimeout</li>
+ *   <li>dispatch: receipt to publish on the bus (filter, dedup, classify)</li>
+ *   <li>deliver: publish to the overlay's subscriber</li>
+ *   <li>render: subscriber to the frame the new text is drawn in</li>
+ *   <li>total: event time to that frame</li>
+ * </ol>
+ *
+ * Off by default; when disabled every hook returns after one volatile read.
+ * The receipt fields are only touched on the main thread, where the service
+ * and the overlay both run.
+ */
+public final class LatencyTracker {
+
+    public static final int STAGE_NOTIFY = 0;
+    public static final int STAGE_DISPATCH = 1;
+    public static final int STAGE_DELIVER = 2;
+    public static final int STAGE_RENDER = 3;
+    public static final int STAGE_TOTAL = 4;
+
+    private static final String[] STAGE_NAMES = { "notify", "dispatch", "deliver", "render", "total" };
+    private static final String[] SHORT_NAMES = { "ntf", "dsp", "dlv", "rnd" };
+    private static final LatencyTracker INSTANCE = new LatencyTracker();
+
+    private final LatencyHistogram[] histograms = new LatencyHistogram[STAGE_NAMES.length];
+    private volatile boolean enabled;
+
+    // Last receipt, matched against the event that reaches the overlay
+    private long receiptEventTime = -1;
+    private long receiptNanos;
+
+    public LatencyTracker() {
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new LatencyHistogram();
+        }
+    }
+
+    public static LatencyTracker getInstance() {
+        return INSTANCE;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Service side, when an event arrives. Both uptimes are in milliseconds
+     * on the same clock as AccessibilityEvent.getEventTime().
+     */
+    public void onReceipt(long eventTimeMillis, long receiptUptimeMillis, long nowNanos) {
+        if (!enabled) {
+            return;
+        }
+        histograms[STAGE_NOTIFY].record((receiptUptimeMillis - eventTimeMillis) * 1000000L);
+        receiptEventTime = eventTimeMillis;
+        receiptNanos = nowNanos;
+    }
+
+    /** Overlay side, in its bus subscriber. */
+    public void onDelivered(ActivityEvent event, long nowNanos) {
+        if (!enabled) {
+            return;
+        }
+        if (event.getEventTime() == receiptEventTime) {
+            histograms[STAGE_DISPATCH].record(event.getPublishNanos() - receiptNanos);
+        }
+        histograms[STAGE_DELIVER].record(nowNanos - event.getPublishNanos());
+    }
+
+    /** Overlay side, in the frame that shows an event delivered at deliveredNanos. */
+    public void onRendered(long eventTimeMillis, long deliveredNanos, long nowUptimeMillis, long nowNanos) {
+        if (!enabled) {
+            return;
+        }
+        histograms[STAGE_RENDER].record(nowNanos - deliveredNanos);
+        histograms[STAGE_TOTAL].record((nowUptimeMillis - eventTimeMillis) * 1000000L);
+    }
+
+    public LatencyHistogram getHistogram(int stage) {
+        return histograms[stage];
+    }
+
+    public void reset() {
+        for (LatencyHistogram histogram : histograms) {
+            histogram.reset();
+        }
+    }
+
+    /** Two short lines for the overlay debug row. */
+    public String summary() {
+        StringBuilder sb = new StringBuilder(96);
+        sb.append("p50");
+        for (int stage = STAGE_NOTIFY; stage < STAGE_TOTAL; stage++) {
+            sb.append(' ').append(SHORT_NAMES[stage]).append('=');
+            appendMillis(sb, histograms[stage].getPercentileNanos(50));
+        }
+        LatencyHistogram total = histograms[STAGE_TOTAL];
+        sb.append(" ms\ntotal p50 ");
+        appendMillis(sb, total.getPercentileNanos(50));
+        sb.append(" p99 ");
+        appendMillis(sb, total.getPercentileNanos(99));
+        sb.append(" max ");
+        appendMillis(sb, total.getMaxNanos());
+        sb.append(" ms n=").append(total.getCount());
+        return sb.toString();
+    }
+
+    /** Full table, one stage per line, for export. */
+    public void writeReport(Appendable out) throws IOException {
+        out.append(String.format(Locale.US, "%-9s %8s %9s %9s %9s%n", "stage", "count", "p50 ms", "p99 ms", "max ms"));
+        for (int stage = 0; stage < histograms.length; stage++) {
+            LatencyHistogram histogram = histograms[stage];
+            out.append(String.format(Locale.US, "%-9s %8d %9.2f %9.2f %9.2f%n", STAGE_NAMES[stage],
+                                     histogram.getCount(),
+                                     histogram.getPercentileNanos(50) / 1e6,
+                                     histogram.getPercentileNanos(99) / 1e6,
+                                     histogram.getMaxNanos() / 1e6));
+        }
+    }
+
+    private static void appendMillis(StringBuilder sb, long nanos) {
+        sb.append(String.format(Locale.US, nanos < 10000000L ? "%.1f" : "%.0f", nanos / 1e6));
+    }
+}
@@ -0,0 +1,70 @@
+package alienkrishn.currentactivity.app.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-size ring of the most recent samples of one metric, written by one
+ * thread and read from any without locks.
+ *
+ * The writer claims the next slot, stores the sample, then publishes it by
+ * advancing the count. A reader copies what the count says is there and
+ * checks the claims afterwards; samples the writer may have overwritten
+ * meanwhile are dropped from the copy rather than returned torn, while a
+ * quiet ring is always copied whole.
+ */
+public final class MetricRing {
+
+    private final AtomicLongArray values;
+    private final int mask;
+    private final AtomicLong count = new AtomicLong();
+    // Ahead of count by one while a sample is being stored
+    private final AtomicLong claimed = new AtomicLong();
+
+    public MetricRing(int capacity) {
+        if (capacity <= 0 || (capacity & (capacity - 1)) != 0) {
+            throw new IllegalArgumentException("capacity must be a power of two: " + capacity);
+        }
+        values = new AtomicLongArray(capacity);
+        mask = capacity - 1;
+    }
+
+    /** Writer thread only. */
+    public void add(long value) {
+        long n = count.get();
+        // Claimed before the store, so a reader that sees the new value also sees the claim
+        claimed.set(n + 1);
+        values.set((int) (n & mask), value);
+        count.lazySet(n + 1);
+    }
+
+    /**
+     * Copies up to out.length of the latest samples into out, oldest first.
+     *
+     * @return how many were copied
+     */
+    public int snapshot(long[] out) {
+        long end = count.get();
+        long start = Math.max(0, end - Math.min(out.length, values.length()));
+        for (long n = start; n < end; n++) {
+            out[(int) (n - start)] = values.get((int) (n & mask));
+        }
+        // Claiming sample n + capacity overwrites sample n
+        long overwritten = claimed.get() - values.length();
+        if (overwritten > start) {
+            int skip = (int) Math.min(overwritten - start, end - start);
+            System.arraycopy(out, skip, out, 0, (int) (end - start) - skip);
+            return (int) (end - start) - skip;
+        }
+        return (int) (end - start);
+    }
+
+    /** Samples added since creation, including those no longer held. */
+    public long getCount() {
+        return count.get();
+    }
+
+    public int getCapacity() {
+        return values.length();
+    }
+}
@@ -0,0 +1,62 @@
+package alienkrishn.currentactivity.app.core;
+
+import java.util.Locale;
+
+/**
+ * Durations of the stages of a component's startup, in the order they
+ * finished, measured from a common start.
+ *
+ * Marks may come from different threads as long as they happen one after
+ * another, which is how a staged startup hands over between them.
+ */
+public final class StartupTimer {
+
+    private static final int MAX_STAGES = 16;
+
+    private final long startNanos;
+    private final String[] names = new String[MAX_STAGES];
+    private final long[] endNanos = new long[MAX_STAGES];
+    private volatile int count;
+
+    public StartupTimer(long startNanos) {
+        this.startNanos = startNanos;
+    }
+
+    /** Ends the stage that began when the previous one ended. Extra stages are dropped. */
+    public synchronized void mark(String stage, long nowNanos) {
+        if (count < MAX_STAGES) {
+            names[count] = stage;
+            endNanos[count] = nowNanos;
+            count++;
+        }
+    }
+
+    public synchronized int getStageCount() {
+        return count;
+    }
+
+    public synchronized String getStageName(int stage) {
+        return names[stage];
+    }
+
+    public synchronized long getStageNanos(int stage) {
+        return endNanos[stage] - (stage == 0 ? startNanos : endNanos[stage - 1]);
+    }
+
+    /** From the start to the end of the last stage so far. */
+    public synchronized long getTotalNanos() {
+        return count == 0 ? 0 : endNanos[count - 1] - startNanos;
+    }
+
+    /** One line, e.g. "foreground 4.1, view 6.3, attach 1.2, first frame 9.8, total 21.4 ms". */
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder(128);
+        for (int i = 0; i < count; i++) {
+            sb.append(names[i]).append(' ');
+            sb.append(String.format(Locale.US, "%.1f", getStageNanos(i) / 1e6)).append(", ");
+        }
+        sb.append("total ").append(String.format(Locale.US, "%.1f", getTotalNanos() / 1e6)).append(" ms");
+        return sb.toString();
+    }
+}
@@ -0,0 +1,160 @@
+package alienkrishn.currentactivity.app.core;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only file mapping strings to small int ids, used by
+ * {@link TransitionJournal} so records can store names as fixed-size ids.
+ *
+ * Each entry is {@code [int id][short length][utf-8 bytes][int crc]}. On open
+ * the file is scanned and cut back to the last intact entry, so a crash in the
+ * middle of an append only loses that one string. Id 0 is reserved for "".
+ *
+ * A read-only instance never cuts the file, since the writer may be in the
+ * middle of an append; it stops at the last intact entry and picks up later
+ * ones on {@link #refresh()}.
+ */
+final class StringDictionary implements Closeable {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int ENTRY_OVERHEAD = 4 + 2 + 4;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final Map<String, Integer> ids = new HashMap<String, Integer>();
+    private final List<String> strings = new ArrayList<String>();
+    private final CRC32 crc = new CRC32();
+    private final boolean readOnly;
+    // End of the last intact entry read so far
+    private long validLength;
+
+    StringDictionary(File path) throws IOException {
+        this(path, false);
+    }
+
+    StringDictionary(File path, boolean readOnly) throws IOException {
+        file = new RandomAccessFile(path, readOnly ? "r" : "rw");
+        channel = file.getChannel();
+        this.readOnly = readOnly;
+        strings.add("");
+        ids.put("", 0);
+        readEntries();
+        if (!readOnly) {
+            recover();
+        }
+    }
+
+    private void recover() throws IOException {
+        if (validLength < channel.size()) {
+            // Torn or corrupt tail from an interrupted append
+            file.setLength(validLength);
+        }
+        channel.position(validLength);
+    }
+
+    private void readEntries() throws IOException {
+        long length = channel.size() - validLength;
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(length, Integer.MAX_VALUE));
+        channel.read(buffer, validLength);
+        buffer.flip();
+
+        int valid = 0;
+        while (buffer.remaining() >= ENTRY_OVERHEAD) {
+            int id = buffer.getInt();
+            int size = buffer.getShort() & 0xFFFF;
+            if (id != strings.size() || buffer.remaining() < size + 4) {
+                break;
+            }
+            byte[] bytes = new byte[size];
+            buffer.get(bytes);
+            int stored = buffer.getInt();
+            if (stored != checksum(id, bytes)) {
+                break;
+            }
+            String value = new String(bytes, UTF_8);
+            strings.add(value);
+            ids.put(value, id);
+            valid = buffer.position();
+        }
+        validLength += valid;
+    }
+
+    /** Reads entries appended by the writer since the last read. Read-only instances only. */
+    synchronized void refresh() throws IOException {
+        if (readOnly && channel.size() > validLength) {
+            readEntries();
+        }
+    }
+
+    private int checksum(int id, byte[] bytes) {
+        crc.reset();
+        crc.update(id >>> 24);
+        crc.update(id >>> 16);
+        crc.update(id >>> 8);
+        crc.update(id);
+        crc.update(bytes, 0, bytes.length);
+        return (int) crc.getValue();
+    }
+
+    /** Returns the id for the string, appending it to the file if it is new. */
+    synchronized int intern(String value) throws IOException {
+        if (readOnly) {
+            throw new IOException("Dictionary is read-only");
+        }
+        Integer existing = ids.get(value);
+        if (existing != null) {
+            return existing;
+        }
+
+        byte[] bytes = value.getBytes(UTF_8);
+        if (bytes.length > 0xFFFF) {
+            throw new IOException("String too long for dictionary: " + bytes.length + " bytes");
+        }
+        int id = strings.size();
+        ByteBuffer entry = ByteBuffer.allocate(ENTRY_OVERHEAD + bytes.length);
+        entry.putInt(id).putShort((short) bytes.length).put(bytes).putInt(checksum(id, bytes));
+        entry.flip();
+        while (entry.hasRemaining()) {
+            channel.write(entry);
+        }
+
+        strings.add(value);
+        ids.put(value, id);
+        return id;
+    }
+
+    /** Returns the string for an id, or null if the id is unknown. */
+    synchronized String lookup(int id) {
+        return id >= 0 && id < strings.size() ? strings.get(id) : null;
+    }
+
+    /** Returns the id of a string already in the dictionary, or -1. */
+    synchronized int find(String value) {
+        Integer id = ids.get(value);
+        return id != null ? id : -1;
+    }
+
+    synchronized int size() {
+        return strings.size();
+    }
+
+    void force() throws IOException {
+        channel.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+}
@@ -0,0 +1,155 @@
+package alienkrishn.currentactivity.app.core;
+
+/**
+ * Bounded table that maps the content of a CharSequence to a small int id and
+ * one canonical String per distinct content.
+ *
+ * A hit is a hash and a compare with no allocation; only a name that is not in
+ * the table yet is turned into a String. Handing the same String instance to
+ * every consumer also means its hash is computed once, so the maps they key
+ * by name hit on identity. When the table is full the least recently useful
+ * entry is evicted with the clock algorithm: a name must be looked up again
+ * after it went in to survive a sweep, so one-off names go first and the few
+ * hundred names a device really shows stay. Memory stays flat however long
+ * the process runs.
+ *
+ * An id keeps its string until the entry is evicted, after which it is reused.
+ * Not thread-safe.
+ */
+public final class StringInterner {
+
+    private final int maxEntries;
+    // By id
+    private final String[] strings;
+    private final int[] hashes;
+    private final boolean[] referenced;
+    // Open addressing, id + 1 per slot, 0 when free
+    private final int[] table;
+    private final int mask;
+
+    private int size;
+    private int hand;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public StringInterner(int maxEntries) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("Capacity must be positive: " + maxEntries);
+        }
+        this.maxEntries = maxEntries;
+        strings = new String[maxEntries];
+        hashes = new int[maxEntries];
+        referenced = new boolean[maxEntries];
+        int capacity = 4;
+        while (capacity < maxEntries * 2) {
+            capacity <<= 1;
+        }
+        table = new int[capacity];
+        mask = capacity - 1;
+    }
+
+    /** Returns the canonical String with the same content, or null for null. */
+    public String intern(CharSequence value) {
+        return value == null ? null : strings[id(value)];
+    }
+
+    /** Returns the id for the content, adding it and evicting another if needed. */
+    public int id(CharSequence value) {
+        int hash = hash(value);
+        int slot = hash & mask;
+        int entry;
+        while ((entry = table[slot]) != 0) {
+            int id = entry - 1;
+            if (hashes[id] == hash && strings[id].contentEquals(value)) {
+                referenced[id] = true;
+                hits++;
+                return id;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        misses++;
+        int id = size < maxEntries ? size++ : evict();
+        strings[id] = value.toString();
+        hashes[id] = hash;
+        // Not referenced until it is looked up again
+        referenced[id] = false;
+        slot = hash & mask;
+        while (table[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        table[slot] = id + 1;
+        return id;
+    }
+
+    /** The string an id currently stands for, or null if the id was never given out. */
+    public String get(int id) {
+        return id >= 0 && id < size ? strings[id] : null;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getCapacity() {
+        return maxEntries;
+    }
+
+    public long getHitCount() {
+        return hits;
+    }
+
+    public long getMissCount() {
+        return misses;
+    }
+
+    public long getEvictionCount() {
+        return evictions;
+    }
+
+    // Strings cache their hash and compute it with an intrinsic, both agree with CharSequenceSet.hash
+    private static int hash(CharSequence value) {
+        if (value instanceof String) {
+            int h = value.hashCode();
+            return h ^ (h >>> 16);
+        }
+        return CharSequenceSet.hash(value);
+    }
+
+    // Clock sweep: clear reference bits until an entry without one turns up
+    private int evict() {
+        while (true) {
+            int id = hand;
+            hand = hand + 1 == maxEntries ? 0 : hand + 1;
+            if (referenced[id]) {
+                referenced[id] = false;
+            } else {
+                remove(id);
+                evictions++;
+                return id;
+            }
+        }
+    }
+
+    private void remove(int id) {
+        int slot = hashes[id] & mask;
+        while (table[slot] != id + 1) {
+            slot = (slot + 1) & mask;
+        }
+        table[slot] = 0;
+        strings[id] = null;
+
+        // Shift later entries of the probe run back so lookups never stop at the hole
+        int next = (slot + 1) & mask;
+        while (table[next] != 0) {
+            int home = hashes[table[next] - 1] & mask;
+            if (((next - home) & mask) >= ((next - slot) & mask)) {
+                table[slot] = table[next];
+                table[next] = 0;
+                slot = next;
+            }
+            next = (next + 1) & mask;
+        }
+    }
+}
@@ -0,0 +1,477 @@
+package alienkrishn.currentactivity.app.core;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only binary history of foreground transitions.
+ *
+ * Records are fixed-size and written through a memory-mapped segment file, so
+ * an append is a handful of stores into the page cache with no syscall and no
+ * per-record object. Package and class names are stored as ids from a
+ * separate {@link StringDictionary}. When a segment is full the journal rolls
+ * over to the next one, and only the newest segments are kept (64, about 2.8
+ * million transitions, by default); older ones are deleted.
+ *
+ * Segment layout: a 32 byte header
+ * {@code [int magic][int version][int index][int recordSize][long bootTimeMillis][long reserved]}
+ * followed by 24 byte records
+ * {@code [long elapsedNanos][int packageId][int classId][short source][short reserved][int crc]}.
+ *
+ * Timestamps are monotonic nanoseconds since boot. Each segment header stores
+ * the wall-clock boot time so readers can convert them, and a new segment is
+ * started whenever the journal is reopened after a reboot.
+ *
+ * On open the last segment is scanned and the write position is placed after
+ * the last record with a valid checksum whose ids resolve in the dictionary,
+ * so a record torn by a crash is dropped rather than read back as garbage.
+ *
+ * Writes must come from a single thread. Readers may run on other threads.
+ */
+public final class TransitionJournal implements Closeable {
+
+    public static final int DEFAULT_SEGMENT_SIZE = 1024 * 1024;
+    public static final int DEFAULT_MAX_SEGMENTS = 64;
+
+    static final int MAGIC = 0x43414A31; // "CAJ1"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 32;
+    static final int RECORD_SIZE = 24;
+    static final int CHECKED_BYTES = RECORD_SIZE - 4;
+
+    // Reboots are detected by the estimated boot time moving by more than this
+    private static final long BOOT_TIME_TOLERANCE_MILLIS = 10000;
+
+    private static final String SEGMENT_PREFIX = "seg-";
+    private static final String SEGMENT_SUFFIX = ".journal";
+    static final String DICTIONARY_NAME = "strings.dict";
+
+    private final File directory;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final long bootTimeMillis;
+    private final StringDictionary dictionary;
+
+    private final CRC32 crc = new CRC32();
+    private final byte[] scratch = new byte[CHECKED_BYTES];
+
+    private RandomAccessFile segmentFile;
+    private MappedByteBuffer segment;
+    private int segmentIndex;
+    private volatile long recordCount;
+
+    private TransitionJournal(File directory, int segmentSize, int maxSegments, long bootTimeMillis)
+        throws IOException {
+        if (segmentSize < HEADER_SIZE + RECORD_SIZE) {
+            throw new IllegalArgumentException("Segment too small: " + segmentSize);
+        }
+        if (maxSegments < 1) {
+            throw new IllegalArgumentException("Must keep at least one segment: " + maxSegments);
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create journal directory " + directory);
+        }
+        this.directory = directory;
+        // Whole records only
+        this.segmentSize = HEADER_SIZE + (segmentSize - HEADER_SIZE) / RECORD_SIZE * RECORD_SIZE;
+        this.maxSegments = maxSegments;
+        this.bootTimeMillis = bootTimeMillis;
+        this.dictionary = new StringDictionary(new File(directory, DICTIONARY_NAME));
+    }
+
+    /**
+     * Opens the journal in the given directory, recovering the tail of the last
+     * segment or starting a new one.
+     *
+     * @param bootTimeMillis wall-clock time of the current boot, i.e.
+     *                       currentTimeMillis - elapsedRealtime
+     * @param maxSegments    how many segments to keep, the oldest are deleted beyond that
+     */
+    public static TransitionJournal open(File directory, long bootTimeMillis, int segmentSize, int maxSegments)
+        throws IOException {
+        TransitionJournal journal = new TransitionJournal(directory, segmentSize, maxSegments, bootTimeMillis);
+        try {
+            journal.openTail();
+        } catch (IOException e) {
+            journal.close();
+            throw e;
+        }
+        return journal;
+    }
+
+    public static TransitionJournal open(File directory, long bootTimeMillis, int segmentSize) throws IOException {
+        return open(directory, bootTimeMillis, segmentSize, DEFAULT_MAX_SEGMENTS);
+    }
+
+    public static TransitionJournal open(File directory, long bootTimeMillis) throws IOException {
+        return open(directory, bootTimeMillis, DEFAULT_SEGMENT_SIZE, DEFAULT_MAX_SEGMENTS);
+    }
+
+    private void openTail() throws IOException {
+        int[] indexes = listSegments(directory);
+        for (int index : indexes) {
+            recordCount += countRecords(new File(directory, segmentName(index)));
+        }
+        if (indexes.length == 0) {
+            startSegment(0);
+            return;
+        }
+
+        int last = indexes[indexes.length - 1];
+        if (new File(directory, segmentName(last)).length() != segmentSize) {
+            // Written with another segment size, leave it untouched
+            startSegment(last + 1);
+            return;
+        }
+        mapSegment(last);
+        long lastBoot = segment.getLong(16);
+        if (segment.getInt(0) != MAGIC || segment.getInt(4) != VERSION ||
+            Math.abs(lastBoot - bootTimeMillis) > BOOT_TIME_TOLERANCE_MILLIS) {
+            // Different boot or unreadable header, timestamps would not line up
+            startSegment(last + 1);
+            return;
+        }
+
+        int position = HEADER_SIZE;
+        while (position + RECORD_SIZE <= segmentSize && isValidRecord(segment, position)) {
+            position += RECORD_SIZE;
+        }
+        // Zero whatever a crash left behind so readers stop at the same place
+        for (int i = position; i < segmentSize && segment.get(i) != 0; i++) {
+            segment.put(i, (byte) 0);
+        }
+        segment.position(position);
+        // The limit may have been lowered since the journal was last open
+        deleteExpiredSegments();
+    }
+
+    private long countRecords(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            long size = raf.length();
+            if (size < HEADER_SIZE) {
+                return 0;
+            }
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+            buffer.order(ByteOrder.BIG_ENDIAN);
+            long count = 0;
+            for (int position = HEADER_SIZE; position + RECORD_SIZE <= size && isValidRecord(buffer, position);
+                 position += RECORD_SIZE) {
+                count++;
+            }
+            return count;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private void startSegment(int index) throws IOException {
+        File file = new File(directory, segmentName(index));
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Cannot replace segment " + file);
+        }
+        mapSegment(index);
+        segment.putInt(0, MAGIC);
+        segment.putInt(4, VERSION);
+        segment.putInt(8, index);
+        segment.putInt(12, RECORD_SIZE);
+        segment.putLong(16, bootTimeMillis);
+        segment.putLong(24, 0);
+        segment.position(HEADER_SIZE);
+        deleteExpiredSegments();
+    }
+
+    // Keeps the current segment and the ones before it up to maxSegments in all
+    private void deleteExpiredSegments() throws IOException {
+        for (int index : listSegments(directory)) {
+            if (index > segmentIndex - maxSegments) {
+                break;
+            }
+            File file = new File(directory, segmentName(index));
+            long count = countRecords(file);
+            // Readers that have it mapped keep their view until they close it
+            if (file.delete()) {
+                recordCount -= count;
+            }
+        }
+    }
+
+    private void mapSegment(int index) throws IOException {
+        if (segment != null) {
+            segment.force();
+            segmentFile.close();
+        }
+        segmentFile = new RandomAccessFile(new File(directory, segmentName(index)), "rw");
+        if (segmentFile.length() != segmentSize) {
+            segmentFile.setLength(segmentSize);
+        }
+        segment = segmentFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        segment.order(ByteOrder.BIG_ENDIAN);
+        segmentIndex = index;
+    }
+
+    /**
+     * Appends one transition.
+     *
+     * @param elapsedNanos monotonic time since boot
+     * @param source       one of the ActivityEvent SOURCE_ constants
+     */
+    public void append(long elapsedNanos, String packageName, String className, int source) throws IOException {
+        int packageId = dictionary.intern(packageName);
+        int classId = dictionary.intern(className);
+
+        if (segment.remaining() < RECORD_SIZE) {
+            startSegment(segmentIndex + 1);
+        }
+
+        byte[] b = scratch;
+        putLong(b, 0, elapsedNanos);
+        putInt(b, 8, packageId);
+        putInt(b, 12, classId);
+        b[16] = (byte) (source >>> 8);
+        b[17] = (byte) source;
+        b[18] = 0;
+        b[19] = 0;
+        crc.reset();
+        crc.update(b, 0, CHECKED_BYTES);
+
+        // Payload first, checksum last, so a torn write never validates
+        segment.put(b, 0, CHECKED_BYTES);
+        segment.putInt((int) crc.getValue());
+        recordCount++;
+    }
+
+    /** Flushes the current segment and dictionary to storage. */
+    public void force() throws IOException {
+        dictionary.force();
+        segment.force();
+    }
+
+    public long getRecordCount() {
+        return recordCount;
+    }
+
+    public long getBootTimeMillis() {
+        return bootTimeMillis;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /** Resolves a dictionary id to its string, or null if unknown. */
+    public String lookup(int id) {
+        return dictionary.lookup(id);
+    }
+
+    /** Returns a reader over every record, oldest first. */
+    public Reader newReader() {
+        return new Reader();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (segment != null) {
+                segment.force();
+            }
+            if (segmentFile != null) {
+                segmentFile.close();
+            }
+        } finally {
+            dictionary.close();
+        }
+    }
+
+    private boolean isValidRecord(MappedByteBuffer buffer, int position) {
+        for (int i = 0; i < CHECKED_BYTES; i++) {
+            scratch[i] = buffer.get(position + i);
+        }
+        crc.reset();
+        crc.update(scratch, 0, CHECKED_BYTES);
+        if ((int) crc.getValue() != buffer.getInt(position + CHECKED_BYTES)) {
+            return false;
+        }
+        // A valid record pointing at a dictionary entry lost in the crash is still unusable
+        int known = dictionary.size();
+        int packageId = buffer.getInt(position + 8);
+        int classId = buffer.getInt(position + 12);
+        return packageId >= 0 && packageId < known && classId >= 0 && classId < known;
+    }
+
+    private static void putLong(byte[] b, int offset, long value) {
+        putInt(b, offset, (int) (value >>> 32));
+        putInt(b, offset + 4, (int) value);
+    }
+
+    private static void putInt(byte[] b, int offset, int value) {
+        b[offset] = (byte) (value >>> 24);
+        b[offset + 1] = (byte) (value >>> 16);
+        b[offset + 2] = (byte) (value >>> 8);
+        b[offset + 3] = (byte) value;
+    }
+
+    static String segmentName(int index) {
+        return String.format(Locale.US, "%s%08d%s", SEGMENT_PREFIX, index, SEGMENT_SUFFIX);
+    }
+
+    static int[] listSegments(File directory) {
+        String[] names = directory.list(new FilenameFilter() {
+                @Override
+                public boolean accept(File dir, String name) {
+                    return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+                }
+            });
+        if (names == null) {
+            return new int[0];
+        }
+        int[] indexes = new int[names.length];
+        int count = 0;
+        for (String name : names) {
+            try {
+                indexes[count] = Integer.parseInt(
+                    name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+                count++;
+            } catch (NumberFormatException e) {
+                // Not one of ours
+            }
+        }
+        indexes = Arrays.copyOf(indexes, count);
+        Arrays.sort(indexes);
+        return indexes;
+    }
+
+    /**
+     * Sequential reader over all segments. Each reader maps segments read-only
+     * and is confined to one thread; it stops at the first record that is not
+     * (yet) valid, so it can safely follow a journal that is being written.
+     */
+    public final class Reader implements Closeable {
+
+        private final CRC32 readerCrc = new CRC32();
+        private final byte[] readerScratch = new byte[CHECKED_BYTES];
+        private final int[] segments = listSegments(directory);
+        private int segmentCursor = -1;
+        private RandomAccessFile file;
+        private MappedByteBuffer buffer;
+        private int position;
+        private long segmentBootTime;
+
+        private long elapsedNanos;
+        private int packageId;
+        private int classId;
+        private int source;
+
+        Reader() {
+        }
+
+        /** Advances to the next record; false at the end of the journal. */
+        public boolean next() throws IOException {
+            while (true) {
+                if (buffer != null && position + RECORD_SIZE <= buffer.limit() && readRecord()) {
+                    position += RECORD_SIZE;
+                    return true;
+                }
+                if (!openNextSegment()) {
+                    return false;
+                }
+            }
+        }
+
+        private boolean readRecord() {
+            for (int i = 0; i < CHECKED_BYTES; i++) {
+                readerScratch[i] = buffer.get(position + i);
+            }
+            readerCrc.reset();
+            readerCrc.update(readerScratch, 0, CHECKED_BYTES);
+            if ((int) readerCrc.getValue() != buffer.getInt(position + CHECKED_BYTES)) {
+                return false;
+            }
+            elapsedNanos = buffer.getLong(position);
+            packageId = buffer.getInt(position + 8);
+            classId = buffer.getInt(position + 12);
+            source = buffer.getShort(position + 16);
+            return true;
+        }
+
+        private boolean openNextSegment() throws IOException {
+            closeSegment();
+            while (++segmentCursor < segments.length) {
+                File segmentPath = new File(directory, segmentName(segments[segmentCursor]));
+                try {
+                    file = new RandomAccessFile(segmentPath, "r");
+                } catch (FileNotFoundException e) {
+                    // Deleted by the retention limit since the listing
+                    continue;
+                }
+                long size = file.length();
+                if (size < HEADER_SIZE) {
+                    closeSegment();
+                    continue;
+                }
+                buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+                buffer.order(ByteOrder.BIG_ENDIAN);
+                if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                    closeSegment();
+                    continue;
+                }
+                segmentBootTime = buffer.getLong(16);
+                position = HEADER_SIZE;
+                return true;
+            }
+            return false;
+        }
+
+        private void closeSegment() throws IOException {
+            buffer = null;
+            if (file != null) {
+                file.close();
+                file = null;
+            }
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        /** Wall-clock time of the record, derived from its segment's boot time. */
+        public long getWallTimeMillis() {
+            return segmentBootTime + elapsedNanos / 1000000L;
+        }
+
+        public int getPackageId() {
+            return packageId;
+        }
+
+        public int getClassId() {
+            return classId;
+        }
+
+        public String getPackageName() {
+            return lookup(packageId);
+        }
+
+        public String getClassName() {
+            return lookup(classId);
+        }
+
+        public int getSource() {
+            return source;
+        }
+
+        @Override
+        public void close() throws IOException {
+            closeSegment();
+        }
+    }
+}
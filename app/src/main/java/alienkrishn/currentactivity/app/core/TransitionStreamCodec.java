@@ -0,0 +1,115 @@
+package alienkrishn.currentactivity.app.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+/**
+ * Wire formats for the transition stream.
+ *
+ * Binary frames are {@code [int length][byte type][payload]} in network byte
+ * order, where length counts type plus payload. A stream starts with a
+ * {@link #TYPE_HELLO} frame carrying {@code [short version]}, followed by
+ * {@link #TYPE_TRANSITION} frames carrying
+ * {@code [long sequence][long elapsedNanos][short source][utf package][utf class]}
+ * with strings in DataOutput modified UTF-8.
+ *
+ * JSON mode sends one object per line instead.
+ */
+public final class TransitionStreamCodec {
+
+    public static final int VERSION = 1;
+    public static final byte TYPE_HELLO = 1;
+    public static final byte TYPE_TRANSITION = 2;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+    private final DataOutputStream out = new DataOutputStream(bytes);
+    private final StringBuilder json = new StringBuilder(256);
+
+    public byte[] helloFrame() {
+        try {
+            bytes.reset();
+            out.writeInt(3);
+            out.writeByte(TYPE_HELLO);
+            out.writeShort(VERSION);
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public byte[] helloJson() {
+        return ("{\"type\":\"hello\",\"version\":" + VERSION + "}\n").getBytes(UTF_8);
+    }
+
+    public byte[] encodeBinary(ActivityEvent event) {
+        try {
+            bytes.reset();
+            // Length is patched in once the payload size is known
+            out.writeInt(0);
+            out.writeByte(TYPE_TRANSITION);
+            out.writeLong(event.getSequence());
+            out.writeLong(event.getElapsedNanos());
+            out.writeShort(event.getSource());
+            out.writeUTF(event.getPackageName());
+            out.writeUTF(event.getClassName());
+            byte[] frame = bytes.toByteArray();
+            int length = frame.length - 4;
+            frame[0] = (byte) (length >>> 24);
+            frame[1] = (byte) (length >>> 16);
+            frame[2] = (byte) (length >>> 8);
+            frame[3] = (byte) length;
+            return frame;
+        } catch (IOException e) {
+            // ByteArrayOutputStream does not throw
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public byte[] encodeJson(ActivityEvent event) {
+        json.setLength(0);
+        json.append("{\"type\":\"transition\",\"seq\":").append(event.getSequence())
+            .append(",\"elapsedNanos\":").append(event.getElapsedNanos())
+            .append(",\"source\":").append(event.getSource())
+            .append(",\"package\":");
+        appendJsonString(json, event.getPackageName());
+        json.append(",\"activity\":");
+        appendJsonString(json, event.getClassName());
+        json.append("}\n");
+        return json.toString().getBytes(UTF_8);
+    }
+
+    public static void appendJsonString(StringBuilder sb, String value) {
+        sb.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        sb.append('"');
+    }
+}
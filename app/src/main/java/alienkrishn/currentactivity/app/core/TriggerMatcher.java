@@ -0,0 +1,188 @@
+package alienkrishn.currentactivity.app.core;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * All trigger rules compiled into one structure, so that finding the rules an
+ * activity fires costs about the same with one rule as with a hundred, as
+ * long as they are not regexes.
+ *
+ * Exact package and class names are hashed, package prefixes and class-name
+ * substrings each go into one Aho-Corasick automaton that reports every
+ * pattern it passes. Regexes are tried one by one, so their cost still grows
+ * with the number of regex rules. Class rules that also require a package
+ * check it only once their class has matched. Matching
+ * allocates nothing. Instances are immutable apart from the reused regex
+ * matchers and scratch bits, so {@link #match} must be called from one thread.
+ */
+public final class TriggerMatcher {
+
+    private static final int[] NONE = new int[0];
+
+    private final List<TriggerRule> rules;
+    private final Map<String, int[]> packages;
+    private final Map<String, int[]> classes;
+    // The package each rule requires, null for most
+    private final String[] rulePackages;
+    private final AhoCorasickMatcher prefixes;
+    private final int[] prefixRules;
+    private final AhoCorasickMatcher substrings;
+    private final int[] substringRules;
+    private final Matcher[] regexes;
+    private final int[] regexRules;
+    // Pattern indexes reported by the automata
+    private final BitSet patterns = new BitSet();
+
+    private TriggerMatcher(List<TriggerRule> rules) {
+        this.rules = Collections.unmodifiableList(rules);
+        rulePackages = new String[rules.size()];
+
+        Map<String, List<Integer>> packages = new HashMap<String, List<Integer>>();
+        Map<String, List<Integer>> classes = new HashMap<String, List<Integer>>();
+        List<String> prefixes = new ArrayList<String>();
+        List<Integer> prefixRules = new ArrayList<Integer>();
+        List<String> substrings = new ArrayList<String>();
+        List<Integer> substringRules = new ArrayList<Integer>();
+        List<Matcher> regexes = new ArrayList<Matcher>();
+        List<Integer> regexRules = new ArrayList<Integer>();
+
+        for (int i = 0; i < rules.size(); i++) {
+            TriggerRule rule = rules.get(i);
+            rulePackages[i] = rule.getPackageName();
+            switch (rule.getKind()) {
+                case PACKAGE:
+                    add(packages, rule.getPattern(), i);
+                    break;
+                case PREFIX:
+                    prefixes.add(rule.getPattern());
+                    prefixRules.add(i);
+                    break;
+                case CLASS:
+                    add(classes, rule.getPattern(), i);
+                    break;
+                case CONTAINS:
+                    substrings.add(rule.getPattern());
+                    substringRules.add(i);
+                    break;
+                case REGEX:
+                    regexes.add(Pattern.compile(rule.getPattern()).matcher(""));
+                    regexRules.add(i);
+                    break;
+            }
+        }
+
+        this.packages = toArrays(packages);
+        this.classes = toArrays(classes);
+        this.prefixes = prefixes.isEmpty() ? null : AhoCorasickMatcher.prefixes(prefixes);
+        this.prefixRules = toArray(prefixRules);
+        this.substrings = substrings.isEmpty() ? null : AhoCorasickMatcher.substrings(substrings);
+        this.substringRules = toArray(substringRules);
+        this.regexes = regexes.toArray(new Matcher[regexes.size()]);
+        this.regexRules = toArray(regexRules);
+    }
+
+    public static TriggerMatcher compile(Collection<TriggerRule> rules) {
+        return new TriggerMatcher(new ArrayList<TriggerRule>(rules));
+    }
+
+    /**
+     * Sets the index of every rule the activity fires in fired, clearing it
+     * first.
+     *
+     * @return the number of rules fired
+     */
+    public int match(String packageName, String className, BitSet fired) {
+        fired.clear();
+        if (rules.isEmpty()) {
+            return 0;
+        }
+        if (packageName != null) {
+            set(packages.get(packageName), fired);
+            if (prefixes != null) {
+                patterns.clear();
+                prefixes.collect(packageName, patterns);
+                map(prefixRules, fired);
+            }
+        }
+        if (className != null) {
+            int[] byClass = classes.get(className);
+            if (byClass != null) {
+                for (int index : byClass) {
+                    String required = rulePackages[index];
+                    if (required == null || required.equals(packageName)) {
+                        fired.set(index);
+                    }
+                }
+            }
+            if (substrings != null) {
+                patterns.clear();
+                substrings.collect(className, patterns);
+                map(substringRules, fired);
+            }
+            for (int i = 0; i < regexes.length; i++) {
+                if (regexes[i].reset(className).find()) {
+                    fired.set(regexRules[i]);
+                }
+            }
+        }
+        return fired.cardinality();
+    }
+
+    public TriggerRule getRule(int index) {
+        return rules.get(index);
+    }
+
+    public List<TriggerRule> getRules() {
+        return rules;
+    }
+
+    private void map(int[] patternRules, BitSet fired) {
+        for (int i = patterns.nextSetBit(0); i >= 0; i = patterns.nextSetBit(i + 1)) {
+            fired.set(patternRules[i]);
+        }
+    }
+
+    private static void set(int[] indexes, BitSet fired) {
+        if (indexes != null) {
+            for (int index : indexes) {
+                fired.set(index);
+            }
+        }
+    }
+
+    private static void add(Map<String, List<Integer>> map, String key, int index) {
+        List<Integer> indexes = map.get(key);
+        if (indexes == null) {
+            indexes = new ArrayList<Integer>();
+            map.put(key, indexes);
+        }
+        indexes.add(index);
+    }
+
+    private static Map<String, int[]> toArrays(Map<String, List<Integer>> map) {
+        Map<String, int[]> arrays = new HashMap<String, int[]>();
+        for (Map.Entry<String, List<Integer>> entry : map.entrySet()) {
+            arrays.put(entry.getKey(), toArray(entry.getValue()));
+        }
+        return arrays;
+    }
+
+    private static int[] toArray(List<Integer> values) {
+        if (values.isEmpty()) {
+            return NONE;
+        }
+        int[] array = new int[values.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = values.get(i);
+        }
+        return array;
+    }
+}
@@ -0,0 +1,195 @@
+package alienkrishn.currentactivity.app.core;
+
+import java.util.Locale;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Something to do when a matching activity comes to the foreground.
+ *
+ * Rules have a one-line text form used for storage and user input:
+ * {@code <action>[:<argument>] <kind> <pattern>}, where kind is one of the
+ * {@link FilterRule.Kind} keywords or {@code activity} for a component name
+ * like {@code com.foo/.CheckoutActivity}, for example
+ * {@code vibrate activity com.foo/.CheckoutActivity} or
+ * {@code intent:com.example.CHECKOUT prefix com.foo}. An activity rule is a
+ * class rule that also requires its package, so the same class name under
+ * another package does not fire it.
+ */
+public final class TriggerRule {
+
+    public enum Action {
+        /** A short vibration. */
+        VIBRATE("vibrate", false),
+        /** A line in the system log. */
+        LOG("log", false),
+        /** A line in the markers file, labelled with the optional argument. */
+        MARKER("marker", false),
+        /** A broadcast with the argument as its action. */
+        INTENT("intent", true);
+
+        final String keyword;
+        final boolean needsArgument;
+
+        Action(String keyword, boolean needsArgument) {
+            this.keyword = keyword;
+            this.needsArgument = needsArgument;
+        }
+    }
+
+    private static final String ACTIVITY_KEYWORD = "activity";
+
+    private final Action action;
+    private final String argument;
+    private final FilterRule.Kind kind;
+    private final String pattern;
+    private final String packageName;
+
+    /** @param argument the marker label or intent action, null if none */
+    public TriggerRule(Action action, String argument, FilterRule.Kind kind, String pattern) {
+        this(action, argument, kind, pattern, null);
+    }
+
+    /**
+     * @param argument the marker label or intent action, null if none
+     * @param packageName the package a class rule also requires, null for any
+     */
+    public TriggerRule(Action action, String argument, FilterRule.Kind kind, String pattern, String packageName) {
+        if (action == null || kind == null || pattern == null || pattern.length() == 0) {
+            throw new IllegalArgumentException("Trigger needs an action, a kind and a non-empty pattern");
+        }
+        if (packageName != null && (kind != FilterRule.Kind.CLASS || packageName.length() == 0)) {
+            throw new IllegalArgumentException("Only class rules can require a package");
+        }
+        if (argument != null && (argument.length() == 0 || containsWhitespace(argument))) {
+            throw new IllegalArgumentException("Invalid " + action.keyword + " argument: " + argument);
+        }
+        if (action.needsArgument && argument == null) {
+            throw new IllegalArgumentException("Expected " + action.keyword + ":<argument>");
+        }
+        if (kind == FilterRule.Kind.REGEX) {
+            try {
+                Pattern.compile(pattern);
+            } catch (PatternSyntaxException e) {
+                throw new IllegalArgumentException("Invalid regex: " + e.getDescription(), e);
+            }
+        }
+        this.action = action;
+        this.argument = argument;
+        this.kind = kind;
+        this.pattern = pattern;
+        this.packageName = packageName;
+    }
+
+    /**
+     * Parses the text form of a rule.
+     *
+     * @throws IllegalArgumentException if the line is not a valid rule
+     */
+    public static TriggerRule parse(String line) {
+        String[] parts = line == null ? new String[0] : line.trim().split("\\s+", 3);
+        if (parts.length != 3) {
+            throw new IllegalArgumentException("Expected: <action>[:<argument>] <kind> <pattern>");
+        }
+
+        String actionKeyword = parts[0];
+        String argument = null;
+        int colon = actionKeyword.indexOf(':');
+        if (colon >= 0) {
+            argument = actionKeyword.substring(colon + 1);
+            actionKeyword = actionKeyword.substring(0, colon);
+        }
+        Action action = null;
+        for (Action candidate : Action.values()) {
+            if (candidate.keyword.equals(actionKeyword.toLowerCase(Locale.US))) {
+                action = candidate;
+            }
+        }
+        if (action == null) {
+            throw new IllegalArgumentException("Unknown action: " + actionKeyword);
+        }
+
+        String keyword = parts[1].toLowerCase(Locale.US);
+        if (keyword.equals(ACTIVITY_KEYWORD)) {
+            String component = parts[2];
+            int slash = component.indexOf('/');
+            if (slash <= 0 || slash == component.length() - 1) {
+                throw new IllegalArgumentException("Expected <package>/<class>: " + component);
+            }
+            String packageName = component.substring(0, slash);
+            String className = component.substring(slash + 1);
+            // "pkg/.Cls" and "pkg/full.Cls" as printed by the overlay and am
+            if (className.charAt(0) == '.') {
+                className = packageName + className;
+            }
+            return new TriggerRule(action, argument, FilterRule.Kind.CLASS, className, packageName);
+        }
+        for (FilterRule.Kind kind : FilterRule.Kind.values()) {
+            if (kind.keyword.equals(keyword)) {
+                return new TriggerRule(action, argument, kind, parts[2]);
+            }
+        }
+        throw new IllegalArgumentException("Unknown rule kind: " + parts[1]);
+    }
+
+    private static boolean containsWhitespace(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            if (Character.isWhitespace(value.charAt(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public Action getAction() {
+        return action;
+    }
+
+    /** The marker label or intent action, null if none. */
+    public String getArgument() {
+        return argument;
+    }
+
+    public FilterRule.Kind getKind() {
+        return kind;
+    }
+
+    public String getPattern() {
+        return pattern;
+    }
+
+    /** The package a class rule also requires, null if any package matches. */
+    public String getPackageName() {
+        return packageName;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof TriggerRule)) {
+            return false;
+        }
+        TriggerRule other = (TriggerRule) o;
+        return action == other.action && kind == other.kind && pattern.equals(other.pattern) &&
+            (argument == null ? other.argument == null : argument.equals(other.argument)) &&
+            (packageName == null ? other.packageName == null : packageName.equals(other.packageName));
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = (pattern.hashCode() * 31 + kind.hashCode()) * 31 + action.hashCode();
+        hash = hash * 31 + (argument != null ? argument.hashCode() : 0);
+        return hash * 31 + (packageName != null ? packageName.hashCode() : 0);
+    }
+
+    @Override
+    public String toString() {
+        String prefix = action.keyword + (argument != null ? ":" + argument : "") + " ";
+        if (packageName == null) {
+            return prefix + kind.keyword + " " + pattern;
+        }
+        boolean shortForm = pattern.startsWith(packageName) && pattern.length() > packageName.length() &&
+            pattern.charAt(packageName.length()) == '.';
+        return prefix + ACTIVITY_KEYWORD + " " + packageName + "/" +
+            (shortForm ? pattern.substring(packageName.length()) : pattern);
+    }
+}
@@ -0,0 +1,139 @@
+package alienkrishn.currentactivity.app.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Decides which window state changes count as foreground transitions.
+ *
+ * Rules are compiled once into hashed sets for exact package and class names,
+ * a trie for package prefixes, an Aho-Corasick automaton for class-name
+ * substrings and a single alternation for regexes. Matching works on the
+ * CharSequences straight from the AccessibilityEvent, so rejected events never
+ * turn into Strings.
+ *
+ * An event is accepted when it matches no exclude rule and, if any include
+ * rules exist, at least one include rule. Instances are immutable apart from
+ * the reused regex matchers, so {@link #accepts} must be called from one thread.
+ */
+public final class WindowFilter {
+
+    /** Roughly what the service used to hard-code, plus IME and system UI windows. */
+    public static final List<FilterRule> DEFAULT_RULES = Collections.unmodifiableList(Arrays.asList(
+        FilterRule.exclude(FilterRule.Kind.PACKAGE, "android"),
+        FilterRule.exclude(FilterRule.Kind.PACKAGE, "com.android.systemui"),
+        FilterRule.exclude(FilterRule.Kind.CONTAINS, "PopupWindow"),
+        FilterRule.exclude(FilterRule.Kind.CONTAINS, "Toast"),
+        FilterRule.exclude(FilterRule.Kind.CONTAINS, "DecorView"),
+        FilterRule.exclude(FilterRule.Kind.CONTAINS, "SoftInputWindow"),
+        FilterRule.exclude(FilterRule.Kind.CLASS, "android.app.Dialog"),
+        FilterRule.exclude(FilterRule.Kind.CLASS, "android.app.AlertDialog")
+    ));
+
+    private final List<FilterRule> rules;
+    private final RuleSet includes;
+    private final RuleSet excludes;
+
+    private WindowFilter(List<FilterRule> rules) {
+        this.rules = Collections.unmodifiableList(new ArrayList<FilterRule>(rules));
+
+        List<FilterRule> include = new ArrayList<FilterRule>();
+        List<FilterRule> exclude = new ArrayList<FilterRule>();
+        for (FilterRule rule : rules) {
+            (rule.isInclude() ? include : exclude).add(rule);
+        }
+        includes = include.isEmpty() ? null : new RuleSet(include);
+        excludes = exclude.isEmpty() ? null : new RuleSet(exclude);
+    }
+
+    public static WindowFilter compile(Collection<FilterRule> rules) {
+        return new WindowFilter(new ArrayList<FilterRule>(rules));
+    }
+
+    /** Compiles the default rules followed by the given user rules. */
+    public static WindowFilter withDefaults(Collection<FilterRule> userRules) {
+        List<FilterRule> all = new ArrayList<FilterRule>(DEFAULT_RULES);
+        all.addAll(userRules);
+        return new WindowFilter(all);
+    }
+
+    public boolean accepts(CharSequence packageName, CharSequence className) {
+        if (excludes != null && excludes.matches(packageName, className)) {
+            return false;
+        }
+        return includes == null || includes.matches(packageName, className);
+    }
+
+    public List<FilterRule> getRules() {
+        return rules;
+    }
+
+    private static final class RuleSet {
+
+        private final CharSequenceSet packages;
+        private final AhoCorasickMatcher packagePrefixes;
+        private final CharSequenceSet classes;
+        private final AhoCorasickMatcher classSubstrings;
+        private final Matcher classRegex;
+
+        RuleSet(List<FilterRule> rules) {
+            List<String> packages = new ArrayList<String>();
+            List<String> prefixes = new ArrayList<String>();
+            List<String> classes = new ArrayList<String>();
+            List<String> substrings = new ArrayList<String>();
+            StringBuilder regex = new StringBuilder();
+
+            for (FilterRule rule : rules) {
+                switch (rule.getKind()) {
+                    case PACKAGE:
+                        packages.add(rule.getPattern());
+                        break;
+                    case PREFIX:
+                        prefixes.add(rule.getPattern());
+                        break;
+                    case CLASS:
+                        classes.add(rule.getPattern());
+                        break;
+                    case CONTAINS:
+                        substrings.add(rule.getPattern());
+                        break;
+                    case REGEX:
+                        if (regex.length() > 0) {
+                            regex.append('|');
+                        }
+                        regex.append("(?:").append(rule.getPattern()).append(')');
+                        break;
+                }
+            }
+
+            this.packages = packages.isEmpty() ? null : new CharSequenceSet(packages);
+            this.packagePrefixes = prefixes.isEmpty() ? null : AhoCorasickMatcher.prefixes(prefixes);
+            this.classes = classes.isEmpty() ? null : new CharSequenceSet(classes);
+            this.classSubstrings = substrings.isEmpty() ? null : AhoCorasickMatcher.substrings(substrings);
+            // One matcher reset per event instead of one allocation per event
+            this.classRegex = regex.length() == 0 ? null : Pattern.compile(regex.toString()).matcher("");
+        }
+
+        // Cheapest checks first, regex last
+        boolean matches(CharSequence packageName, CharSequence className) {
+            if (packages != null && packages.contains(packageName)) {
+                return true;
+            }
+            if (packagePrefixes != null && packagePrefixes.matches(packageName)) {
+                return true;
+            }
+            if (classes != null && classes.contains(className)) {
+                return true;
+            }
+            if (classSubstrings != null && classSubstrings.matches(className)) {
+                return true;
+            }
+            return classRegex != null && classRegex.reset(className).find();
+        }
+    }
+}
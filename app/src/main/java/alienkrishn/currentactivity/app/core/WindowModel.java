@@ -0,0 +1,219 @@
+package alienkrishn.currentactivity.app.core;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The app windows currently on screen, kept up to date by diffing each new
+ * snapshot against the last one instead of rebuilding it.
+ *
+ * A snapshot is fed in between {@link #beginSnapshot()} and
+ * {@link #endSnapshot()}, one {@link #put} per window. Windows are matched by
+ * id, so a window that was already known keeps its entry and its package
+ * name, which is the expensive part to find out; put says when a window is
+ * new and its package still has to be looked up. Entries of windows that went
+ * away are recycled for the next ones, so a stream of snapshots during a
+ * window animation allocates nothing. Listeners hear about a snapshot only if
+ * something actually changed.
+ *
+ * Windows are ordered by display, then top-most first. Confined to one thread.
+ */
+public final class WindowModel {
+
+    /** Windows came or went, changed order, focus or package. */
+    public static final int CHANGE_WINDOWS = 1;
+    /** Only positions or sizes changed. */
+    public static final int CHANGE_BOUNDS = 2;
+
+    public interface Listener {
+        /** @param changes CHANGE_ bits, never 0 */
+        void onWindowsChanged(WindowModel model, int changes);
+    }
+
+    public static final class Window {
+        int id;
+        int displayId;
+        int layer;
+        int left;
+        int top;
+        int right;
+        int bottom;
+        boolean focused;
+        String packageName;
+        // Snapshot the window was last seen in
+        long seen;
+
+        public int getId() {
+            return id;
+        }
+
+        public int getDisplayId() {
+            return displayId;
+        }
+
+        public int getLayer() {
+            return layer;
+        }
+
+        public int getLeft() {
+            return left;
+        }
+
+        public int getTop() {
+            return top;
+        }
+
+        public int getRight() {
+            return right;
+        }
+
+        public int getBottom() {
+            return bottom;
+        }
+
+        public boolean isFocused() {
+            return focused;
+        }
+
+        /** Null until resolved, or if it could not be. */
+        public String getPackageName() {
+            return packageName;
+        }
+    }
+
+    private final List<Window> windows = new ArrayList<Window>();
+    private final List<Window> pool = new ArrayList<Window>();
+    private final List<Listener> listeners = new ArrayList<Listener>();
+    private long snapshot;
+    private int changes;
+
+    public void addListener(Listener listener) {
+        if (!listeners.contains(listener)) {
+            listeners.add(listener);
+        }
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    public void beginSnapshot() {
+        snapshot++;
+        changes = 0;
+    }
+
+    /**
+     * Records one window of the current snapshot.
+     *
+     * @return true if the window is new, or its package is still unknown, and
+     *         {@link #setPackageName} should be called for it
+     */
+    public boolean put(int id, int displayId, int layer, int left, int top, int right, int bottom, boolean focused) {
+        Window window = find(id);
+        if (window == null) {
+            window = pool.isEmpty() ? new Window() : pool.remove(pool.size() - 1);
+            window.id = id;
+            window.packageName = null;
+            window.displayId = displayId;
+            window.layer = layer;
+            window.focused = focused;
+            windows.add(window);
+            changes |= CHANGE_WINDOWS;
+        } else {
+            if (window.displayId != displayId || window.layer != layer || window.focused != focused) {
+                window.displayId = displayId;
+                window.layer = layer;
+                window.focused = focused;
+                changes |= CHANGE_WINDOWS;
+            }
+            if (window.left != left || window.top != top || window.right != right || window.bottom != bottom) {
+                changes |= CHANGE_BOUNDS;
+            }
+        }
+        window.left = left;
+        window.top = top;
+        window.right = right;
+        window.bottom = bottom;
+        window.seen = snapshot;
+        return window.packageName == null;
+    }
+
+    public void setPackageName(int id, String packageName) {
+        Window window = find(id);
+        if (window == null) {
+            return;
+        }
+        if (packageName == null ? window.packageName != null : !packageName.equals(window.packageName)) {
+            window.packageName = packageName;
+            changes |= CHANGE_WINDOWS;
+        }
+    }
+
+    /** Drops the windows missing from this snapshot and tells listeners what changed. */
+    public int endSnapshot() {
+        for (int i = windows.size() - 1; i >= 0; i--) {
+            Window window = windows.get(i);
+            if (window.seen != snapshot) {
+                windows.remove(i);
+                window.packageName = null;
+                pool.add(window);
+                changes |= CHANGE_WINDOWS;
+            }
+        }
+        if ((changes & CHANGE_WINDOWS) != 0) {
+            sort();
+        }
+        int result = changes;
+        changes = 0;
+        if (result != 0) {
+            for (int i = listeners.size() - 1; i >= 0; i--) {
+                listeners.get(i).onWindowsChanged(this, result);
+            }
+        }
+        return result;
+    }
+
+    /** Forgets every window, e.g. when tracking stops. */
+    public void clear() {
+        beginSnapshot();
+        endSnapshot();
+    }
+
+    public int getWindowCount() {
+        return windows.size();
+    }
+
+    public Window getWindow(int index) {
+        return windows.get(index);
+    }
+
+    private Window find(int id) {
+        // A handful of windows at most, a scan beats hashing
+        for (int i = 0; i < windows.size(); i++) {
+            if (windows.get(i).id == id) {
+                return windows.get(i);
+            }
+        }
+        return null;
+    }
+
+    // Insertion sort, the list is short and usually still in order
+    private void sort() {
+        for (int i = 1; i < windows.size(); i++) {
+            Window window = windows.get(i);
+            int j = i - 1;
+            while (j >= 0 && comesBefore(window, windows.get(j))) {
+                windows.set(j + 1, windows.get(j));
+                j--;
+            }
+            windows.set(j + 1, window);
+        }
+    }
+
+    private static boolean comesBefore(Window a, Window b) {
+        if (a.displayId != b.displayId) {
+            return a.displayId < b.displayId;
+        }
+        return a.layer > b.layer;
+    }
+}
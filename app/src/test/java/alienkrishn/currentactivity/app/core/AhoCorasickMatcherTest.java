@@ -0,0 +1,113 @@
+package alienkrishn.currentactivity.app.core;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AhoCorasickMatcherTest {
+
+    @Test
+    public void collectReportsOverlappingSubstrings() {
+        AhoCorasickMatcher matcher = AhoCorasickMatcher.substrings(
+            Arrays.asList("he", "she", "his", "hers", "e"));
+        BitSet matched = new BitSet();
+        matcher.collect("ushers", matched);
+        // "she" ends where "he" and "e" do, "hers" extends "he"; only the failure links find them all
+        assertEquals(bits(0, 1, 3, 4), matched);
+    }
+
+    @Test
+    public void collectReportsEveryMatchingPrefix() {
+        AhoCorasickMatcher matcher = AhoCorasickMatcher.prefixes(Arrays.asList("com.", "com.foo", "org", "foo"));
+        BitSet matched = new BitSet();
+        matcher.collect("com.foo.bar", matched);
+        assertEquals(bits(0, 1), matched);
+
+        matched.clear();
+        matcher.collect("co", matched);
+        assertTrue(matched.isEmpty());
+        // Anchored, so a pattern later in the text does not count
+        matcher.collect("xfoo", matched);
+        assertTrue(matched.isEmpty());
+    }
+
+    @Test
+    public void collectKeepsBitsAlreadySet() {
+        AhoCorasickMatcher matcher = AhoCorasickMatcher.substrings(Arrays.asList("a", "b"));
+        BitSet matched = bits(5);
+        matcher.collect("xbx", matched);
+        assertEquals(bits(1, 5), matched);
+    }
+
+    @Test
+    public void collectAgreesWithBruteForce() {
+        Random random = new Random(7);
+        // A small alphabet with a non-ASCII letter, so patterns overlap a lot
+        String alphabet = "ab.ü";
+        for (int round = 0; round < 500; round++) {
+            List<String> patterns = new ArrayList<String>();
+            int count = 1 + random.nextInt(6);
+            for (int i = 0; i < count; i++) {
+                patterns.add(randomString(random, alphabet, 1 + random.nextInt(4)));
+            }
+            AhoCorasickMatcher substrings = AhoCorasickMatcher.substrings(patterns);
+            AhoCorasickMatcher prefixes = AhoCorasickMatcher.prefixes(patterns);
+
+            for (int t = 0; t < 20; t++) {
+                String text = randomString(random, alphabet + "x", random.nextInt(12));
+                BitSet expectedSubstrings = new BitSet();
+                BitSet expectedPrefixes = new BitSet();
+                for (int i = 0; i < patterns.size(); i++) {
+                    if (text.contains(patterns.get(i))) {
+                        expectedSubstrings.set(i);
+                    }
+                    if (text.startsWith(patterns.get(i))) {
+                        expectedPrefixes.set(i);
+                    }
+                }
+                String message = patterns + " in \"" + text + "\"";
+
+                BitSet matched = new BitSet();
+                substrings.collect(text, matched);
+                assertEquals(message, expectedSubstrings, matched);
+                assertEquals(message, !matched.isEmpty(), substrings.matches(text));
+
+                matched.clear();
+                prefixes.collect(text, matched);
+                assertEquals(message, expectedPrefixes, matched);
+                assertEquals(message, !matched.isEmpty(), prefixes.matches(text));
+            }
+        }
+    }
+
+    @Test
+    public void charactersOutsideThePatternsNeverMatch() {
+        AhoCorasickMatcher matcher = AhoCorasickMatcher.substrings(Arrays.asList("ab"));
+        assertFalse(matcher.matches("aéb"));
+        assertTrue(matcher.matches("éab"));
+    }
+
+    private static String randomString(Random random, String alphabet, int length) {
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            sb.append(alphabet.charAt(random.nextInt(alphabet.length())));
+        }
+        return sb.toString();
+    }
+
+    private static BitSet bits(int... indexes) {
+        BitSet bits = new BitSet();
+        for (int index : indexes) {
+            bits.set(index);
+        }
+        return bits;
+    }
+}
@@ -0,0 +1,153 @@
+package alienkrishn.currentactivity.app.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class JournalIndexTest {
+
+    private static final long BOOT_TIME_MILLIS = 1000000L;
+    // Ten records per segment, so every query spans several
+    private static final int SEGMENT_SIZE = TransitionJournal.HEADER_SIZE + 10 * TransitionJournal.RECORD_SIZE;
+
+    private File directory;
+    private TransitionJournal journal;
+    private JournalIndex index;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("journal", "");
+        assertTrue(directory.delete());
+        journal = TransitionJournal.open(directory, BOOT_TIME_MILLIS, SEGMENT_SIZE, 100);
+        index = new JournalIndex(directory);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        index.close();
+        journal.close();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    // Record i is at wall time BOOT_TIME_MILLIS + i, every seventh goes to "rare"
+    private void append(int from, int to) throws IOException {
+        for (int i = from; i < to; i++) {
+            journal.append(i * 1000000L, packageOf(i), "Activity" + i, ActivityEvent.SOURCE_WINDOW_STATE);
+        }
+        journal.force();
+    }
+
+    private static String packageOf(int record) {
+        return record % 7 == 3 ? "rare" : "common" + record % 2;
+    }
+
+    @Test
+    public void emptyDirectoryHasNoMatches() throws IOException {
+        assertEquals(0, index.query(Long.MIN_VALUE, Long.MAX_VALUE, null).getCount());
+        assertEquals(0, index.query(Long.MIN_VALUE, Long.MAX_VALUE, "rare").getCount());
+    }
+
+    @Test
+    public void timeRangeIsHalfOpen() throws IOException {
+        append(0, 95);
+        JournalIndex.Query query = index.query(BOOT_TIME_MILLIS + 15, BOOT_TIME_MILLIS + 42, null);
+        assertEquals(27, query.getCount());
+        assertTrue(query.moveToPosition(0));
+        assertEquals("Activity15", query.getClassName());
+        assertEquals(BOOT_TIME_MILLIS + 15, query.getWallTimeMillis());
+        assertTrue(query.moveToPosition(26));
+        assertEquals("Activity41", query.getClassName());
+        assertFalse(query.moveToPosition(27));
+        assertEquals(26, query.getPosition());
+    }
+
+    @Test
+    public void packageFilterMovesForwardAndBackward() throws IOException {
+        append(0, 95);
+        List<Integer> expected = new ArrayList<Integer>();
+        for (int i = 12; i < 80; i++) {
+            if (packageOf(i).equals("rare")) {
+                expected.add(i);
+            }
+        }
+
+        JournalIndex.Query query = index.query(BOOT_TIME_MILLIS + 12, BOOT_TIME_MILLIS + 80, "rare");
+        assertEquals(expected.size(), query.getCount());
+        int position = 0;
+        while (query.moveToNext()) {
+            assertEquals("Activity" + expected.get(position), query.getClassName());
+            assertEquals("rare", query.getPackageName());
+            position++;
+        }
+        assertEquals(expected.size(), position);
+
+        for (int i = expected.size() - 1; i >= 0; i--) {
+            assertTrue(query.moveToPosition(i));
+            assertEquals("Activity" + expected.get(i), query.getClassName());
+        }
+
+        Random random = new Random(3);
+        for (int i = 0; i < 200; i++) {
+            int target = random.nextInt(expected.size());
+            assertTrue(query.moveToPosition(target));
+            assertEquals(target, query.getPosition());
+            assertEquals("Activity" + expected.get(target), query.getClassName());
+        }
+    }
+
+    @Test
+    public void unknownPackageMatchesNothing() throws IOException {
+        append(0, 30);
+        assertEquals(0, index.query(Long.MIN_VALUE, Long.MAX_VALUE, "never.seen").getCount());
+    }
+
+    @Test
+    public void queriesSeeLaterAppendsButNotEarlierSnapshots() throws IOException {
+        append(0, 15);
+        JournalIndex.Query before = index.query(Long.MIN_VALUE, Long.MAX_VALUE, null);
+        append(15, 42);
+        JournalIndex.Query after = index.query(Long.MIN_VALUE, Long.MAX_VALUE, null);
+
+        assertEquals(15, before.getCount());
+        assertEquals(42, after.getCount());
+        assertTrue(after.moveToPosition(41));
+        assertEquals("Activity41", after.getClassName());
+    }
+
+    @Test
+    public void deletedSegmentsAreDropped() throws IOException {
+        journal.close();
+        journal = TransitionJournal.open(directory, BOOT_TIME_MILLIS, SEGMENT_SIZE, 3);
+        append(0, 25);
+        JournalIndex.Query before = index.query(Long.MIN_VALUE, Long.MAX_VALUE, null);
+        assertEquals(25, before.getCount());
+
+        // Segments 0 to 2 go, leaving 3 to 5 with records 30 to 54
+        append(25, 55);
+        JournalIndex.Query after = index.query(Long.MIN_VALUE, Long.MAX_VALUE, null);
+        assertEquals(25, after.getCount());
+        assertTrue(after.moveToPosition(0));
+        assertEquals("Activity30", after.getClassName());
+        assertEquals(25, journal.getRecordCount());
+
+        // An earlier query keeps reading the records it was made with
+        assertTrue(before.moveToPosition(0));
+        assertEquals(BOOT_TIME_MILLIS, before.getWallTimeMillis());
+    }
+}
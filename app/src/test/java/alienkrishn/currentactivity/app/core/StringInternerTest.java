@@ -0,0 +1,87 @@
+package alienkrishn.currentactivity.app.core;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class StringInternerTest {
+
+    @Test
+    public void internReturnsOneInstancePerContent() {
+        StringInterner interner = new StringInterner(8);
+        String first = interner.intern(new StringBuilder("com.foo"));
+        assertSame(first, interner.intern("com.foo"));
+        assertSame(first, interner.intern(new StringBuilder("com.foo")));
+        assertNull(interner.intern(null));
+        assertEquals(1, interner.size());
+        assertEquals(2, interner.getHitCount());
+    }
+
+    @Test
+    public void evictsEntriesThatWereNotLookedUpAgain() {
+        StringInterner interner = new StringInterner(2);
+        int kept = interner.id("kept");
+        interner.id("once");
+        interner.id("kept");
+        interner.id("new");
+        assertEquals("kept", interner.get(kept));
+        assertEquals(1, interner.getEvictionCount());
+        // Found without a miss, so the deletion left its probe run intact
+        long misses = interner.getMissCount();
+        interner.id("kept");
+        assertEquals(misses, interner.getMissCount());
+    }
+
+    /**
+     * Churns a small table with a skewed mix of names, so entries are evicted
+     * from every position of their probe runs, and checks each lookup against
+     * a map of what should still be resident.
+     */
+    @Test
+    public void evictionChurnMatchesReferenceMap() {
+        int capacity = 64;
+        StringInterner interner = new StringInterner(capacity);
+        Map<String, Integer> resident = new HashMap<String, Integer>();
+        Random random = new Random(42);
+
+        for (int i = 0; i < 200000; i++) {
+            // A few hot names and a long tail, sharing prefixes like real class names
+            int n = random.nextInt(4) == 0 ? random.nextInt(2000) : random.nextInt(40);
+            String name = "com.example.app.Activity" + n;
+            long hits = interner.getHitCount();
+            Integer expected = resident.get(name);
+
+            int id = interner.id(new StringBuilder(name));
+
+            if (expected != null) {
+                assertEquals("hit for " + name, hits + 1, interner.getHitCount());
+                assertEquals(expected.intValue(), id);
+            } else {
+                assertEquals("miss for " + name, hits, interner.getHitCount());
+                // The id now stands for this name, whatever it stood for before is gone
+                for (Iterator<Map.Entry<String, Integer>> it = resident.entrySet().iterator(); it.hasNext(); ) {
+                    if (it.next().getValue() == id) {
+                        it.remove();
+                    }
+                }
+                resident.put(name, id);
+            }
+            assertEquals(name, interner.get(id));
+            assertTrue(interner.size() <= capacity);
+        }
+
+        assertEquals(capacity, resident.size());
+        for (Map.Entry<String, Integer> entry : resident.entrySet()) {
+            assertEquals(entry.getKey(), interner.get(entry.getValue()));
+        }
+        assertEquals(interner.getMissCount() - capacity, interner.getEvictionCount());
+    }
+}
@@ -0,0 +1,181 @@
+package alienkrishn.currentactivity.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import alienkrishn.currentactivity.app.core.ActivityEvent;
+import alienkrishn.currentactivity.app.core.ActivityEventBus;
+
+/**
+ * Compares the in-process event bus with a JVM model of the broadcast path.
+ *
+ * The broadcast model marshals the same action and extras an Intent carries,
+ * hands the bytes to another thread and unmarshals them there. It leaves out
+ * the Binder transaction and ActivityManager dispatch entirely, so its numbers
+ * are a lower bound for what the real broadcast costs on a device.
+ *
+ * Run with: ./gradlew :benchmark:eventBusBenchmark
+ */
+public class EventBusBenchmark {
+
+    private static final int WARMUP = 50000;
+    private static final int ITERATIONS = 200000;
+
+    private static final String[] PACKAGES = {
+        "com.android.launcher3", "com.google.android.apps.messaging",
+        "com.android.chrome", "com.whatsapp", "com.android.settings"
+    };
+    private static final String[] CLASSES = {
+        "com.android.launcher3.uioverride.QuickstepLauncher",
+        "com.google.android.apps.messaging.ui.ConversationListActivity",
+        "org.chromium.chrome.browser.ChromeTabbedActivity",
+        "com.whatsapp.HomeActivity",
+        "com.android.settings.Settings$WifiSettingsActivity"
+    };
+
+    private static volatile Object sink;
+
+    public static void main(String[] args) throws Exception {
+        System.out.println("iterations: " + ITERATIONS);
+
+        runBusDirect(WARMUP);
+        report("bus, synchronous subscriber", runBusDirect(ITERATIONS));
+
+        // Throughput with a window of events in flight, latency with exactly one
+        for (int window : new int[] { 128, 1 }) {
+            System.out.println("cross-thread, " + window + " event(s) in flight:");
+            runBusReader(WARMUP, window);
+            report("  bus, reader on another thread", runBusReader(ITERATIONS, window));
+            runBroadcastModel(WARMUP, window);
+            report("  broadcast model (marshal + thread hop)", runBroadcastModel(ITERATIONS, window));
+        }
+    }
+
+    private static void report(String name, long[] result) {
+        double nsPerEvent = (double) result[0] / ITERATIONS;
+        double meanLatencyNs = (double) result[1] / ITERATIONS;
+        System.out.printf("%-42s %10.1f ns/event %10.1f ns mean delivery latency%n",
+                          name, nsPerEvent, meanLatencyNs);
+    }
+
+    private static long[] runBusDirect(int iterations) {
+        final long[] latency = new long[1];
+        ActivityEventBus bus = new ActivityEventBus(ActivityEventBus.DEFAULT_CAPACITY);
+        bus.subscribe(new ActivityEventBus.Subscriber() {
+                @Override
+                public void onActivityEvent(ActivityEvent event) {
+                    sink = event.getClassName();
+                    latency[0] += System.nanoTime() - event.getPublishNanos();
+                }
+            });
+
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            bus.publish(PACKAGES[i % PACKAGES.length], CLASSES[i % CLASSES.length], i);
+        }
+        return new long[] { System.nanoTime() - start, latency[0] };
+    }
+
+    private static long[] runBusReader(final int iterations, int window) throws InterruptedException {
+        final ActivityEventBus bus = new ActivityEventBus(ActivityEventBus.DEFAULT_CAPACITY);
+        final ActivityEventBus.Reader reader = bus.newReader();
+        final long[] latency = new long[1];
+        final AtomicLong seen = new AtomicLong();
+
+        Thread consumer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    ActivityEventBus.Subscriber subscriber = new ActivityEventBus.Subscriber() {
+                        @Override
+                        public void onActivityEvent(ActivityEvent event) {
+                            sink = event.getClassName();
+                            latency[0] += System.nanoTime() - event.getPublishNanos();
+                            seen.lazySet(seen.get() + 1);
+                        }
+                    };
+                    while (seen.get() < iterations) {
+                        if (reader.drain(subscriber) == 0) {
+                            Thread.yield();
+                        }
+                    }
+                }
+            });
+        consumer.start();
+
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            while (i - seen.get() >= window) {
+                // Keep the producer within the window so nothing is overwritten
+                Thread.yield();
+            }
+            bus.publish(PACKAGES[i % PACKAGES.length], CLASSES[i % CLASSES.length], i);
+        }
+        consumer.join();
+        long elapsed = System.nanoTime() - start;
+        if (reader.getDropped() > 0) {
+            System.out.println("  reader dropped " + reader.getDropped() + " events");
+        }
+        return new long[] { elapsed, latency[0] };
+    }
+
+    private static long[] runBroadcastModel(final int iterations, int window) throws Exception {
+        final BlockingQueue<byte[]> queue = new LinkedBlockingQueue<byte[]>();
+        final long[] latency = new long[1];
+        final AtomicLong seen = new AtomicLong();
+
+        Thread consumer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < iterations; i++) {
+                            DataInputStream in = new DataInputStream(new ByteArrayInputStream(queue.take()));
+                            long sent = in.readLong();
+                            String action = in.readUTF();
+                            in.readUTF();
+                            String packageName = in.readUTF();
+                            in.readUTF();
+                            String className = in.readUTF();
+                            if ("CURRENT_ACTIVITY_UPDATE".equals(action)) {
+                                sink = packageName;
+                                sink = className;
+                            }
+                            latency[0] += System.nanoTime() - sent;
+                            seen.lazySet(i + 1);
+                        }
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+        consumer.start();
+
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            while (i - seen.get() >= window) {
+                // Same pacing as the bus reader
+                Thread.yield();
+            }
+            queue.put(marshal(PACKAGES[i % PACKAGES.length], CLASSES[i % CLASSES.length]));
+        }
+        consumer.join();
+        return new long[] { System.nanoTime() - start, latency[0] };
+    }
+
+    private static byte[] marshal(String packageName, String className) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeLong(System.nanoTime());
+        out.writeUTF("CURRENT_ACTIVITY_UPDATE");
+        out.writeUTF("package");
+        out.writeUTF(packageName);
+        out.writeUTF("activity");
+        out.writeUTF(className);
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,110 @@
+package alienkrishn.currentactivity.benchmark;
+
+import java.util.List;
+import java.util.regex.Pattern;
+
+import alienkrishn.currentactivity.app.core.ActivityIndex;
+import alienkrishn.currentactivity.app.core.FilterRule;
+
+/**
+ * Deliberately naive reimplementation of the detection pipeline, used as the
+ * oracle the real one is checked against: everything is turned into Strings
+ * first and every rule is tried in turn with the obvious String method.
+ */
+final class ReferencePipeline {
+
+    private final List<FilterRule> rules;
+    private final ActivityIndex index;
+    private final long stabilityWindowNanos;
+    private String lastPackageName = "";
+    private String lastClassName = "";
+    // Candidate waiting out the stability window, null if none
+    private String pendingPackageName;
+    private String pendingClassName;
+    private long pendingSinceNanos;
+
+    ReferencePipeline(List<FilterRule> rules, ActivityIndex index, long stabilityWindowNanos) {
+        this.rules = rules;
+        this.index = index;
+        this.stabilityWindowNanos = stabilityWindowNanos;
+    }
+
+    /** Appends package, class of every transition this event publishes to out. */
+    void onWindowStateChanged(String packageName, String className, long elapsedNanos, List<String> out) {
+        if (pendingPackageName != null && elapsedNanos - pendingSinceNanos >= stabilityWindowNanos) {
+            publishPending(out);
+        }
+        if (packageName == null || className == null || !accepts(packageName, className)) {
+            return;
+        }
+        if (packageName.equals(pendingPackageName) && className.equals(pendingClassName)) {
+            return;
+        }
+        if (packageName.equals(lastPackageName) && className.equals(lastClassName)) {
+            pendingPackageName = null;
+            pendingClassName = null;
+            return;
+        }
+        if (index != null) {
+            int kind = index.classify(packageName, className);
+            if (kind == ActivityIndex.KIND_DIALOG || kind == ActivityIndex.KIND_VIEW) {
+                return;
+            }
+        }
+        pendingPackageName = packageName;
+        pendingClassName = className;
+        pendingSinceNanos = elapsedNanos;
+        if (stabilityWindowNanos == 0) {
+            publishPending(out);
+        }
+    }
+
+    /** Publishes whatever is still waiting, as if the window had passed. */
+    void finish(List<String> out) {
+        if (pendingPackageName != null) {
+            publishPending(out);
+        }
+    }
+
+    private void publishPending(List<String> out) {
+        lastPackageName = pendingPackageName;
+        lastClassName = pendingClassName;
+        pendingPackageName = null;
+        pendingClassName = null;
+        out.add(lastPackageName);
+        out.add(lastClassName);
+    }
+
+    private boolean accepts(String packageName, String className) {
+        boolean hasIncludes = false;
+        boolean included = false;
+        for (FilterRule rule : rules) {
+            boolean matches = matches(rule, packageName, className);
+            if (!rule.isInclude() && matches) {
+                return false;
+            }
+            if (rule.isInclude()) {
+                hasIncludes = true;
+                included |= matches;
+            }
+        }
+        return !hasIncludes || included;
+    }
+
+    private static boolean matches(FilterRule rule, String packageName, String className) {
+        switch (rule.getKind()) {
+            case PACKAGE:
+                return packageName.equals(rule.getPattern());
+            case PREFIX:
+                return packageName.startsWith(rule.getPattern());
+            case CLASS:
+                return className.equals(rule.getPattern());
+            case CONTAINS:
+                return className.contains(rule.getPattern());
+            case REGEX:
+                return Pattern.compile(rule.getPattern()).matcher(className).find();
+            default:
+                return false;
+        }
+    }
+}
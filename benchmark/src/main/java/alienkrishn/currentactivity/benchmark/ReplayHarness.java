@@ -0,0 +1,299 @@
+package alienkrishn.currentactivity.benchmark;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+
+import alienkrishn.currentactivity.app.core.ActivityEvent;
+import alienkrishn.currentactivity.app.core.ActivityEventBus;
+import alienkrishn.currentactivity.app.core.ActivityIndex;
+import alienkrishn.currentactivity.app.core.DetectionPipeline;
+import alienkrishn.currentactivity.app.core.EventTrace;
+import alienkrishn.currentactivity.app.core.FilterRule;
+import alienkrishn.currentactivity.app.core.WindowFilter;
+
+/**
+ * Replays an event trace through the detection pipeline as fast as it will
+ * go, checks the transitions it publishes against a naive reference
+ * implementation (and, for synthetic traces without a stability window,
+ * against the generator's ground truth), and reports events/sec and bytes
+ * allocated per event.
+ *
+ * Exits with status 1 if the output is wrong, so it can gate a CI build.
+ *
+ * Run with: ./gradlew :benchmark:replay -PreplayArgs="--events 200000 --noise 0.4"
+ *
+ * Options:
+ *   --trace FILE        replay a recorded trace instead of a synthetic one
+ *   --write FILE        save the trace being replayed
+ *   --events N          synthetic: number of raw events (default 100000)
+ *   --apps N            synthetic: number of apps (default 20)
+ *   --rate R            synthetic: activity switches per second (default 2)
+ *   --burst P           synthetic: probability of repeated events (default 0.3)
+ *   --noise P           synthetic: probability of noise windows (default 0.25)
+ *   --trampolines P     synthetic: probability of a splash activity before a switch (default 0.1)
+ *   --seed N            synthetic: random seed (default 42)
+ *   --rule "RULE"       extra filter rule, e.g. "exclude prefix com.example.app1"
+ *   --stability MS      stability window in milliseconds (default 0)
+ *   --strings MODE      "shared" reuses each name's String instance across events (default),
+ *                       "fresh" gives every event its own copies, like events unparcelled
+ *                       from binder on a device
+ *   --iterations N      measured passes over the trace (default 20)
+ */
+public class ReplayHarness {
+
+    private static final int WARMUP_ITERATIONS = 5;
+
+    public static void main(String[] args) throws IOException {
+        String tracePath = null;
+        String writePath = null;
+        int events = 100000;
+        int iterations = 20;
+        long stabilityWindowNanos = 0;
+        boolean freshStrings = false;
+        SyntheticTraceGenerator generator = new SyntheticTraceGenerator();
+        List<FilterRule> rules = new ArrayList<FilterRule>(WindowFilter.DEFAULT_RULES);
+
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (i + 1 >= args.length) {
+                usage("Missing value for " + arg);
+            }
+            String value = args[++i];
+            if ("--trace".equals(arg)) {
+                tracePath = value;
+            } else if ("--write".equals(arg)) {
+                writePath = value;
+            } else if ("--events".equals(arg)) {
+                events = Integer.parseInt(value);
+            } else if ("--apps".equals(arg)) {
+                generator.apps(Integer.parseInt(value));
+            } else if ("--rate".equals(arg)) {
+                generator.switchesPerSecond(Double.parseDouble(value));
+            } else if ("--burst".equals(arg)) {
+                generator.burstiness(Double.parseDouble(value));
+            } else if ("--noise".equals(arg)) {
+                generator.noise(Double.parseDouble(value));
+            } else if ("--trampolines".equals(arg)) {
+                generator.trampolines(Double.parseDouble(value));
+            } else if ("--seed".equals(arg)) {
+                generator.seed(Long.parseLong(value));
+            } else if ("--rule".equals(arg)) {
+                rules.add(FilterRule.parse(value));
+            } else if ("--stability".equals(arg)) {
+                stabilityWindowNanos = Long.parseLong(value) * 1000000L;
+            } else if ("--strings".equals(arg)) {
+                if (!"shared".equals(value) && !"fresh".equals(value)) {
+                    usage("--strings must be shared or fresh");
+                }
+                freshStrings = "fresh".equals(value);
+            } else if ("--iterations".equals(arg)) {
+                iterations = Integer.parseInt(value);
+            } else {
+                usage("Unknown option " + arg);
+            }
+        }
+
+        EventTrace trace;
+        ActivityIndex index = null;
+        List<String> expected = null;
+        if (tracePath != null) {
+            InputStream in = new BufferedInputStream(new FileInputStream(tracePath));
+            try {
+                trace = EventTrace.readFrom(in);
+            } finally {
+                in.close();
+            }
+            System.out.println("trace: " + tracePath + ", " + trace.size() + " events");
+        } else {
+            SyntheticTraceGenerator.Result result = generator.generate(events);
+            trace = result.trace;
+            index = result.index;
+            expected = result.expected;
+            System.out.println("synthetic trace: " + trace.size() + " events, " +
+                               expected.size() / 2 + " real switches");
+        }
+
+        if (writePath != null) {
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(writePath));
+            try {
+                trace.writeTo(out);
+            } finally {
+                out.close();
+            }
+            System.out.println("wrote " + writePath);
+        }
+
+        if (freshStrings) {
+            trace = withFreshStrings(trace);
+        }
+
+        Replay replay = new Replay(trace, WindowFilter.compile(rules), index, stabilityWindowNanos);
+        if (!checkCorrectness(replay, trace, rules, index, stabilityWindowNanos == 0 ? expected : null)) {
+            System.exit(1);
+        }
+        measure(replay, trace, iterations);
+    }
+
+    // Copies made up front, so the measured passes still allocate nothing
+    private static EventTrace withFreshStrings(EventTrace trace) {
+        EventTrace copy = new EventTrace(trace.size());
+        for (int i = 0; i < trace.size(); i++) {
+            String packageName = trace.getPackageName(i);
+            String className = trace.getClassName(i);
+            copy.add(trace.getType(i), trace.getEventTime(i), trace.getElapsedNanos(i),
+                     packageName == null ? null : new String(packageName),
+                     className == null ? null : new String(className));
+        }
+        return copy;
+    }
+
+    private static void usage(String message) {
+        System.err.println(message);
+        System.err.println("See the ReplayHarness class comment for options");
+        System.exit(2);
+    }
+
+    /** Pipeline plus a subscriber that records what it publishes without allocating. */
+    private static final class Replay implements ActivityEventBus.Subscriber {
+
+        final DetectionPipeline pipeline;
+        final EventTrace trace;
+        final String[] outPackages;
+        final String[] outClasses;
+        int outCount;
+
+        Replay(EventTrace trace, WindowFilter filter, ActivityIndex index, long stabilityWindowNanos) {
+            this.trace = trace;
+            ActivityEventBus bus = new ActivityEventBus(ActivityEventBus.DEFAULT_CAPACITY);
+            bus.subscribe(this);
+            pipeline = new DetectionPipeline(bus);
+            pipeline.setFilter(filter);
+            pipeline.setClassifier(index);
+            pipeline.setStabilityWindowNanos(stabilityWindowNanos);
+            outPackages = new String[trace.size()];
+            outClasses = new String[trace.size()];
+        }
+
+        @Override
+        public void onActivityEvent(ActivityEvent event) {
+            outPackages[outCount] = event.getPackageName();
+            outClasses[outCount] = event.getClassName();
+            outCount++;
+        }
+
+        void run() {
+            pipeline.reset();
+            outCount = 0;
+            for (int i = 0, n = trace.size(); i < n; i++) {
+                if (trace.getType(i) == SyntheticTraceGenerator.TYPE_WINDOW_STATE_CHANGED) {
+                    pipeline.onWindowStateChanged(trace.getPackageName(i), trace.getClassName(i),
+                                                  trace.getEventTime(i), trace.getElapsedNanos(i),
+                                                  ActivityEvent.SOURCE_WINDOW_STATE);
+                }
+            }
+            // The trace is over, so whatever is waiting has settled
+            pipeline.flushPending(Long.MAX_VALUE);
+        }
+    }
+
+    private static boolean checkCorrectness(Replay replay, EventTrace trace, List<FilterRule> rules,
+                                            ActivityIndex index, List<String> expected) {
+        ReferencePipeline reference = new ReferencePipeline(rules, index, replay.pipeline.getStabilityWindowNanos());
+        List<String> referenceOut = new ArrayList<String>();
+        for (int i = 0; i < trace.size(); i++) {
+            if (trace.getType(i) == SyntheticTraceGenerator.TYPE_WINDOW_STATE_CHANGED) {
+                reference.onWindowStateChanged(trace.getPackageName(i), trace.getClassName(i),
+                                               trace.getElapsedNanos(i), referenceOut);
+            }
+        }
+        reference.finish(referenceOut);
+
+        replay.run();
+        List<String> actual = new ArrayList<String>();
+        for (int i = 0; i < replay.outCount; i++) {
+            actual.add(replay.outPackages[i]);
+            actual.add(replay.outClasses[i]);
+        }
+
+        boolean ok = compare("pipeline vs reference", actual, referenceOut);
+        if (expected != null) {
+            ok &= compare("reference vs ground truth", referenceOut, expected);
+        }
+        if (ok) {
+            System.out.println("correctness: OK, " + actual.size() / 2 + " transitions");
+        }
+        return ok;
+    }
+
+    private static boolean compare(String what, List<String> actual, List<String> expected) {
+        int n = Math.min(actual.size(), expected.size());
+        for (int i = 0; i < n; i += 2) {
+            if (!actual.get(i).equals(expected.get(i)) || !actual.get(i + 1).equals(expected.get(i + 1))) {
+                System.out.println("correctness: FAILED, " + what + " differ at transition " + i / 2 +
+                                   ": " + actual.get(i) + "/" + actual.get(i + 1) +
+                                   " vs " + expected.get(i) + "/" + expected.get(i + 1));
+                return false;
+            }
+        }
+        if (actual.size() != expected.size()) {
+            System.out.println("correctness: FAILED, " + what + " differ in length: " +
+                               actual.size() / 2 + " vs " + expected.size() / 2 + " transitions");
+            return false;
+        }
+        return true;
+    }
+
+    private static void measure(Replay replay, EventTrace trace, int iterations) {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            replay.run();
+        }
+
+        DetectionPipeline pipeline = replay.pipeline;
+        pipeline.resetCounters();
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            replay.run();
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocated = allocatedBytes() - allocatedBefore;
+
+        long total = (long) trace.size() * iterations;
+        System.out.println(String.format("throughput: %.0f events/s, %.1f ns/event",
+                                         total * 1e9 / elapsed, (double) elapsed / total));
+        if (allocatedBefore >= 0) {
+            System.out.println(String.format("allocation: %.2f bytes/event", (double) allocated / total));
+        } else {
+            System.out.println("allocation: not measurable on this JVM");
+        }
+        System.out.println(String.format("per pass: %d received, %d filtered, %d duplicate, %d not activities, " +
+                                         "%d transient, %d published",
+                                         pipeline.getReceivedCount() / iterations,
+                                         pipeline.getFilteredCount() / iterations,
+                                         pipeline.getDuplicateCount() / iterations,
+                                         pipeline.getClassifiedAwayCount() / iterations,
+                                         pipeline.getTransientCount() / iterations,
+                                         pipeline.getPublishedCount() / iterations));
+    }
+
+    // Bytes allocated by this thread so far, or -1 if the JVM cannot tell
+    private static long allocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+            if (sunBean.isThreadAllocatedMemorySupported()) {
+                return sunBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+}
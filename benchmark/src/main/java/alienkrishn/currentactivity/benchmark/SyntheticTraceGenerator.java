@@ -0,0 +1,187 @@
+package alienkrishn.currentactivity.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import alienkrishn.currentactivity.app.core.ActivityIndex;
+import alienkrishn.currentactivity.app.core.EventTrace;
+
+/**
+ * Generates window event traces that look like a person using a phone:
+ * switches between activities of a set of apps, bursts of repeated events
+ * for the same window, trampoline activities that are only on screen for a
+ * few milliseconds, and noise windows (toasts, popups, system UI, in-app
+ * dialogs and views) that the pipeline is expected to drop.
+ *
+ * Alongside the trace it produces the activity index the apps would declare
+ * and the transitions a correct pipeline must publish, in order.
+ */
+public final class SyntheticTraceGenerator {
+
+    public static final int TYPE_WINDOW_STATE_CHANGED = 0x00000020;
+
+    private int apps = 20;
+    private int activitiesPerApp = 6;
+    private double switchesPerSecond = 2;
+    private double burstiness = 0.3;
+    private double noise = 0.25;
+    private double trampolines = 0.1;
+    private long seed = 42;
+
+    public SyntheticTraceGenerator apps(int apps) {
+        this.apps = apps;
+        return this;
+    }
+
+    public SyntheticTraceGenerator activitiesPerApp(int activitiesPerApp) {
+        this.activitiesPerApp = activitiesPerApp;
+        return this;
+    }
+
+    /** Mean rate of real activity switches. */
+    public SyntheticTraceGenerator switchesPerSecond(double switchesPerSecond) {
+        this.switchesPerSecond = switchesPerSecond;
+        return this;
+    }
+
+    /** Probability, 0..1, that a window is reported again right after it appeared. */
+    public SyntheticTraceGenerator burstiness(double burstiness) {
+        this.burstiness = burstiness;
+        return this;
+    }
+
+    /** Probability, 0..1, that a noise window appears before the next switch. */
+    public SyntheticTraceGenerator noise(double noise) {
+        this.noise = noise;
+        return this;
+    }
+
+    /**
+     * Probability, 0..1, that a switch goes through the target app's splash
+     * activity for a few milliseconds first.
+     */
+    public SyntheticTraceGenerator trampolines(double trampolines) {
+        this.trampolines = trampolines;
+        return this;
+    }
+
+    public SyntheticTraceGenerator seed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    public static final class Result {
+        public final EventTrace trace;
+        public final ActivityIndex index;
+        // Alternating package, class of every transition that must be published
+        // without a stability window, trampolines included
+        public final List<String> expected;
+
+        Result(EventTrace trace, ActivityIndex index, List<String> expected) {
+            this.trace = trace;
+            this.index = index;
+            this.expected = expected;
+        }
+    }
+
+    /** Generates at least the given number of raw events. */
+    public Result generate(int events) {
+        Random random = new Random(seed);
+        String[] packages = new String[apps];
+        String[][] activities = new String[apps][activitiesPerApp];
+        String[] splashes = new String[apps];
+        ActivityIndex index = new ActivityIndex();
+        for (int app = 0; app < apps; app++) {
+            packages[app] = "com.example.app" + app + (app % 3 == 0 ? ".beta" : "");
+            List<String> declared = new ArrayList<String>();
+            for (int activity = 0; activity < activitiesPerApp; activity++) {
+                String name = packages[app] + (activity % 2 == 0 ? ".ui." : ".feature.detail.") +
+                    "Screen" + activity + "Activity";
+                activities[app][activity] = name;
+                declared.add(name);
+            }
+            splashes[app] = packages[app] + ".SplashActivity";
+            declared.add(splashes[app]);
+            index.put(packages[app], 1, declared);
+        }
+
+        EventTrace trace = new EventTrace(events + 16);
+        List<String> expected = new ArrayList<String>();
+        long elapsed = 1000000000L;
+        int currentApp = -1;
+        int currentActivity = -1;
+
+        while (trace.size() < events) {
+            // Next real activity, always different from the current one
+            int app;
+            int activity;
+            do {
+                // Mostly stay in the same app, as people do
+                app = currentApp >= 0 && random.nextDouble() < 0.6 ? currentApp : random.nextInt(apps);
+                activity = random.nextInt(activitiesPerApp);
+            } while (app == currentApp && activity == currentActivity);
+
+            elapsed += (long) (-Math.log(1 - random.nextDouble()) / switchesPerSecond * 1e9);
+            if (app != currentApp && random.nextDouble() < trampolines) {
+                add(trace, elapsed, packages[app], splashes[app]);
+                expected.add(packages[app]);
+                expected.add(splashes[app]);
+                elapsed += 5000000L + random.nextInt(35000000);
+            }
+            add(trace, elapsed, packages[app], activities[app][activity]);
+            expected.add(packages[app]);
+            expected.add(activities[app][activity]);
+            currentApp = app;
+            currentActivity = activity;
+
+            while (random.nextDouble() < burstiness) {
+                elapsed += 1000000L + random.nextInt(20000000);
+                add(trace, elapsed, packages[app], activities[app][activity]);
+            }
+
+            if (random.nextDouble() < noise) {
+                elapsed += 5000000L + random.nextInt(500000000);
+                addNoise(trace, random, elapsed, packages[app]);
+                if (random.nextBoolean()) {
+                    // Back to the activity under the noise window, must not count as a switch
+                    elapsed += 1000000L + random.nextInt(200000000);
+                    add(trace, elapsed, packages[app], activities[app][activity]);
+                }
+            }
+        }
+        return new Result(trace, index, expected);
+    }
+
+    private static void add(EventTrace trace, long elapsed, String packageName, String className) {
+        trace.add(TYPE_WINDOW_STATE_CHANGED, elapsed / 1000000L, elapsed, packageName, className);
+    }
+
+    private static void addNoise(EventTrace trace, Random random, long elapsed, String packageName) {
+        switch (random.nextInt(7)) {
+            case 0:
+                add(trace, elapsed, "com.android.systemui", "com.android.systemui.statusbar.phone.StatusBar");
+                break;
+            case 1:
+                add(trace, elapsed, packageName, "android.widget.Toast$TN");
+                break;
+            case 2:
+                add(trace, elapsed, packageName, "android.widget.PopupWindow$PopupDecorView");
+                break;
+            case 3:
+                add(trace, elapsed, packageName, "android.app.AlertDialog");
+                break;
+            case 4:
+                // Not a declared activity, classified as a dialog
+                add(trace, elapsed, packageName, packageName + ".ui.ConfirmDeleteDialog");
+                break;
+            case 5:
+                // Not a declared activity, classified as a view
+                add(trace, elapsed, packageName, "android.widget.FrameLayout");
+                break;
+            default:
+                add(trace, elapsed, packageName, null);
+                break;
+        }
+    }
+}
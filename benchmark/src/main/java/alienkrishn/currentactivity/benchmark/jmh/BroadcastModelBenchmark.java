@@ -0,0 +1,68 @@
+package alienkrishn.currentactivity.benchmark.jmh;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JVM model of building and marshalling the legacy broadcast Intent: an
+ * extras map plus a Parcel-like serialisation of action and extras. Intent
+ * itself needs the Android runtime, so this is a lower bound on its cost.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BroadcastModelBenchmark {
+
+    @Param({ "focused", "longNames" })
+    public String distribution;
+
+    private Workload workload;
+
+    @Setup
+    public void setUp() {
+        workload = new Workload(distribution);
+    }
+
+    @Benchmark
+    public byte[] buildAndMarshal() throws IOException {
+        int i = workload.next();
+        return marshal(workload.packageNames[i], workload.classNames[i]);
+    }
+
+    static byte[] marshal(String packageName, String className) throws IOException {
+        // new Intent(action) + putExtra x2
+        Map<String, Object> extras = new HashMap<String, Object>();
+        extras.put("package", packageName);
+        extras.put("activity", className);
+
+        // Parcel.writeString for the action, Bundle.writeToParcel for the extras
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeUTF("CURRENT_ACTIVITY_UPDATE");
+        out.writeInt(extras.size());
+        for (Map.Entry<String, Object> extra : extras.entrySet()) {
+            out.writeUTF(extra.getKey());
+            out.writeUTF((String) extra.getValue());
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,75 @@
+package alienkrishn.currentactivity.benchmark.jmh;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import alienkrishn.currentactivity.app.core.ActivityEvent;
+import alienkrishn.currentactivity.app.core.ActivityEventBus;
+
+/**
+ * Publishing on the in-process event bus with a number of synchronous
+ * subscribers, and draining it through a Reader on the same thread.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BusPublishBenchmark {
+
+    @Param({ "1", "3" })
+    public int subscribers;
+
+    private Workload workload;
+    private ActivityEventBus bus;
+    private ActivityEventBus.Reader reader;
+    private long seen;
+
+    private final ActivityEventBus.Subscriber counter = new ActivityEventBus.Subscriber() {
+        @Override
+        public void onActivityEvent(ActivityEvent event) {
+            seen += event.getSequence();
+        }
+    };
+
+    @Setup
+    public void setUp() {
+        workload = new Workload("mixed");
+        bus = new ActivityEventBus(ActivityEventBus.DEFAULT_CAPACITY);
+        for (int i = 0; i < subscribers; i++) {
+            bus.subscribe(new ActivityEventBus.Subscriber() {
+                    @Override
+                    public void onActivityEvent(ActivityEvent event) {
+                        seen++;
+                    }
+                });
+        }
+        reader = bus.newReader();
+    }
+
+    @Benchmark
+    public long publish() {
+        int i = workload.next();
+        return bus.publish(workload.packageNames[i], workload.classNames[i], i);
+    }
+
+    @Benchmark
+    public long publishAndDrain() {
+        int i = workload.next();
+        bus.publish(workload.packageNames[i], workload.classNames[i], i);
+        reader.drain(counter);
+        return seen;
+    }
+}
@@ -0,0 +1,71 @@
+package alienkrishn.currentactivity.benchmark.jmh;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Dedup against the last reported activity: materialising Strings and
+ * comparing them, as the service used to, against comparing the incoming
+ * CharSequences in place.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DedupBenchmark {
+
+    @Param({ "focused", "mixed", "noisy", "longNames" })
+    public String distribution;
+
+    private Workload workload;
+    private CharSequence[] packageNames;
+    private CharSequence[] classNames;
+    private String lastPackageName = "";
+    private String lastClassName = "";
+
+    @Setup
+    public void setUp() {
+        workload = new Workload(distribution);
+        packageNames = workload.packageNames;
+        classNames = workload.classNames;
+    }
+
+    @Benchmark
+    public boolean stringEquals() {
+        int i = workload.next();
+        String packageName = packageNames[i].toString();
+        String className = classNames[i].toString();
+        if (!packageName.equals(lastPackageName) || !className.equals(lastClassName)) {
+            lastPackageName = packageName;
+            lastClassName = className;
+            return true;
+        }
+        return false;
+    }
+
+    @Benchmark
+    public boolean contentEquals() {
+        int i = workload.next();
+        CharSequence packageName = packageNames[i];
+        CharSequence className = classNames[i];
+        if (!lastPackageName.contentEquals(packageName) || !lastClassName.contentEquals(className)) {
+            lastPackageName = lastPackageName.contentEquals(packageName) ? lastPackageName : packageName.toString();
+            lastClassName = className.toString();
+            return true;
+        }
+        return false;
+    }
+}
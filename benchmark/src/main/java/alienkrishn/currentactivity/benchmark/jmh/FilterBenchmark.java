@@ -0,0 +1,66 @@
+package alienkrishn.currentactivity.benchmark.jmh;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import alienkrishn.currentactivity.app.core.FilterRule;
+import alienkrishn.currentactivity.app.core.WindowFilter;
+
+/**
+ * The original hard-coded toString/contains filter against the compiled
+ * WindowFilter with the default rules.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FilterBenchmark {
+
+    @Param({ "focused", "mixed", "noisy", "longNames" })
+    public String distribution;
+
+    private Workload workload;
+    private WindowFilter windowFilter;
+    // Typed as AccessibilityEvent hands them out
+    private CharSequence[] packageNames;
+    private CharSequence[] classNames;
+
+    @Setup
+    public void setUp() {
+        workload = new Workload(distribution);
+        windowFilter = WindowFilter.withDefaults(Collections.<FilterRule>emptyList());
+        packageNames = workload.packageNames;
+        classNames = workload.classNames;
+    }
+
+    @Benchmark
+    public boolean legacyToStringContains() {
+        int i = workload.next();
+        String packageName = packageNames[i].toString();
+        String className = classNames[i].toString();
+        return !packageName.equals("android") &&
+            !className.contains("PopupWindow") &&
+            !className.contains("Toast") &&
+            !className.contains("DecorView");
+    }
+
+    @Benchmark
+    public boolean windowFilter() {
+        int i = workload.next();
+        return windowFilter.accepts(packageNames[i], classNames[i]);
+    }
+}
@@ -0,0 +1,80 @@
+package alienkrishn.currentactivity.benchmark.jmh;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import alienkrishn.currentactivity.app.core.ActivityEvent;
+import alienkrishn.currentactivity.app.core.ActivityEventBus;
+import alienkrishn.currentactivity.app.core.DetectionPipeline;
+
+/**
+ * One raw window event end to end: the original service logic (toString,
+ * contains filter, String dedup, broadcast Intent model) against
+ * DetectionPipeline publishing on the bus.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PipelineBenchmark {
+
+    @Param({ "focused", "mixed", "noisy", "longNames" })
+    public String distribution;
+
+    private Workload workload;
+    private DetectionPipeline pipeline;
+    private String lastPackageName = "";
+    private String lastClassName = "";
+
+    @Setup
+    public void setUp() {
+        workload = new Workload(distribution);
+        ActivityEventBus bus = new ActivityEventBus(ActivityEventBus.DEFAULT_CAPACITY);
+        bus.subscribe(new ActivityEventBus.Subscriber() {
+                @Override
+                public void onActivityEvent(ActivityEvent event) {
+                    // Overlay stand-in
+                }
+            });
+        pipeline = new DetectionPipeline(bus);
+    }
+
+    @Benchmark
+    public Object legacy() throws IOException {
+        int i = workload.next();
+        String packageName = workload.packageNames[i].toString();
+        String className = workload.classNames[i].toString();
+        if (!packageName.equals("android") &&
+            !className.contains("PopupWindow") &&
+            !className.contains("Toast") &&
+            !className.contains("DecorView")) {
+            if (!packageName.equals(lastPackageName) || !className.equals(lastClassName)) {
+                lastPackageName = packageName;
+                lastClassName = className;
+                return BroadcastModelBenchmark.marshal(packageName, className);
+            }
+        }
+        return null;
+    }
+
+    @Benchmark
+    public boolean detectionPipeline() {
+        int i = workload.next();
+        return pipeline.onWindowStateChanged(workload.packageNames[i], workload.classNames[i], i, i,
+                                             ActivityEvent.SOURCE_WINDOW_STATE);
+    }
+}
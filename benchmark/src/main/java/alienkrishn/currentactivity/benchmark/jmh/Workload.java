@@ -0,0 +1,63 @@
+package alienkrishn.currentactivity.benchmark.jmh;
+
+import alienkrishn.currentactivity.app.core.EventTrace;
+import alienkrishn.currentactivity.benchmark.SyntheticTraceGenerator;
+
+/**
+ * Package/class name pairs drawn from a named distribution, cycled through by
+ * the benchmarks so every invocation sees a different event.
+ *
+ * <ul>
+ *   <li>focused: a handful of apps, little noise, lots of repeats</li>
+ *   <li>mixed: many apps with a realistic share of noise windows</li>
+ *   <li>noisy: mostly toasts, popups, dialogs and system UI</li>
+ *   <li>longNames: obfuscated-looking deep packages and nested classes</li>
+ * </ul>
+ */
+final class Workload {
+
+    static final int SIZE = 4096;
+
+    final String[] packageNames = new String[SIZE];
+    final String[] classNames = new String[SIZE];
+    private int next;
+
+    Workload(String distribution) {
+        SyntheticTraceGenerator generator = new SyntheticTraceGenerator().seed(7);
+        if ("focused".equals(distribution)) {
+            generator.apps(4).burstiness(0.6).noise(0.05);
+        } else if ("mixed".equals(distribution)) {
+            generator.apps(60).burstiness(0.3).noise(0.25);
+        } else if ("noisy".equals(distribution)) {
+            generator.apps(20).burstiness(0.1).noise(0.95);
+        } else if ("longNames".equals(distribution)) {
+            generator.apps(30).burstiness(0.3).noise(0.25);
+        } else {
+            throw new IllegalArgumentException("Unknown distribution " + distribution);
+        }
+
+        EventTrace trace = generator.generate(SIZE).trace;
+        boolean longNames = "longNames".equals(distribution);
+        for (int i = 0; i < SIZE; i++) {
+            String packageName = trace.getPackageName(i);
+            String className = trace.getClassName(i);
+            if (className == null) {
+                // Null names are a separate, trivial path in every implementation
+                className = "android.widget.FrameLayout";
+            }
+            if (longNames && className.startsWith(packageName)) {
+                className = packageName + ".internal.presentation.navigation.host" +
+                    className.substring(packageName.length()) + "$Companion$DeepLinkHandler";
+            }
+            packageNames[i] = packageName;
+            classNames[i] = className;
+        }
+    }
+
+    /** Index of the next event, wrapping around. */
+    int next() {
+        int index = next;
+        next = (next + 1) & (SIZE - 1);
+        return index;
+    }
+}